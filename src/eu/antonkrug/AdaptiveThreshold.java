@@ -0,0 +1,375 @@
+package eu.antonkrug;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.RecursiveAction;
+
+import eu.antonkrug.metrics.Metrics;
+
+/**
+ * Local thresholding, each pixel is compared with the statistics of the
+ * window around it instead of one global threshold, so uneven lighting doesn't
+ * split the objects into pieces or flood the union with specks.
+ *
+ * Bradley: pixel is foreground when it's darker than mean of the window by
+ * more than k (0.15 is 15%). Sauvola: threshold is mean * (1 + k * (deviation
+ * / 128 - 1)), so in flat areas (small deviation) it's well below the mean and
+ * noise doesn't pass it, k is usually 0.2 to 0.5.
+ *
+ * Both methods are made for dark objects, which is the inverse of the global
+ * threshold. So when inverse is not set the 8 bit luminance is flipped (255 -
+ * lum) and bright objects are found the same way.
+ *
+ * Window sums come from summed-area table (sum of everything above and left
+ * of each pixel), so each pixel costs the same no matter how big the window
+ * is. Sums of luminance are kept in int and they can overflow, but the sum of
+ * the window is difference of 4 of them and it's correct modulo 2^32 as long
+ * as the window itself fits (255 * window area). Squares for Sauvola are in
+ * long.
+ *
+ * The table is build in bands of rows in parallel, each band sums its rows on
+ * its own, then the last rows of the bands are added together one after other
+ * and in the second parallel pass each band adds the total of the bands above
+ * it. Third parallel pass thresholds the bands into BinaryImage. Everything is
+ * kept for next frames of the same size, so it doesn't allocate anything for
+ * them.
+ *
+ * Final is used because it's not intended to extend this class and as in
+ * Effective Java book if I do not design and document for inheritance then I
+ * should prohibit it.
+ *
+ * @author Anton Krug
+ */
+public final class AdaptiveThreshold {
+	private final static Metrics.Stage	METRIC_THRESHOLD	= Metrics.get().stage("adaptive threshold");
+
+	// phases of the band work
+	private final static int	SUM			= 0;
+	private final static int	CARRY		= 1;
+	private final static int	COMPARE	= 2;
+
+	private final Method			method;
+	private final int					radius;
+	private final double			k;
+
+	// tables have (width + 1) * (height + 1) entries, first row and column are 0
+	private int								width, height;
+	private int[]							sum;
+	private long[]						squares;
+	private Band[]						bands;
+	private RecursiveAction		all;
+
+	// source of the current frame, either luminance plane or raw frame
+	private char[]						lum;
+	private ByteBuffer				rgb;
+	private int								offset;
+	private boolean						invert;
+	private BinaryImage				target;
+
+	/**
+	 * @param method
+	 *          how the local threshold is calculated
+	 * @param radius
+	 *          the window is 2 * radius + 1 pixels wide and high, smaller at the
+	 *          edges of the picture
+	 * @param k
+	 *          sensitivity of the method
+	 */
+	public AdaptiveThreshold(Method method, int radius, double k) {
+		if (radius < 1) throw new IllegalArgumentException("Radius must be positive");
+
+		this.method = method;
+		this.radius = radius;
+		this.k = k;
+	}
+
+	public double getK() {
+		return this.k;
+	}
+
+	public Method getMethod() {
+		return this.method;
+	}
+
+	public int getRadius() {
+		return this.radius;
+	}
+
+	/**
+	 * Threshold the picture (its cached luminance plane)
+	 *
+	 * @param inverse
+	 *          dark objects are foreground when set, bright ones otherwise
+	 * @param target
+	 *          reused when it has the same size, otherwise new one is created
+	 * @return the binary image
+	 */
+	public BinaryImage threshold(Picture pic, Boolean inverse, BinaryImage target) {
+		this.lum = pic.getLumPlane();
+		return this.run(pic.width(), pic.height(), inverse, target);
+	}
+
+	/**
+	 * Threshold raw frame with R, G, B bytes per pixel (as given by
+	 * FrameSource), without Picture of it
+	 *
+	 * @param inverse
+	 *          dark objects are foreground when set, bright ones otherwise
+	 * @param target
+	 *          reused when it has the same size, otherwise new one is created
+	 * @return the binary image
+	 */
+	public BinaryImage threshold(ByteBuffer rgb, int width, int height, Boolean inverse,
+			BinaryImage target) {
+		this.rgb = rgb;
+		this.offset = rgb.position();
+		return this.run(width, height, inverse, target);
+	}
+
+	/**
+	 * Make the tables and bands for the size, unless they are already there
+	 */
+	private void allocate(int width, int height) {
+		boolean squares = (this.method == Method.SAUVOLA);
+		if (this.width == width && this.height == height && (this.squares != null) == squares) return;
+
+		this.width = width;
+		this.height = height;
+		this.sum = new int[(width + 1) * (height + 1)];
+		this.squares = squares ? new long[(width + 1) * (height + 1)] : null;
+
+		// few bands per core so faster cores can take over work from slower ones
+		int count = Math.max(1, Math.min(WeightedQuickUnion.POOL.getParallelism() * 4, height
+				/ WeightedQuickUnion.STRIP_MIN_ROWS));
+		int rows = Math.max(1, (height + count - 1) / count);
+		count = Math.max(1, (height + rows - 1) / rows);
+
+		final Band[] bands = new Band[count];
+		for (int i = 0; i < count; i++)
+			bands[i] = new Band(i * rows, Math.min(height, (i + 1) * rows));
+		this.bands = bands;
+
+		this.all = new RecursiveAction() {
+			private static final long	serialVersionUID	= 1L;
+
+			protected void compute() {
+				invokeAll(bands);
+			}
+		};
+	}
+
+	/**
+	 * Run the bands trough given phase
+	 */
+	private void phase(int phase) {
+		for (Band band : this.bands) {
+			band.reinitialize();
+			band.phase = phase;
+		}
+
+		if (this.bands.length == 1) {
+			this.bands[0].compute();
+		} else {
+			this.all.reinitialize();
+			WeightedQuickUnion.POOL.invoke(this.all);
+		}
+	}
+
+	private BinaryImage run(int width, int height, boolean inverse, BinaryImage target) {
+		long nanos = System.nanoTime(), bytes = Metrics.allocatedBytes();
+		if (target == null || target.width() != width || target.height() != height)
+			target = new BinaryImage(width, height);
+
+		this.allocate(width, height);
+		this.invert = inverse;
+		this.target = target;
+
+		this.phase(SUM);
+
+		// last row of each band becomes the total of everything above it
+		int stride = width + 1;
+		for (int i = 1; i < this.bands.length; i++) {
+			int last = this.bands[i].yTo * stride;
+			int above = this.bands[i - 1].yTo * stride;
+			for (int x = 1; x <= width; x++) {
+				this.sum[last + x] += this.sum[above + x];
+				if (this.squares != null) this.squares[last + x] += this.squares[above + x];
+			}
+		}
+
+		if (this.bands.length > 1) this.phase(CARRY);
+		this.phase(COMPARE);
+
+		this.lum = null;
+		this.rgb = null;
+		this.target = null;
+
+		METRIC_THRESHOLD.recordSince(nanos, bytes);
+		return target;
+	}
+
+	/**
+	 * How the local threshold is calculated
+	 */
+	public enum Method {
+		BRADLEY, SAUVOLA
+	}
+
+	/**
+	 * Rows yFrom to yTo (exclusive), in the tables they are the rows yFrom + 1 to
+	 * yTo (inclusive)
+	 */
+	private final class Band extends RecursiveAction {
+		private static final long	serialVersionUID	= 1L;
+
+		private final int					yFrom, yTo;
+		private final int[]				gray;
+		private int								phase;
+
+		private Band(int yFrom, int yTo) {
+			this.yFrom = yFrom;
+			this.yTo = yTo;
+			this.gray = new int[width];
+		}
+
+		protected void compute() {
+			if (this.phase == SUM) {
+				this.sum();
+			} else if (this.phase == CARRY) {
+				this.carry();
+			} else {
+				this.compare();
+			}
+		}
+
+		/**
+		 * Add the total of the bands above to all rows but the last one, which
+		 * was already done
+		 */
+		private void carry() {
+			if (this.yFrom == 0) return;
+
+			int stride = width + 1;
+			int above = this.yFrom * stride;
+			for (int y = this.yFrom + 1; y < this.yTo; y++) {
+				int row = y * stride;
+				for (int x = 1; x <= width; x++) {
+					sum[row + x] += sum[above + x];
+					if (squares != null) squares[row + x] += squares[above + x];
+				}
+			}
+		}
+
+		/**
+		 * Compare each pixel with its window and pack the result into the target
+		 * words
+		 */
+		private void compare() {
+			int stride = width + 1;
+			int words = target.words();
+			long[] bits = target.bits();
+			boolean sauvola = (squares != null);
+			double below = 1 - k;
+
+			for (int y = this.yFrom; y < this.yTo; y++) {
+				int top = Math.max(0, y - radius) * stride;
+				int bottom = (Math.min(height, y + radius + 1)) * stride;
+				int rows = (bottom - top) / stride;
+				int row = (y + 1) * stride;
+
+				long word = 0;
+				for (int x = 0; x < width; x++) {
+					int left = Math.max(0, x - radius);
+					int right = Math.min(width, x + radius + 1);
+					int count = rows * (right - left);
+
+					// the pixel itself from its own 4 sums
+					int value = sum[row + x + 1] - sum[row + x] - sum[row - stride + x + 1]
+							+ sum[row - stride + x];
+					int window = sum[bottom + right] - sum[bottom + left] - sum[top + right]
+							+ sum[top + left];
+
+					boolean foreground;
+					if (sauvola) {
+						// deviation is the same for the flipped luminance
+						double mean = (double) window / count;
+						long square = squares[bottom + right] - squares[bottom + left]
+								- squares[top + right] + squares[top + left];
+						double deviation = Math.sqrt(Math.max(0, (double) square / count - mean * mean));
+						if (!invert) {
+							value = 255 - value;
+							mean = 255 - mean;
+						}
+						foreground = value < mean * (1 + k * (deviation / 128 - 1));
+					} else {
+						// value < mean * (1 - k) without dividing, flipped for bright objects
+						if (!invert) {
+							value = 255 - value;
+							window = 255 * count - window;
+						}
+						foreground = (double) value * count < window * below;
+					}
+
+					if (foreground) word |= 1L << x;
+					if ((x & 63) == 63 || x == width - 1) {
+						bits[y * words + (x >>> 6)] = word;
+						word = 0;
+					}
+				}
+			}
+		}
+
+		/**
+		 * 8 bit luminance of the row y into the gray scratch row
+		 */
+		private void gray(int y) {
+			int[] gray = this.gray;
+			int index = y * width;
+
+			if (lum != null) {
+				for (int x = 0; x < width; x++)
+					gray[x] = lum[index + x] >>> Picture.LUM_SHIFT;
+			} else {
+				for (int x = 0, at = offset + index * 3; x < width; x++, at += 3)
+					gray[x] = Picture.lumFixed(rgb.get(at) & 0xFF, rgb.get(at + 1) & 0xFF,
+							rgb.get(at + 2) & 0xFF) >>> Picture.LUM_SHIFT;
+			}
+		}
+
+		/**
+		 * Summed-area table of the band rows only, as if nothing was above them
+		 */
+		private void sum() {
+			int[] gray = this.gray;
+			int stride = width + 1;
+
+			for (int y = this.yFrom; y < this.yTo; y++) {
+				this.gray(y);
+				int row = (y + 1) * stride + 1;
+				int above = row - stride;
+				boolean first = (y == this.yFrom);
+
+				int rowSum = 0;
+				if (first) {
+					for (int x = 0; x < width; x++) {
+						rowSum += gray[x];
+						sum[row + x] = rowSum;
+					}
+				} else {
+					for (int x = 0; x < width; x++) {
+						rowSum += gray[x];
+						sum[row + x] = sum[above + x] + rowSum;
+					}
+				}
+
+				if (squares != null) {
+					long rowSquares = 0;
+					for (int x = 0; x < width; x++) {
+						rowSquares += gray[x] * gray[x];
+						squares[row + x] = first ? rowSquares : squares[above + x] + rowSquares;
+					}
+				}
+			}
+		}
+	}
+
+}
@@ -0,0 +1,318 @@
+package eu.antonkrug;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Headless processing of whole directory of images, each image goes trough the
+ * ConnectedComponentImage pipeline (load, blur, toBW, label, flatten and
+ * disable small groups) on a fixed pool of workers, by default one per core.
+ *
+ * Decoded image is the biggest thing in memory, images are decoded by the
+ * workers so only one image per worker is in memory. The thread walking the
+ * directory can get just as many files ahead of the workers, then it waits for
+ * a free permit (back-pressure), so thousands of files don't pile up as queued
+ * tasks.
+ *
+ * Results are written as soon as the image is done (so not in the order of
+ * the files):
+ *
+ * CSV, one line per image: file, width, height, components, smallest,
+ * biggest, milliseconds (or error)
+ *
+ * JSON lines, one object per image with the threshold and the stats of each
+ * enabled group
+ *
+ * By default the threshold of each image is chosen by Otsu's method, nobody
+ * is there to move the slider.
+ *
+ * Final is used because it's not intended to extend this class and as in
+ * Effective Java book if I do not design and document for inheritance then I
+ * should prohibit it.
+ *
+ * @author Anton Krug
+ */
+public final class BatchRunner {
+	public final static String	CSV_HEADER	= "file,width,height,components,smallest,biggest,millis,error";
+	public final static Boolean	AUTO_THRESHOLD	= true;
+
+	private final int						workers;
+	private final Boolean				runLength;
+	private final Boolean				autoThreshold;
+	private final Set<String>		suffixes;
+
+	private Writer							csv;
+	private Writer							json;
+	private final AtomicInteger	processed;
+	private final AtomicInteger	failed;
+
+	// first failed write of the results, the workers can't throw it to run()
+	private final AtomicReference<IOException>	writeFailure;
+
+	/**
+	 * @param workers
+	 *          how many images are processed at once
+	 * @param runLength
+	 *          if true RunLengthUnion will be used instead of WeightedQuickUnion
+	 */
+	public BatchRunner(int workers, Boolean runLength) {
+		this(workers, runLength, false);
+	}
+
+	/**
+	 * @param workers
+	 *          how many images are processed at once
+	 * @param runLength
+	 *          if true RunLengthUnion will be used instead of WeightedQuickUnion
+	 * @param autoThreshold
+	 *          if true the threshold of each image is chosen by Otsu's method
+	 */
+	public BatchRunner(int workers, Boolean runLength, Boolean autoThreshold) {
+		if (workers < 1) throw new IllegalArgumentException("at least 1 worker is needed");
+
+		this.workers = workers;
+		this.runLength = runLength;
+		this.autoThreshold = autoThreshold;
+		this.processed = new AtomicInteger();
+		this.failed = new AtomicInteger();
+		this.writeFailure = new AtomicReference<IOException>();
+
+		this.suffixes = new HashSet<String>();
+		for (String suffix : ImageIO.getReaderFileSuffixes())
+			this.suffixes.add(suffix.toLowerCase(Locale.ENGLISH));
+	}
+
+	/**
+	 * How many images failed to load or process
+	 */
+	public int getFailed() {
+		return this.failed.get();
+	}
+
+	/**
+	 * How many images were processed (including the failed ones)
+	 */
+	public int getProcessed() {
+		return this.processed.get();
+	}
+
+	/**
+	 * Process all images in the directory and its subdirectories, returns when
+	 * all of them are done.
+	 *
+	 * @param csv
+	 *          per image stats, can be null
+	 * @param json
+	 *          per image and per group stats as JSON lines, can be null
+	 * @throws IOException
+	 *           when the directory can't be listed or the results can't be
+	 *           written, the first write failure is thrown after all images
+	 *           are done
+	 */
+	public void run(File directory, Writer csv, Writer json) throws IOException,
+			InterruptedException {
+		this.csv = csv;
+		this.json = json;
+		this.writeFailure.set(null);
+		if (csv != null) csv.write(CSV_HEADER + "\n");
+
+		final Semaphore permits = new Semaphore(2 * this.workers);
+		ExecutorService pool = Executors.newFixedThreadPool(this.workers);
+
+		try {
+			for (final File file : this.listImages(directory, new ArrayList<File>())) {
+				permits.acquire();
+				pool.execute(new Runnable() {
+					public void run() {
+						try {
+							process(file);
+						} finally {
+							permits.release();
+						}
+					}
+				});
+			}
+		} finally {
+			pool.shutdown();
+			pool.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+		}
+
+		IOException failure = this.writeFailure.get();
+		if (failure != null) throw failure;
+
+		if (csv != null) csv.flush();
+		if (json != null) json.flush();
+	}
+
+	/**
+	 * Process directory of images, results are written into CSV and JSON files
+	 *
+	 * @param args
+	 *          directory, CSV file, JSON file and count of workers (default
+	 *          count of cores)
+	 */
+	public static void main(String[] args) throws IOException, InterruptedException {
+		// before anything touches AWT, so MachineVision of each image doesn't make
+		// windows and dialogs on a machine with display
+		System.setProperty("java.awt.headless", "true");
+
+		if (args.length < 2) {
+			System.out.println("Usage: BatchRunner directory output.csv [output.json] [workers]");
+			return;
+		}
+
+		int workers = (args.length > 3) ? Integer.parseInt(args[3]) : Runtime.getRuntime()
+				.availableProcessors();
+
+		Writer csv = new FileWriter(args[1]);
+		Writer json = (args.length > 2) ? new FileWriter(args[2]) : null;
+		BatchRunner runner = new BatchRunner(workers, false, AUTO_THRESHOLD);
+
+		long start = System.nanoTime();
+		try {
+			runner.run(new File(args[0]), csv, json);
+		} finally {
+			csv.close();
+			if (json != null) json.close();
+		}
+
+		System.out.println("Images: " + runner.getProcessed() + " failed: " + runner.getFailed()
+				+ " in " + (System.nanoTime() - start) / 1000000 + "ms");
+	}
+
+	/**
+	 * Find all image files ImageIO can read, hidden files are skipped
+	 */
+	private List<File> listImages(File directory, List<File> images) throws IOException {
+		File[] files = directory.listFiles();
+		if (files == null) throw new IOException("Can't list " + directory);
+		Arrays.sort(files);
+
+		for (File file : files) {
+			if (file.getName().startsWith(".")) continue;
+
+			if (file.isDirectory()) {
+				this.listImages(file, images);
+			} else {
+				int dot = file.getName().lastIndexOf('.');
+				String suffix = file.getName().substring(dot + 1).toLowerCase(Locale.ENGLISH);
+				if (dot > 0 && this.suffixes.contains(suffix)) images.add(file);
+			}
+		}
+		return images;
+	}
+
+	/**
+	 * Label one image and write its stats, runs on the workers
+	 */
+	private void process(File file) {
+		long start = System.nanoTime();
+		StringBuilder line = new StringBuilder();
+		StringBuilder object = new StringBuilder();
+		String name = file.getPath();
+
+		try {
+			ConnectedComponentImage image = new ConnectedComponentImage(name, this.runLength,
+					this.autoThreshold);
+			Picture picture = image.getPicture();
+			long millis = (System.nanoTime() - start) / 1000000;
+
+			int smallest = Integer.MAX_VALUE, biggest = 0;
+			object.append("{\"file\":\"").append(escape(name)).append("\",\"width\":")
+					.append(picture.width()).append(",\"height\":").append(picture.height())
+					.append(",\"threshold\":").append(image.getThreshold()).append(",\"components\":")
+					.append(image.countComponents()).append(",\"groups\":[");
+
+			boolean first = true;
+			for (UnionGroup group : image.getUnion().getAllGroups()) {
+				if (group.isDisabled()) continue;
+				smallest = Math.min(smallest, group.getSize());
+				biggest = Math.max(biggest, group.getSize());
+
+				if (!first) object.append(',');
+				first = false;
+				object.append("{\"size\":").append(group.getSize()).append(",\"minX\":")
+						.append(group.getMinX()).append(",\"minY\":").append(group.getMinY())
+						.append(",\"maxX\":").append(group.getMaxX()).append(",\"maxY\":")
+						.append(group.getMaxY()).append('}');
+			}
+			object.append("],\"millis\":").append(millis).append("}\n");
+
+			if (image.countComponents() == 0) smallest = 0;
+			line.append(csvField(name)).append(',').append(picture.width()).append(',')
+					.append(picture.height()).append(',').append(image.countComponents()).append(',')
+					.append(smallest).append(',').append(biggest).append(',').append(millis)
+					.append(",\n");
+		} catch (RuntimeException | OutOfMemoryError e) {
+			// image too big for the heap is just one failed line as well and the
+			// worker goes on with the next one, other errors are not about the image
+			this.failed.incrementAndGet();
+			String error = (e.getMessage() != null) ? e.getMessage() : e.getClass().getSimpleName();
+
+			object.setLength(0);
+			object.append("{\"file\":\"").append(escape(name)).append("\",\"error\":\"")
+					.append(escape(error)).append("\"}\n");
+
+			line.setLength(0);
+			line.append(csvField(name)).append(",,,,,,,").append(csvField(error)).append('\n');
+		}
+
+		this.processed.incrementAndGet();
+		this.write(this.csv, line);
+		this.write(this.json, object);
+	}
+
+	/**
+	 * Whole lines are written at once, so lines from different workers don't
+	 * mix. Failure is kept for run() and the workers go on, so the images still
+	 * get counted.
+	 */
+	private void write(Writer out, CharSequence text) {
+		if (out == null) return;
+
+		synchronized (out) {
+			try {
+				out.append(text);
+			} catch (IOException e) {
+				this.writeFailure.compareAndSet(null, e);
+			}
+		}
+	}
+
+	private static String csvField(String value) {
+		if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) return value;
+		return "\"" + value.replace("\"", "\"\"") + "\"";
+	}
+
+	private static String escape(String value) {
+		StringBuilder out = new StringBuilder(value.length());
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			if (c == '"' || c == '\\') {
+				out.append('\\').append(c);
+			} else if (c < 0x20) {
+				out.append(String.format("\\u%04x", (int) c));
+			} else {
+				out.append(c);
+			}
+		}
+		return out.toString();
+	}
+
+}
@@ -0,0 +1,193 @@
+package eu.antonkrug;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Thresholding into packed bit mask, 64 pixels per long word. Each row starts
+ * on a new word (words(width) words per row), bit x % 64 of the word x / 64 is
+ * set for foreground pixels. Foreground is the same as populateTree uses,
+ * luminance at least the threshold, or below it when inversed.
+ *
+ * The kernel has no branch per pixel, the comparison is the sign bit of the
+ * difference between the fixed point luminance and the threshold, flipped for
+ * not inversed threshold and shifted into the word. The
+ * luminance of camera frames is first calculated for whole row into a small
+ * array, which is a plain arithmetic loop the JIT can vectorize, the packing
+ * loop then reads just that array.
+ *
+ * binarizeScalar is the straightforward version testing each pixel, kept as
+ * reference for the tests and the benchmark.
+ *
+ * Scratch rows are kept in the instance, so one Binarizer should be used by
+ * one thread and then it doesn't allocate anything for next frames.
+ *
+ * Final is used because it's not intended to extend this class and as in
+ * Effective Java book if I do not design and document for inheritance then I
+ * should prohibit it.
+ *
+ * @author Anton Krug
+ */
+public final class Binarizer {
+	public final static int	WORD_BITS	= 64;
+
+	private byte[]					rowBytes;
+	private char[]					rowLum;
+
+	// 8 bit luminance of the last camera frame, for OtsuThreshold
+	private final int[]			histogram	= new int[OtsuThreshold.BINS];
+
+	/**
+	 * Threshold the picture (its cached luminance plane) into the mask
+	 *
+	 * @param mask
+	 *          reused when it's big enough, otherwise new one is allocated
+	 * @return the mask with the result
+	 */
+	public long[] binarize(Picture pic, double threshold, Boolean inverse, long[] mask) {
+		mask = allocate(mask, words(pic.width()) * pic.height());
+		pack(pic, threshold, inverse, mask);
+		return mask;
+	}
+
+	/**
+	 * Threshold raw frame with R, G, B bytes per pixel (as given by
+	 * FrameSource) into the mask, without Picture of it
+	 *
+	 * @param mask
+	 *          reused when it's big enough, otherwise new one is allocated
+	 * @return the mask with the result
+	 */
+	public long[] binarize(ByteBuffer rgb, int width, int height, double threshold, Boolean inverse,
+			long[] mask) {
+		int words = words(width);
+		mask = allocate(mask, words * height);
+
+		if (this.rowLum == null || this.rowLum.length < width) {
+			this.rowBytes = new byte[width * 3];
+			this.rowLum = new char[width];
+		}
+		byte[] bytes = this.rowBytes;
+		char[] lum = this.rowLum;
+
+		int below = Picture.lumBelow(threshold);
+		int flip = inverse ? 0 : -1;
+
+		int[] histogram = this.histogram;
+		Arrays.fill(histogram, 0);
+
+		// absolute gets, the position of the buffer is not changed
+		ByteBuffer frame = rgb.duplicate();
+		for (int y = 0; y < height; y++) {
+			frame.position(rgb.position() + y * width * 3);
+			frame.get(bytes, 0, width * 3);
+
+			for (int x = 0, i = 0; x < width; x++, i += 3)
+				lum[x] = (char) Picture.lumFixed(bytes[i] & 0xFF, bytes[i + 1] & 0xFF, bytes[i + 2] & 0xFF);
+			if (y % OtsuThreshold.SAMPLE_STEP == 0) {
+				for (int x = 0; x < width; x++)
+					histogram[lum[x] >>> Picture.LUM_SHIFT]++;
+			}
+
+			pack(lum, 0, width, below, flip, mask, y * words);
+		}
+		return mask;
+	}
+
+	/**
+	 * Same result as binarize(Picture...), but testing pixel by pixel
+	 */
+	public static long[] binarizeScalar(Picture pic, double threshold, Boolean inverse, long[] mask) {
+		int width = pic.width();
+		int height = pic.height();
+		int words = words(width);
+		mask = allocate(mask, words * height);
+
+		char[] lum = pic.getLumPlane();
+		int below = Picture.lumBelow(threshold);
+
+		for (int y = 0; y < height; y++) {
+			int row = y * words;
+			for (int w = 0; w < words; w++)
+				mask[row + w] = 0;
+
+			for (int x = 0; x < width; x++) {
+				if ((lum[y * width + x] < below) == inverse) mask[row + (x >>> 6)] |= 1L << x;
+			}
+		}
+		return mask;
+	}
+
+	/**
+	 * Histogram of the 8 bit luminance of the last frame given to
+	 * binarize(ByteBuffer...), counted from the row of luminance while it's
+	 * still in the cache. Only every OtsuThreshold.SAMPLE_STEP row is counted,
+	 * counting all of them would slow down the binarization by quarter.
+	 *
+	 * @return the histogram, don't modify it
+	 */
+	public int[] getHistogram() {
+		return this.histogram;
+	}
+
+	/**
+	 * Is the pixel foreground in the mask
+	 */
+	public static boolean isSet(long[] mask, int width, int x, int y) {
+		return (mask[y * words(width) + (x >>> 6)] & (1L << x)) != 0;
+	}
+
+	/**
+	 * Count of words of one row of the mask
+	 */
+	public static int words(int width) {
+		return (width + WORD_BITS - 1) >>> 6;
+	}
+
+	/**
+	 * The picture kernel, doesn't need any scratch rows so Picture.toBinary can
+	 * use it without instance
+	 */
+	static void pack(Picture pic, double threshold, Boolean inverse, long[] mask) {
+		int width = pic.width();
+		int words = words(width);
+
+		char[] lum = pic.getLumPlane();
+		int below = Picture.lumBelow(threshold);
+		int flip = inverse ? 0 : -1;
+
+		for (int y = 0; y < pic.height(); y++)
+			pack(lum, y * width, width, below, flip, mask, y * words);
+	}
+
+	private static long[] allocate(long[] mask, int length) {
+		if (mask == null || mask.length < length) return new long[length];
+		return mask;
+	}
+
+	/**
+	 * Pack one row of luminance into the words, the bits after the end of the
+	 * row are 0. Words are filled from their last pixel, so each bit is just
+	 * shifted in at the bottom instead of shifting it by variable count.
+	 */
+	private static void pack(char[] lum, int from, int width, int below, int flip, long[] mask,
+			int word) {
+		int x = 0;
+		for (; x + WORD_BITS <= width; x += WORD_BITS, word++) {
+			int base = from + x;
+			long bits = 0;
+			for (int b = WORD_BITS - 1; b >= 0; b--)
+				bits = (bits << 1) | (((lum[base + b] - below) ^ flip) >>> 31);
+			mask[word] = bits;
+		}
+
+		if (x < width) {
+			int base = from + x;
+			long bits = 0;
+			for (int b = width - x - 1; b >= 0; b--)
+				bits = (bits << 1) | (((lum[base + b] - below) ^ flip) >>> 31);
+			mask[word] = bits;
+		}
+	}
+
+}
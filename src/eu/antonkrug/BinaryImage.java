@@ -0,0 +1,198 @@
+package eu.antonkrug;
+
+import java.util.Arrays;
+
+/**
+ * Black and white picture with one bit per pixel, rows are packed into long
+ * words the same way as the Binarizer mask (each row starts on a new word, bit
+ * x % 64 of the word x / 64 is the pixel x). Set bit is foreground.
+ *
+ * The bits after the end of each row are always 0, so whole words can be
+ * scanned and compared without masking the last one. Runs of foreground are
+ * found with Long.numberOfTrailingZeros over whole words instead of testing
+ * each pixel, which is what populateTree(BinaryImage) of the unions is using.
+ *
+ * Final is used because it's not intended to extend this class and as in
+ * Effective Java book if I do not design and document for inheritance then I
+ * should prohibit it.
+ *
+ * @author Anton Krug
+ */
+public final class BinaryImage {
+	private final int			width, height;
+	private final int			words;
+	private final long[]	bits;
+
+	/**
+	 * Empty (all background) image
+	 */
+	public BinaryImage(int width, int height) {
+		if (width <= 0 || height <= 0) throw new IllegalArgumentException("Size must be positive");
+
+		this.width = width;
+		this.height = height;
+		this.words = Binarizer.words(width);
+		this.bits = new long[this.words * height];
+	}
+
+	/**
+	 * Raw words, row y starts at y * words()
+	 */
+	public long[] bits() {
+		return this.bits;
+	}
+
+	/**
+	 * Set all pixels to background
+	 */
+	public void clear() {
+		Arrays.fill(this.bits, 0);
+	}
+
+	/**
+	 * Copy pixels of other image with the same size
+	 */
+	public void copy(BinaryImage source) {
+		if (!this.sameSize(source)) throw new IllegalArgumentException("Different size of images");
+		System.arraycopy(source.bits, 0, this.bits, 0, this.bits.length);
+	}
+
+	/**
+	 * Count of foreground pixels
+	 */
+	public int count() {
+		int count = 0;
+		for (long word : this.bits)
+			count += Long.bitCount(word);
+		return count;
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		if (!(other instanceof BinaryImage)) return false;
+		BinaryImage image = (BinaryImage) other;
+		return this.sameSize(image) && Arrays.equals(this.bits, image.bits);
+	}
+
+	public boolean get(int x, int y) {
+		return (this.bits[y * this.words + (x >>> 6)] & (1L << x)) != 0;
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * (31 * this.width + this.height) + Arrays.hashCode(this.bits);
+	}
+
+	public int height() {
+		return this.height;
+	}
+
+	/**
+	 * First background pixel in row y at x or after it, width when the row is
+	 * foreground till its end
+	 */
+	public int nextClear(int y, int x) {
+		if (x >= this.width) return this.width;
+
+		int row = y * this.words;
+		int w = x >>> 6;
+		long word = ~this.bits[row + w] & (-1L << x);
+		while (word == 0) {
+			if (++w == this.words) return this.width;
+			word = ~this.bits[row + w];
+		}
+		return Math.min(this.width, (w << 6) + Long.numberOfTrailingZeros(word));
+	}
+
+	/**
+	 * First foreground pixel in row y at x or after it, width when there is none
+	 */
+	public int nextSet(int y, int x) {
+		if (x >= this.width) return this.width;
+
+		int row = y * this.words;
+		int w = x >>> 6;
+		long word = this.bits[row + w] & (-1L << x);
+		while (word == 0) {
+			if (++w == this.words) return this.width;
+			word = this.bits[row + w];
+		}
+		return (w << 6) + Long.numberOfTrailingZeros(word);
+	}
+
+	public boolean sameSize(BinaryImage other) {
+		return this.width == other.width && this.height == other.height;
+	}
+
+	public void set(int x, int y, boolean foreground) {
+		if (foreground) {
+			this.bits[y * this.words + (x >>> 6)] |= 1L << x;
+		} else {
+			this.bits[y * this.words + (x >>> 6)] &= ~(1L << x);
+		}
+	}
+
+	/**
+	 * Draw the image as white foreground on black background into the picture
+	 * of the same size
+	 */
+	public void toPicture(Picture target) {
+		int[] raster = target.getRaster();
+		int index = 0;
+		for (int y = 0; y < this.height; y++) {
+			int row = y * this.words;
+			for (int x = 0; x < this.width; x++, index++) {
+				raster[index] = ((this.bits[row + (x >>> 6)] >>> x) & 1) != 0 ? 0xFFFFFF : 0;
+			}
+		}
+		target.invalidateLum();
+	}
+
+	public int width() {
+		return this.width;
+	}
+
+	/**
+	 * Count of words in one row
+	 */
+	public int words() {
+		return this.words;
+	}
+
+	/**
+	 * First pixel at x or after it which is foreground in both row y and the row
+	 * above it, width when there is none. Used to join runs of two rows.
+	 */
+	int nextJoint(int y, int x) {
+		if (x >= this.width) return this.width;
+
+		int row = y * this.words;
+		int top = row - this.words;
+		int w = x >>> 6;
+		long word = this.bits[row + w] & this.bits[top + w] & (-1L << x);
+		while (word == 0) {
+			if (++w == this.words) return this.width;
+			word = this.bits[row + w] & this.bits[top + w];
+		}
+		return (w << 6) + Long.numberOfTrailingZeros(word);
+	}
+
+	/**
+	 * First pixel at x or after it which is not foreground in both row y and
+	 * the row above it.
+	 */
+	int nextJointEnd(int y, int x) {
+		if (x >= this.width) return this.width;
+
+		int row = y * this.words;
+		int top = row - this.words;
+		int w = x >>> 6;
+		long word = ~(this.bits[row + w] & this.bits[top + w]) & (-1L << x);
+		while (word == 0) {
+			if (++w == this.words) return this.width;
+			word = ~(this.bits[row + w] & this.bits[top + w]);
+		}
+		return Math.min(this.width, (w << 6) + Long.numberOfTrailingZeros(word));
+	}
+
+}
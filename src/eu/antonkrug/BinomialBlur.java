@@ -0,0 +1,212 @@
+package eu.antonkrug;
+
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Binomial blur of the RGB raster, done in place and without allocating
+ * anything after the first call. The kernel is separable, the weights of each
+ * direction are the row of Pascal's triangle (1 2 1 for radius 1, 1 4 6 4 1
+ * for radius 2...), so first each row is summed horizontally and then the
+ * sums are summed vertically back into the raster.
+ *
+ * All 3 channels are summed at once, they are packed into one long by 21 bits
+ * each, the biggest sum of radius 3 (255 * 4^6) still fits into them, so no
+ * channel can overflow into the next one. The sums are not rounded, only
+ * divided at the end, so for radius 1 the result is exactly the same as the
+ * 3x3 ConvolveOp which was used before, pixels closer to the edge than radius
+ * are left as they are (EDGE_NO_OP).
+ *
+ * The picture is split into bands of rows, the horizontal pass of all bands is
+ * done in parallel, then the vertical one, because the vertical pass reads
+ * sums of the rows from the neighbouring bands. Bands and their scratch rows
+ * are kept, so one BinomialBlur should be used only for one picture (size) at
+ * time.
+ *
+ * Final is used because it's not intended to extend this class and as in
+ * Effective Java book if I do not design and document for inheritance then I
+ * should prohibit it.
+ *
+ * @author Anton Krug
+ */
+public final class BinomialBlur {
+	public final static int	MAX_RADIUS	= 3;
+
+	// bits of each channel in the packed sums
+	private final static int	FIELD				= 21;
+	private final static long	FIELD_MASK	= (1L << FIELD) - 1;
+
+	private final int					width, height;
+
+	// horizontal sums of each pixel
+	private final long[]			sums;
+	private final Band[]			bands;
+	private final RecursiveAction	all;
+
+	private int[]							raster;
+	private int[]							weights;
+	private int								radius;
+
+	public BinomialBlur(int width, int height) {
+		this.width = width;
+		this.height = height;
+		this.sums = new long[width * height];
+
+		// few bands per core so faster cores can take over work from slower ones
+		int count = Math.max(1, Math.min(WeightedQuickUnion.POOL.getParallelism() * 4, height
+				/ WeightedQuickUnion.STRIP_MIN_ROWS));
+		int rows = Math.max(1, (height + count - 1) / count);
+		count = Math.max(1, (height + rows - 1) / rows);
+
+		this.bands = new Band[count];
+		for (int i = 0; i < count; i++)
+			this.bands[i] = new Band(i * rows, Math.min(height, (i + 1) * rows));
+
+		this.all = new RecursiveAction() {
+			private static final long	serialVersionUID	= 1L;
+
+			protected void compute() {
+				invokeAll(bands);
+			}
+		};
+	}
+
+	/**
+	 * Blur the raster in place
+	 *
+	 * @param raster
+	 *          packed RGB pixels of width x height picture
+	 * @param radius
+	 *          1 to MAX_RADIUS, the kernel is 2 * radius + 1 pixels wide
+	 */
+	public void blur(int[] raster, int radius) {
+		if (radius < 1 || radius > MAX_RADIUS)
+			throw new IllegalArgumentException("Radius has to be 1 to " + MAX_RADIUS);
+		if (raster.length < this.width * this.height)
+			throw new IllegalArgumentException("Raster is smaller than the picture");
+
+		// too small picture is all edge
+		if (this.width <= 2 * radius || this.height <= 2 * radius) return;
+
+		if (this.radius != radius) this.weights = weights(radius);
+		this.raster = raster;
+		this.radius = radius;
+
+		for (int phase = 0; phase < 2; phase++) {
+			for (Band band : this.bands) {
+				band.reinitialize();
+				band.vertical = (phase == 1);
+			}
+
+			if (this.bands.length == 1) {
+				this.bands[0].compute();
+			} else {
+				this.all.reinitialize();
+				WeightedQuickUnion.POOL.invoke(this.all);
+			}
+		}
+		this.raster = null;
+	}
+
+	public int height() {
+		return this.height;
+	}
+
+	public int width() {
+		return this.width;
+	}
+
+	/**
+	 * The 3 channels of the pixel into 21 bit fields
+	 */
+	private static long pack(int pixel) {
+		return ((pixel & 0xFF0000L) << 26) | ((pixel & 0xFF00L) << 13) | (pixel & 0xFFL);
+	}
+
+	/**
+	 * Row 2 * radius of the Pascal's triangle
+	 */
+	private static int[] weights(int radius) {
+		int[] weights = new int[2 * radius + 1];
+		weights[0] = 1;
+		for (int n = 1; n < weights.length; n++)
+			for (int k = n; k > 0; k--)
+				weights[k] += weights[k - 1];
+		return weights;
+	}
+
+	/**
+	 * Rows yFrom to yTo (exclusive), horizontal pass sums all of them, vertical
+	 * pass writes only the ones which are not on the edge.
+	 */
+	private final class Band extends RecursiveAction {
+		private static final long	serialVersionUID	= 1L;
+
+		private final int					yFrom, yTo;
+		private final long[]			row;
+		private boolean						vertical;
+
+		private Band(int yFrom, int yTo) {
+			this.yFrom = yFrom;
+			this.yTo = yTo;
+			this.row = new long[width];
+		}
+
+		protected void compute() {
+			if (this.vertical) {
+				this.vertical();
+			} else {
+				this.horizontal();
+			}
+		}
+
+		private void horizontal() {
+			int r = radius;
+			int[] w = weights;
+			long[] row = this.row;
+
+			for (int y = this.yFrom; y < this.yTo; y++) {
+				int index = y * width;
+				for (int x = 0; x < width; x++)
+					row[x] = pack(raster[index + x]);
+
+				if (r == 1) {
+					for (int x = 1; x < width - 1; x++)
+						sums[index + x] = row[x - 1] + (row[x] << 1) + row[x + 1];
+				} else {
+					for (int x = r; x < width - r; x++) {
+						long sum = 0;
+						for (int k = 0; k < w.length; k++)
+							sum += w[k] * row[x - r + k];
+						sums[index + x] = sum;
+					}
+				}
+			}
+		}
+
+		private void vertical() {
+			int r = radius;
+			int[] w = weights;
+			int shift = 4 * r;
+
+			for (int y = Math.max(r, this.yFrom); y < Math.min(height - r, this.yTo); y++) {
+				int index = y * width;
+				for (int x = r; x < width - r; x++) {
+					long sum;
+					if (r == 1) {
+						sum = sums[index + x - width] + (sums[index + x] << 1) + sums[index + x + width];
+					} else {
+						sum = 0;
+						for (int k = 0, at = index + x - r * width; k < w.length; k++, at += width)
+							sum += w[k] * sums[at];
+					}
+
+					int red = (int) ((sum >>> (2 * FIELD)) >>> shift);
+					int green = (int) (((sum >>> FIELD) & FIELD_MASK) >>> shift);
+					int blue = (int) ((sum & FIELD_MASK) >>> shift);
+					raster[index + x] = (red << 16) | (green << 8) | blue;
+				}
+			}
+		}
+	}
+
+}
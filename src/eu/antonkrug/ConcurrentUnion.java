@@ -0,0 +1,590 @@
+package eu.antonkrug;
+
+import java.awt.Color;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Union-find which can be shared by many threads without locking. The forest
+ * is kept in AtomicIntegerArray, roots are linked by compare-and-set and find
+ * does path halving, also by compare-and-set, so any number of threads can
+ * call union and find at the same time.
+ *
+ * Root is always linked under root with bigger index, so links made at the
+ * same time by different threads can't create a cycle. It's not weighted,
+ * because the sizes are not known while the threads are joining groups. Group
+ * sizes and min/max are reduced by each strip on its own in flatten and merged
+ * together at the end, so the group meta data are valid only after flatten
+ * (populateTree does flatten as its last phase).
+ *
+ * populateTree labels in three phases over horizontal strips: pre-group rows,
+ * join rows with the row above (including the seam between strips, here the
+ * threads are joining shared groups concurrently) and flatten with the
+ * reduction.
+ *
+ * Final is used because it's not intended to extend this class and as in
+ * Effective Java book if I do not design and document for inheritance then I
+ * should prohibit it.
+ *
+ * @author Anton Krug
+ */
+public final class ConcurrentUnion implements Union {
+
+	// phases of the strip work
+	private final static int		PRE_GROUP	= 0;
+	private final static int		JOIN			= 1;
+	private final static int		REDUCE		= 2;
+
+	private AtomicIntegerArray	tree;
+	private TreeMeta						treeMeta;
+	private int									width, height;
+	private volatile Boolean		flat;
+
+	/**
+	 * Initializes an empty union-find data structure with N isolated components
+	 * -1 through N-1.
+	 *
+	 * @throws java.lang.IllegalArgumentException
+	 *           if N < 0
+	 * @param N
+	 *          the number of objects
+	 */
+	public ConcurrentUnion(int N) {
+		this.treeMeta = new TreeMeta(N);
+		this.tree = new AtomicIntegerArray(N);
+		this.reset(N);
+	}
+
+	/**
+	 * Initializes union-find structure big enough for given picture.
+	 *
+	 * @param pic
+	 *          the picture which will be processed
+	 */
+	public ConcurrentUnion(Picture pic) {
+		this(pic.width() * pic.height());
+	}
+
+	/**
+	 * Returns true if the the two sites are in the same component. When other
+	 * threads are doing union at the same time, false can be already outdated.
+	 */
+	public boolean connected(int p, int q) {
+		while (true) {
+			int rootP = find(p);
+			int rootQ = find(q);
+			if (rootP == rootQ) return true;
+
+			// rootP still being root means they were not connected at the time
+			if (this.tree.get(rootP) == rootP) return false;
+		}
+	}
+
+	/**
+	 * Colors of enabled groups at index root + 1, disabled groups get 0
+	 */
+	public void fillColorTable(int[] rootToRgb) {
+		this.treeMeta.colorTable(rootToRgb);
+	}
+
+	/**
+	 * Returns the component identifier for the component containing site, be
+	 * careful to not send a -1 <tt>p</tt>. Each visited site is pointed to its
+	 * grandparent, if another thread changed it in meantime the pointer is just
+	 * left as it is.
+	 */
+	public int find(int p) {
+		while (true) {
+			int parent = this.tree.get(p);
+			if (parent == p) return p;
+
+			int grand = this.tree.get(parent);
+			if (grand != parent) this.tree.compareAndSet(p, parent, grand);
+			p = grand;
+		}
+	}
+
+	/**
+	 * As find but it assumes the tree is flat
+	 */
+	public int findFlat(int p) {
+		return this.tree.get(p);
+	}
+
+	/**
+	 * Find stats are not collected, counting them from all the threads would be
+	 * the bottleneck.
+	 */
+	public void findStatsDisplay() {
+	}
+
+	/**
+	 * Will flatten all groups into weight 1 and reduce the groups meta data.
+	 */
+	public void flatten(Picture pic) {
+		this.flatten(pic.width(), pic.height());
+	}
+
+	public void flatten(int width, int height) {
+		this.width = width;
+		this.height = height;
+		this.runPhases(null, REDUCE);
+	}
+
+	public void generateColorsBySize(int min, int max) {
+		this.treeMeta.generateColorsBySize(min, max);
+	}
+
+	public void generateColorsRandom() {
+		this.treeMeta.generateColors();
+	}
+
+	/**
+	 * Groups as they were at the last flatten
+	 */
+	public Collection<UnionGroup> getAllGroups() {
+		return this.treeMeta.getAllGroups();
+	}
+
+	public Color getColorFlat(int index) {
+		return this.treeMeta.color(findFlat(index));
+	}
+
+	/**
+	 * Pixels of the groups are not packed, null
+	 */
+	public GroupPixels getGroupPixels() {
+		return null;
+	}
+
+	/**
+	 * Return collection of keys and values for each group as they were at the
+	 * last flatten
+	 */
+	public Set<Entry<Integer, UnionGroup>> getKeyValueGroups() {
+		return this.treeMeta.getKeyValueGroups();
+	}
+
+	public void groupStats() {
+		for (UnionGroup g : this.treeMeta.getAllGroups()) {
+			if (!g.isDisabled()) System.out.println(g);
+		}
+	}
+
+	/**
+	 * True if the tree was flattened and nothing was joined since
+	 */
+	public Boolean isFlat() {
+		return this.flat;
+	}
+
+	/**
+	 * Label the picture on all cores, foreground are pixels with luminance
+	 * above the threshold as in WeightedQuickUnion.
+	 */
+	public void populateTree(Picture pic, double threshold, Boolean verbose) {
+		this.width = pic.width();
+		this.height = pic.height();
+
+		// plane is cached lazily, so it has to be ready before strips start
+		Strip[] strips = this.strips();
+		char[] lum = pic.getLumPlane();
+		int above = Picture.lumAbove(threshold);
+		for (Strip strip : strips)
+			strip.lum(lum, above);
+
+		this.runPhases(strips, PRE_GROUP);
+
+		if (verbose) System.out.println("Strips: " + strips.length + " groups: "
+				+ this.treeMeta.getGroups());
+	}
+
+	/**
+	 * Label the binary image on all cores, strips are pre-grouped by scanning
+	 * the words of the image for runs.
+	 */
+	public void populateTree(BinaryImage image, Boolean verbose) {
+		this.width = image.width();
+		this.height = image.height();
+
+		Strip[] strips = this.strips();
+		for (Strip strip : strips)
+			strip.binary(image);
+
+		this.runPhases(strips, PRE_GROUP);
+
+		if (verbose) System.out.println("Strips: " + strips.length + " groups: "
+				+ this.treeMeta.getGroups());
+	}
+
+	/**
+	 * Fused thresholding and labeling of raw R, G, B frame on all cores, same
+	 * foreground as WeightedQuickUnion gives for the same frame.
+	 */
+	public void populateTree(ByteBuffer rgb, int width, int height, double threshold,
+			Boolean inverse, Boolean verbose) {
+		this.width = width;
+		this.height = height;
+
+		Strip[] strips = this.strips();
+		int below = Picture.lumBelow(threshold);
+		for (Strip strip : strips)
+			strip.rgb(rgb, below, inverse);
+
+		this.runPhases(strips, PRE_GROUP);
+
+		if (verbose) System.out.println("Strips: " + strips.length + " groups: "
+				+ this.treeMeta.getGroups());
+	}
+
+	public void reset(Picture pic) {
+		this.reset(pic.width() * pic.height());
+	}
+
+	/**
+	 * Forget all groups and make sure there is space for N elements
+	 */
+	public void reset(int N) {
+		if (N < 0) throw new IllegalArgumentException("N must be nonnegative");
+
+		this.flat = false;
+		if (this.tree.length() < N) this.tree = new AtomicIntegerArray(N);
+		for (int i = 0; i < N; i++)
+			this.tree.set(i, -1);
+
+		this.treeMeta.reset(N);
+	}
+
+	public int tree(int i) {
+		return this.tree.get(i);
+	}
+
+	/**
+	 * Joins the components containing the two sites, can be called from many
+	 * threads at the same time. Groups meta data are updated by next flatten.
+	 */
+	public void union(int p, int q) {
+		this.flat = false;
+		this.link(p, q);
+	}
+
+	/**
+	 * Root with smaller index is linked under the bigger one, if some other
+	 * thread linked it first, the roots are looked up again.
+	 */
+	private void link(int p, int q) {
+		while (true) {
+			int rootP = find(p);
+			int rootQ = find(q);
+
+			// they are the same, exit
+			if (rootP == rootQ) return;
+
+			if (rootP > rootQ) {
+				int tmp = rootP;
+				rootP = rootQ;
+				rootQ = tmp;
+			}
+
+			if (this.tree.compareAndSet(rootP, rootP, rootQ)) return;
+		}
+	}
+
+	/**
+	 * Run the strips trough phases from the given one to the reduction, and
+	 * merge the reduced groups into the meta data.
+	 */
+	private void runPhases(Strip[] strips, int from) {
+		if (strips == null) strips = this.strips();
+
+		for (int phase = from; phase <= REDUCE; phase++) {
+			for (Strip strip : strips) {
+				strip.reinitialize();
+				strip.phase = phase;
+			}
+
+			final Strip[] list = strips;
+			WeightedQuickUnion.POOL.invoke(new RecursiveAction() {
+				private static final long	serialVersionUID	= 1L;
+
+				protected void compute() {
+					invokeAll(list);
+				}
+			});
+		}
+
+		this.treeMeta.reset(this.width * this.height);
+		for (Strip strip : strips)
+			strip.groups.mergeInto(this.treeMeta);
+
+		this.flat = true;
+	}
+
+	/**
+	 * Split the picture into strips, few strips per core so faster cores can
+	 * take over work from slower ones
+	 */
+	private Strip[] strips() {
+		int count = Math.max(1, Math.min(WeightedQuickUnion.POOL.getParallelism() * 4,
+				this.height / WeightedQuickUnion.STRIP_MIN_ROWS));
+		int rows = Math.max(1, (this.height + count - 1) / count);
+		count = Math.max(1, (this.height + rows - 1) / rows);
+
+		Strip[] strips = new Strip[count];
+		for (int i = 0; i < count; i++)
+			strips[i] = new Strip(i * rows, Math.min(this.height, (i + 1) * rows));
+		return strips;
+	}
+
+	/**
+	 * Group sizes and min/max found by one strip, kept in small open addressing
+	 * hash table keyed by root, because the strip sees just few of the roots.
+	 */
+	private final static class Partial {
+		private int[]	keys;
+		private int[]	size, minX, maxX, minY, maxY;
+		private int		count;
+
+		private Partial() {
+			this.allocate(64);
+		}
+
+		/**
+		 * Add run of pixels belonging to the root
+		 */
+		private void add(int root, int xFrom, int xTo, int y) {
+			if (2 * (this.count + 1) > this.keys.length) this.grow();
+
+			int mask = this.keys.length - 1;
+			int slot = (root * 0x9E3779B9) >>> 1 & mask;
+			while (this.keys[slot] != root && this.keys[slot] >= 0)
+				slot = (slot + 1) & mask;
+
+			if (this.keys[slot] < 0) {
+				this.keys[slot] = root;
+				this.minX[slot] = xFrom;
+				this.maxX[slot] = xTo;
+				this.minY[slot] = y;
+				this.count++;
+			}
+
+			this.size[slot] += xTo - xFrom + 1;
+			if (xFrom < this.minX[slot]) this.minX[slot] = xFrom;
+			if (xTo > this.maxX[slot]) this.maxX[slot] = xTo;
+			this.maxY[slot] = y;
+		}
+
+		private void allocate(int length) {
+			this.keys = new int[length];
+			Arrays.fill(this.keys, -1);
+			this.size = new int[length];
+			this.minX = new int[length];
+			this.maxX = new int[length];
+			this.minY = new int[length];
+			this.maxY = new int[length];
+			this.count = 0;
+		}
+
+		private void grow() {
+			int[] keys = this.keys, size = this.size, minX = this.minX, maxX = this.maxX;
+			int[] minY = this.minY, maxY = this.maxY;
+
+			this.allocate(keys.length * 2);
+			for (int i = 0; i < keys.length; i++) {
+				if (keys[i] < 0) continue;
+
+				int mask = this.keys.length - 1;
+				int slot = (keys[i] * 0x9E3779B9) >>> 1 & mask;
+				while (this.keys[slot] >= 0)
+					slot = (slot + 1) & mask;
+
+				this.keys[slot] = keys[i];
+				this.size[slot] = size[i];
+				this.minX[slot] = minX[i];
+				this.maxX[slot] = maxX[i];
+				this.minY[slot] = minY[i];
+				this.maxY[slot] = maxY[i];
+				this.count++;
+			}
+		}
+
+		private void mergeInto(TreeMeta meta) {
+			for (int i = 0; i < this.keys.length; i++) {
+				int key = this.keys[i];
+				if (key < 0) continue;
+
+				if (meta.exists(key)) {
+					meta.setSize(key, meta.size(key) + this.size[i]);
+				} else {
+					meta.inc(key);
+					meta.setSize(key, this.size[i]);
+				}
+				meta.updateMinMax(key, this.minX[i], this.minY[i]);
+				meta.updateMinMax(key, this.maxX[i], this.maxY[i]);
+			}
+		}
+	}
+
+	/**
+	 * Horizontal strip of the picture, does the work of one phase each time it's
+	 * invoked.
+	 */
+	private final class Strip extends RecursiveAction {
+		private static final long	serialVersionUID	= 1L;
+
+		private final int					yFrom, yTo;
+		private int								phase;
+
+		// source of the foreground, either luminance plane or raw frame
+		private char[]						lum;
+		private int								above;
+		private ByteBuffer				rgb;
+		private int								below;
+		private boolean						invert;
+		private BinaryImage				image;
+
+		private Partial						groups;
+
+		private Strip(int yFrom, int yTo) {
+			this.yFrom = yFrom;
+			this.yTo = yTo;
+		}
+
+		protected void compute() {
+			if (this.phase == PRE_GROUP) {
+				this.preGroup();
+			} else if (this.phase == JOIN) {
+				this.joinRows();
+			} else {
+				this.reduce();
+			}
+		}
+
+		private void binary(BinaryImage image) {
+			this.image = image;
+		}
+
+		private void lum(char[] lum, int above) {
+			this.lum = lum;
+			this.above = above;
+		}
+
+		private void rgb(ByteBuffer rgb, int below, boolean invert) {
+			this.rgb = rgb;
+			this.below = below;
+			this.invert = invert;
+		}
+
+		/**
+		 * Rows are pre-grouped on their own, pixel points to the first pixel of
+		 * its run
+		 */
+		private void preGroup() {
+			if (this.image != null) {
+				this.preGroupRuns();
+				return;
+			}
+
+			int index = this.yFrom * width;
+			int offset = (this.rgb != null) ? this.rgb.position() + index * 3 : 0;
+
+			for (int y = this.yFrom; y < this.yTo; y++) {
+				int leftRoot = -1;
+				for (int x = 0; x < width; x++, index++, offset += 3) {
+					boolean foreground;
+					if (this.lum != null) {
+						foreground = this.lum[index] > this.above;
+					} else {
+						int l = Picture.lumFixed(this.rgb.get(offset) & 0xFF,
+								this.rgb.get(offset + 1) & 0xFF, this.rgb.get(offset + 2) & 0xFF);
+						foreground = (l < this.below) == this.invert;
+					}
+
+					if (foreground) {
+						if (leftRoot < 0) leftRoot = index;
+						tree.set(index, leftRoot);
+					} else {
+						tree.set(index, -1);
+						leftRoot = -1;
+					}
+				}
+			}
+		}
+
+		/**
+		 * Pre-group of the binary image, whole runs point to their first pixel
+		 */
+		private void preGroupRuns() {
+			for (int y = this.yFrom; y < this.yTo; y++) {
+				int index = y * width;
+				int x = 0;
+				while (x < width) {
+					int start = this.image.nextSet(y, x);
+					for (; x < start; x++)
+						tree.set(index + x, -1);
+					if (start == width) break;
+
+					int end = this.image.nextClear(y, start);
+					for (; x < end; x++)
+						tree.set(index + x, index + start);
+				}
+			}
+		}
+
+		/**
+		 * Join each row with the one above it, the first row is joined with the
+		 * last row of the strip above, while other threads can be joining the same
+		 * groups.
+		 */
+		private void joinRows() {
+			int yStart = Math.max(1, this.yFrom);
+			int index = yStart * width;
+			for (int y = yStart; y < this.yTo; y++) {
+				int top = index - width;
+				for (int x = 0; x < width; x++, index++, top++)
+					if (tree.get(index) >= 0 && tree.get(top) >= 0) link(top, index);
+			}
+		}
+
+		/**
+		 * Point each pixel straight to its root and count the groups seen by this
+		 * strip
+		 */
+		private void reduce() {
+			this.groups = new Partial();
+
+			// pre-grouped pixels share the parent, so the last lookup is cached
+			int cacheParent = -1;
+			int cacheRoot = -1;
+			int index = this.yFrom * width;
+			for (int y = this.yFrom; y < this.yTo; y++) {
+				int runRoot = -1, runFrom = 0;
+				for (int x = 0; x < width; x++, index++) {
+					int parent = tree.get(index);
+					int root = -1;
+					if (parent >= 0) {
+						if (parent != cacheParent) {
+							cacheParent = parent;
+							cacheRoot = find(parent);
+						}
+						root = cacheRoot;
+						if (parent != root) tree.set(index, root);
+					}
+
+					if (root != runRoot) {
+						if (runRoot >= 0) this.groups.add(runRoot, runFrom, x - 1, y);
+						runRoot = root;
+						runFrom = x;
+					}
+				}
+				if (runRoot >= 0) this.groups.add(runRoot, runFrom, width - 1, y);
+			}
+		}
+	}
+
+}
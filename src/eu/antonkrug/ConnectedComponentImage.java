@@ -10,8 +10,8 @@ import eu.antonkrug.Picture;
  *************************************************************************/
 public class ConnectedComponentImage {
 
-	private MachineVision				app;
-	private WeightedQuickUnion	union;
+	private MachineVision	app;
+	private Union					union;
 
 	/**
 	 * Initialise fields
@@ -19,15 +19,46 @@ public class ConnectedComponentImage {
 	 * @param fileLocation
 	 */
 	public ConnectedComponentImage(String fileLocation) {
+		this(fileLocation, false);
+	}
+
+	/**
+	 * Initialise fields and choose which union implementation will be used
+	 * 
+	 * @param fileLocation
+	 * @param runLength
+	 *          if true RunLengthUnion will be used instead of WeightedQuickUnion
+	 */
+	public ConnectedComponentImage(String fileLocation, Boolean runLength) {
+		this(fileLocation, runLength, false);
+	}
+
+	/**
+	 * Initialise fields, choose which union implementation will be used and if
+	 * the threshold is fixed or chosen for each image
+	 * 
+	 * @param fileLocation
+	 * @param runLength
+	 *          if true RunLengthUnion will be used instead of WeightedQuickUnion
+	 * @param autoThreshold
+	 *          if true the threshold is chosen by Otsu's method, otherwise it's
+	 *          70
+	 */
+	public ConnectedComponentImage(String fileLocation, Boolean runLength, Boolean autoThreshold) {
 		this.app = new MachineVision();
 
 		this.app.setThreshold(70);
 		this.app.setFileName(fileLocation);
 		this.app.loadImage(false);
 		this.app.blurInputImage();
+		if (autoThreshold) this.app.autoThreshold();
 		this.app.toBW(false);
 
-		this.union = new WeightedQuickUnion(this.app.getWidth() * this.app.getHeight());
+		if (runLength) {
+			this.union = new RunLengthUnion(this.app.getImage());
+		} else {
+			this.union = new WeightedQuickUnion(this.app.getWidth() * this.app.getHeight());
+		}
 		this.app.setUnion(union);
 
 		this.union.populateTree(this.app.getImage(), this.app.getThreshold(), false);
@@ -86,6 +117,24 @@ public class ConnectedComponentImage {
 		return this.app.getPreview();
 	}
 
+	/**
+	 * Threshold used for the labeling
+	 * 
+	 * @return
+	 */
+	public double getThreshold() {
+		return this.app.getThreshold();
+	}
+
+	/**
+	 * Get the labeled union, groups smaller than the minimal size are disabled
+	 *
+	 * @return
+	 */
+	public Union getUnion() {
+		return this.union;
+	}
+
 	/**
 	 * Returns a binarised version of the original image
 	 * 
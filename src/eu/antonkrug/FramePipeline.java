@@ -0,0 +1,396 @@
+package eu.antonkrug;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import eu.antonkrug.metrics.Counter;
+import eu.antonkrug.metrics.Histogram;
+import eu.antonkrug.metrics.Metrics;
+
+/**
+ * Processes webcam frames in stages running on their own threads, so the
+ * camera can grab next frame while the previous ones are still labeled and
+ * rendered:
+ *
+ * capture -> label -> filter (groups meta data and colors) -> render
+ *
+ * Stages are connected by bounded queues (ring buffers) and frames are
+ * recycled. Label stage keeps one union for all frames, so updateTree always
+ * compares the frame with the one just before it. The labels and groups are
+ * then copied into the union of the frame slot, which is reused for every
+ * frame going trough that slot, so filter and render work on their own copy
+ * while the next frame is labeled. When a stage falls behind the next stage either
+ * waits (back-pressure) or with dropOldest set the oldest waiting frame is
+ * thrown away and its slot recycled, so the latency of shown frame stays
+ * bounded.
+ *
+ * Render stage runs on the thread calling run() and is the only one touching
+ * the preview picture and the MachineVision given to the constructor. Filter
+ * stage has its own MachineVision, so the group stats are not shared between
+ * the threads.
+ *
+ * Final is used because it's not intended to extend this class and as in
+ * Effective Java book if I do not design and document for inheritance then I
+ * should prohibit it.
+ *
+ * @author Anton Krug
+ */
+public final class FramePipeline {
+	// render time, latency from capture to shown frame and dropped frames
+	private final static Metrics.Stage	METRIC_RENDER		= Metrics.get().stage("pipeline.render");
+	private final static Histogram			METRIC_LATENCY	= Metrics.get().histogram("pipeline.latency.nanos");
+	private final static Counter				METRIC_DROPPED	= Metrics.get().counter("pipeline.dropped");
+
+	private final MachineVision				app;
+	private final MachineVision				filter;
+	private final FrameSource					source;
+	private final Boolean							inverse;
+	private final Boolean							colorsBySize;
+	private final boolean							dropOldest;
+
+	private final BlockingQueue<Frame>	free;
+	private final BlockingQueue<Frame>	toLabel;
+	private final BlockingQueue<Frame>	toFilter;
+	private final BlockingQueue<Frame>	toRender;
+
+	private final AtomicInteger				dropped;
+	private final AtomicInteger				rendered;
+
+	// print the FPS stats every 10 frames, optionally with all the metrics
+	private volatile Boolean					verbose;
+	private volatile Boolean					metricsLog;
+
+	// used only by the label stage, when morphology or adaptive threshold is
+	// set the frame is thresholded into bits and cleaned before labeling
+	private volatile Morphology				morphology;
+	private volatile AdaptiveThreshold	adaptive;
+	private final Binarizer						binarizer;
+	private BinaryImage								binary;
+	private final WeightedQuickUnion	labeling;
+
+	// threshold chosen from the frames instead of the threshold of the app
+	private volatile OtsuThreshold		auto;
+
+	/**
+	 * @param app
+	 *          used for rendering, gives the threshold, minimal size of groups
+	 *          and the preview picture
+	 * @param source
+	 *          has to have at least ringSize + 2 buffers, because label stage
+	 *          keeps the frame until it's labeled
+	 * @param inverse
+	 *          label dark objects on light background (ball detection)
+	 * @param colorsBySize
+	 *          if not by size, then they will be random
+	 * @param ringSize
+	 *          capacity of each queue between the stages
+	 * @param dropOldest
+	 *          when the next stage queue is full, drop the oldest frame in it
+	 *          instead of waiting
+	 */
+	public FramePipeline(MachineVision app, FrameSource source, Boolean inverse,
+			Boolean colorsBySize, int ringSize, Boolean dropOldest) {
+		if (ringSize < 1) throw new IllegalArgumentException("ring size has to be at least 1");
+
+		this.app = app;
+		this.source = source;
+		this.inverse = inverse;
+		this.colorsBySize = colorsBySize;
+		this.dropOldest = dropOldest;
+		this.dropped = new AtomicInteger();
+		this.rendered = new AtomicInteger();
+		this.verbose = false;
+		this.metricsLog = false;
+		this.binarizer = new Binarizer();
+		this.binary = new BinaryImage(source.width(), source.height());
+		this.labeling = new WeightedQuickUnion(source.width() * source.height());
+
+		this.filter = new MachineVision();
+		this.filter.setGroupMinThreshold(app.getGroupMinThreshold());
+
+		this.toLabel = new ArrayBlockingQueue<Frame>(ringSize);
+		this.toFilter = new ArrayBlockingQueue<Frame>(ringSize);
+		this.toRender = new ArrayBlockingQueue<Frame>(ringSize);
+
+		// enough slots for full queues and one frame in hands of each stage, so
+		// capture never waits for a slot
+		int slots = 3 * ringSize + 4;
+		this.free = new ArrayBlockingQueue<Frame>(slots);
+		for (int i = 0; i < slots; i++)
+			this.free.add(new Frame(source.width() * source.height()));
+	}
+
+	/**
+	 * How many frames were thrown away by the drop-oldest policy
+	 */
+	public int getDropped() {
+		return this.dropped.get();
+	}
+
+	/**
+	 * How many frames were rendered, together with the dropped ones it's all
+	 * the frames given by the source
+	 */
+	public int getRendered() {
+		return this.rendered.get();
+	}
+
+	/**
+	 * Local thresholding of each frame instead of the threshold of the app, null
+	 * to use the threshold. Like with the morphology, the frames are then
+	 * labeled incrementally from the thresholded bits.
+	 */
+	public void setAdaptive(AdaptiveThreshold adaptive) {
+		this.adaptive = adaptive;
+	}
+
+	/**
+	 * Threshold chosen by Otsu's method and smoothed across the frames, each
+	 * frame is thresholded by the one chosen from the frames before it. Null to
+	 * use the threshold of the app.
+	 */
+	public void setAutoThreshold(OtsuThreshold auto) {
+		this.auto = auto;
+	}
+
+	/**
+	 * Pack pixels of each group while labeling, so the render stage colorizes
+	 * them without scanning their bounding boxes. Costs two ints per pixel in
+	 * the label stage and in each frame slot, off by default. Has to be set
+	 * before run(), while all the slots are free.
+	 */
+	public void setGroupPixels(Boolean enabled) {
+		this.labeling.setGroupPixels(enabled);
+		for (Frame frame : this.free)
+			frame.union.setGroupPixels(enabled);
+	}
+
+	/**
+	 * Print all labeling metrics as one JSON line together with the FPS stats,
+	 * only when verbose is set as well
+	 */
+	public void setMetricsLog(Boolean metricsLog) {
+		this.metricsLog = metricsLog;
+	}
+
+	/**
+	 * Morphology done on each thresholded frame before labeling, null to label
+	 * straight from the camera buffer. The cleaned bits are labeled
+	 * incrementally as well, only rows where they changed are labeled again.
+	 */
+	public void setMorphology(Morphology morphology) {
+		this.morphology = morphology;
+	}
+
+	/**
+	 * Print FPS, latency and render time every 10 frames, off by default. They
+	 * are recorded to the metrics either way.
+	 */
+	public void setVerbose(Boolean verbose) {
+		this.verbose = verbose;
+	}
+
+	/**
+	 * Start capture, label and filter threads and render the frames on the
+	 * calling thread. Returns when the source is closed.
+	 */
+	public void run() throws InterruptedException {
+		Thread[] workers = { new Thread(new Capture(), "pipeline-capture"),
+				new Thread(new Label(), "pipeline-label"), new Thread(new Filter(), "pipeline-filter") };
+
+		for (Thread worker : workers) {
+			worker.setDaemon(true);
+			worker.start();
+		}
+
+		int frameCount = 1;
+		long renderNanos = 0;
+		long latencyNanos = 0;
+		long last = System.nanoTime();
+
+		while (true) {
+			Frame frame = this.toRender.take();
+			if (frame.last) break;
+
+			long start = System.nanoTime(), bytes = Metrics.allocatedBytes();
+			this.app.setUnion(frame.union);
+			this.app.colorizeGroups(this.app.getPreview(), true, this.inverse);
+			this.app.getPreview().repaint();
+
+			long now = System.nanoTime();
+			METRIC_RENDER.recordSince(start, bytes);
+			METRIC_LATENCY.record(now - frame.captured);
+			renderNanos += now - start;
+			latencyNanos += now - frame.captured;
+			this.rendered.incrementAndGet();
+			this.recycle(frame);
+
+			// display stats every 10frames
+			if (this.verbose && (frameCount % 10) == 0) {
+				System.out.printf("FPS: %3d, latency: %3dms, render: %3dms, dropped: %d\n",
+						(int) (10e9 / (now - last)), latencyNanos / 10000000, renderNanos / 10000000,
+						this.dropped.get());
+				if (this.metricsLog) System.out.println(Metrics.get().toJson());
+				renderNanos = 0;
+				latencyNanos = 0;
+				last = now;
+			}
+			frameCount++;
+		}
+
+		for (Thread worker : workers)
+			worker.interrupt();
+	}
+
+	/**
+	 * Give frame to the next stage, when the queue is full either wait or drop
+	 * the oldest frame in it
+	 */
+	private void handOver(BlockingQueue<Frame> queue, Frame frame) throws InterruptedException {
+		if (!this.dropOldest || frame.last) {
+			queue.put(frame);
+			return;
+		}
+
+		while (!queue.offer(frame)) {
+			Frame oldest = queue.poll();
+			if (oldest != null) {
+				this.dropped.incrementAndGet();
+				METRIC_DROPPED.inc();
+				this.recycle(oldest);
+			}
+		}
+	}
+
+	/**
+	 * Return the camera buffer (if still held) and the slot for the next frame
+	 */
+	private void recycle(Frame frame) {
+		if (frame.pixels != null) {
+			this.source.release(frame.pixels);
+			frame.pixels = null;
+		}
+		this.free.add(frame);
+	}
+
+	/**
+	 * One slot going trough the pipeline, the union holds copy of the labels of
+	 * the frame and is reused for all the frames passing trough this slot.
+	 */
+	private final static class Frame {
+		private final WeightedQuickUnion	union;
+		private ByteBuffer								pixels;
+		private long											captured;
+		private boolean										last;
+
+		private Frame(int N) {
+			this.union = new WeightedQuickUnion(N);
+		}
+	}
+
+	/**
+	 * Grabs frames from the source, when it's closed the last frame is sent
+	 * trough the pipeline so the render stage can finish.
+	 */
+	private final class Capture implements Runnable {
+		public void run() {
+			try {
+				while (true) {
+					Frame frame = free.take();
+					frame.pixels = source.acquire();
+					frame.captured = System.nanoTime();
+					frame.last = (frame.pixels == null);
+
+					handOver(toLabel, frame);
+					if (frame.last) return;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Thresholds and labels the frame straight from the camera buffer, the
+	 * buffer is released as soon as possible so capture can reuse it.
+	 */
+	private final class Label implements Runnable {
+		public void run() {
+			try {
+				while (true) {
+					Frame frame = toLabel.take();
+					Morphology cleanup = morphology;
+					AdaptiveThreshold local = adaptive;
+					OtsuThreshold otsu = auto;
+					double threshold = (otsu != null) ? otsu.getThreshold() : app.getThreshold();
+
+					if (!frame.last && (cleanup != null || local != null)) {
+						if (local != null) {
+							binary = local.threshold(frame.pixels, source.width(), source.height(), inverse,
+									binary);
+						} else {
+							binarizer.binarize(frame.pixels, source.width(), source.height(), threshold,
+									inverse, binary.bits());
+							if (otsu != null) otsu.update(binarizer.getHistogram());
+						}
+						source.release(frame.pixels);
+						frame.pixels = null;
+
+						// tree is flat afterwards, rows with the same bits are not labeled again
+						if (cleanup != null) cleanup.apply(binary);
+						labeling.updateTree(binary, false);
+					} else if (!frame.last) {
+						// tree is flat afterwards, unchanged rows since the previous frame are
+						// not labeled again
+						labeling.setLumHistogram(otsu != null ? OtsuThreshold.SAMPLE_STEP : 0);
+						labeling.updateTree(frame.pixels, source.width(), source.height(), threshold,
+								inverse, false);
+						source.release(frame.pixels);
+						frame.pixels = null;
+						// histogram is counted while labeling, used from the next frame
+						if (otsu != null) otsu.update(labeling.getLumHistogram());
+					}
+
+					// the next frame is labeled into the same union, later stages get copy
+					if (!frame.last) frame.union.copy(labeling, source.width() * source.height());
+
+					handOver(toFilter, frame);
+					if (frame.last) return;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Disables too small groups and generates colors of the rest
+	 */
+	private final class Filter implements Runnable {
+		public void run() {
+			try {
+				while (true) {
+					Frame frame = toFilter.take();
+					if (!frame.last) {
+						filter.setUnion(frame.union);
+						filter.disableSmallGroups();
+
+						if (colorsBySize) {
+							frame.union.generateColorsBySize(filter.getGroupSmallest(), filter.getGroupBiggest());
+						} else {
+							frame.union.generateColorsRandom();
+						}
+					}
+
+					handOver(toRender, frame);
+					if (frame.last) return;
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+}
@@ -0,0 +1,28 @@
+package eu.antonkrug;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Source of raw frames which can be labeled by Union.populateTree(ByteBuffer,
+ * ...) without making BufferedImage or Picture of them.
+ * 
+ * Frame returned by acquire is R, G, B bytes per pixel row by row, starting at
+ * the position of the buffer. It's valid only until it's given back by
+ * release, the source can't overwrite the memory of the frame before that.
+ * When the source runs out of free buffers the acquire waits until some frame
+ * is released.
+ * 
+ * @author Anton Krug
+ */
+public interface FrameSource {
+
+	// null when there are no more frames (camera was closed)
+	public ByteBuffer acquire();
+
+	public void release(ByteBuffer frame);
+
+	public int width();
+
+	public int height();
+
+}
@@ -0,0 +1,50 @@
+package eu.antonkrug;
+
+import java.awt.Color;
+
+/**
+ * Meta data of groups which the UnionGroup views point into. TreeMeta keeps
+ * them in arrays indexed by the root of the group, LabelMap reads them from
+ * its group table indexed by the number of the group, so the views don't need
+ * the data copied into TreeMeta.
+ *
+ * The group parameter is whatever the storage is indexed by, root(group)
+ * gives the root (key) of the group.
+ *
+ * @author Anton Krug
+ */
+interface GroupMeta {
+
+	public int root(int group);
+
+	public int size(int group);
+
+	public int minX(int group);
+
+	public int maxX(int group);
+
+	public int minY(int group);
+
+	public int maxY(int group);
+
+	public Color color(int group);
+
+	public boolean isDisabled(int group);
+
+	public void setColor(int group, Color color);
+
+	public void setDisabled(int group, boolean disabled);
+
+	public void setSize(int group, int size);
+
+	public void setMinX(int group, int minX);
+
+	public void setMaxX(int group, int maxX);
+
+	public void setMinY(int group, int minY);
+
+	public void setMaxY(int group, int maxY);
+
+	public void updateMinMax(int group, int x, int y);
+
+}
@@ -0,0 +1,120 @@
+package eu.antonkrug;
+
+/**
+ * Pixels of each group packed together (compressed sparse rows), so the
+ * colorizing, stats or export of a group can go just trough its own pixels
+ * instead of scanning whole bounding box and testing the root of each pixel.
+ * For concave or diagonal groups the box is mostly background or other
+ * groups, and boxes of groups overlap, so the same pixels were tested many
+ * times.
+ *
+ * The sizes of the groups are known before flatten, so the start of each
+ * group in the packed array is just the sum of sizes of the groups before it.
+ * Then flatten appends each pixel to its group as it visits it (counting sort
+ * in one pass), pixels of the group are in the order of rows.
+ *
+ * Arrays are indexed by the root of the group the same way as TreeMeta, they
+ * are reused for next frames when they are big enough.
+ *
+ * Final is used because it's not intended to extend this class and as in
+ * Effective Java book if I do not design and document for inheritance then I
+ * should prohibit it.
+ *
+ * @author Anton Krug
+ */
+public final class GroupPixels {
+	private TreeMeta	meta;
+
+	// indexes of pixels, grouped by the root
+	private int[]			pixels;
+
+	// end of each group in pixels, while filling it's the next free place
+	private int[]			end;
+
+	/**
+	 * @param N
+	 *          the number of pixels
+	 */
+	public GroupPixels(int N) {
+		this.pixels = new int[N];
+		this.end = new int[N];
+	}
+
+	/**
+	 * Position after the last pixel of the group in pixels()
+	 *
+	 * @param key
+	 *          root of the group
+	 */
+	public int end(int key) {
+		return this.end[key];
+	}
+
+	/**
+	 * Packed indexes of pixels of all groups, the array can be longer than the
+	 * count of foreground pixels. Don't change it.
+	 */
+	public int[] pixels() {
+		return this.pixels;
+	}
+
+	/**
+	 * Position of the first pixel of the group in pixels()
+	 *
+	 * @param key
+	 *          root of the group
+	 */
+	public int start(int key) {
+		return this.end[key] - this.meta.size(key);
+	}
+
+	/**
+	 * Pixel appended to its group, called by flatten for each foreground pixel
+	 */
+	void add(int root, int index) {
+		this.pixels[this.end[root]++] = index;
+	}
+
+	/**
+	 * Make this a copy of the source, the meta has to be a copy of the meta of
+	 * the source (same keys in the same order). Only the packed part of the
+	 * pixels is copied.
+	 */
+	void copy(GroupPixels source, TreeMeta meta) {
+		if (this.pixels.length < source.pixels.length) {
+			this.pixels = new int[source.pixels.length];
+			this.end = new int[source.pixels.length];
+		}
+
+		this.meta = meta;
+		int packed = 0;
+		for (int i = 0; i < meta.getGroups(); i++) {
+			int key = meta.key(i);
+			this.end[key] = source.end[key];
+			packed += meta.size(key);
+		}
+		System.arraycopy(source.pixels, 0, this.pixels, 0, packed);
+	}
+
+	/**
+	 * Make space for the groups as they are in the meta data now, the sizes
+	 * have to be final
+	 */
+	void begin(TreeMeta meta, int N) {
+		if (this.pixels.length < N) {
+			this.pixels = new int[N];
+			this.end = new int[N];
+		}
+
+		this.meta = meta;
+		meta.compact();
+
+		int offset = 0;
+		for (int i = 0; i < meta.getGroups(); i++) {
+			int key = meta.key(i);
+			this.end[key] = offset;
+			offset += meta.size(key);
+		}
+	}
+
+}
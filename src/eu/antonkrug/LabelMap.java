@@ -0,0 +1,516 @@
+package eu.antonkrug;
+
+import java.awt.Color;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * Flattened labels and the group table of a labeled picture saved into a file,
+ * so it can be labeled once and then queried by other processes without
+ * labeling it again. The file is memory mapped and all queries read straight
+ * from the mapped memory, nothing is copied on the heap when it's opened and
+ * the pages are shared by all processes which have it open.
+ *
+ * File layout, all values are big endian ints:
+ *
+ * header: MAGIC, VERSION, width, height, count of groups
+ *
+ * labels: root of each pixel (row by row), -1 for background
+ *
+ * groups: key (root), size, minX, minY, maxX, maxY, disabled (1 or 0) for each
+ * group, sorted by the key, so the group of a pixel is found by binary search
+ *
+ * The map is read only, populateTree, reset, union and flatten throw
+ * UnsupportedOperationException. The UnionGroup views of getAllGroups and
+ * getKeyValueGroups read straight from the group table, by the number of the
+ * group. Only what MachineVision changes when it renders the map (colors and
+ * disabled flags) is kept on the heap, in arrays as long as the count of
+ * groups, and only after it was changed. One mapping is limited to 2GB, so the
+ * picture can have about 500 million pixels.
+ *
+ * Final is used because it's not intended to extend this class and as in
+ * Effective Java book if I do not design and document for inheritance then I
+ * should prohibit it.
+ *
+ * @author Anton Krug
+ */
+public final class LabelMap implements Union {
+	public final static int	MAGIC					= 0x554C424C;	// "ULBL"
+	public final static int	VERSION				= 2;
+
+	private final static int	HEADER_INTS		= 5;
+	private final static int	GROUP_INTS		= 7;
+
+	// offsets of the values inside group record
+	private final static int	GROUP_KEY			= 0;
+	private final static int	GROUP_SIZE		= 1;
+	private final static int	GROUP_MIN_X		= 2;
+	private final static int	GROUP_MIN_Y		= 3;
+	private final static int	GROUP_MAX_X		= 4;
+	private final static int	GROUP_MAX_Y		= 5;
+	private final static int	GROUP_DISABLED	= 6;
+
+	private final int					width, height;
+	private final int					groups;
+	private final IntBuffer		labels;
+	private final IntBuffer		groupTable;
+	private final GroupMeta		groupMeta;
+
+	// indexed by the number of the group, allocated when first set
+	private Color[]						colors;
+	private boolean[]					disabled;
+
+	private LabelMap(ByteBuffer buffer) throws IOException {
+		IntBuffer ints = buffer.asIntBuffer();
+		if (ints.limit() < HEADER_INTS || ints.get(0) != MAGIC)
+			throw new IOException("Not a label map file");
+		if (ints.get(1) != VERSION) throw new IOException("Unsupported label map version " + ints.get(1));
+
+		this.width = ints.get(2);
+		this.height = ints.get(3);
+		this.groups = ints.get(4);
+
+		long pixels = (long) this.width * this.height;
+		if (this.width < 0 || this.height < 0 || this.groups < 0
+				|| ints.limit() != HEADER_INTS + pixels + (long) this.groups * GROUP_INTS)
+			throw new IOException("Label map file is truncated or corrupted");
+
+		ints.position(HEADER_INTS).limit(HEADER_INTS + (int) pixels);
+		this.labels = ints.slice();
+		ints.limit(ints.capacity()).position(HEADER_INTS + (int) pixels);
+		this.groupTable = ints.slice();
+		this.groupMeta = new Groups();
+	}
+
+	/**
+	 * Map the label map file read only
+	 */
+	public static LabelMap open(File file) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			// the mapping stays valid after the channel is closed
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return new LabelMap(buffer);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Save labels and groups of flattened union into the file, the file is
+	 * written trough mapped memory as well.
+	 *
+	 * @param union
+	 *          has to be flat, only the groups and roots are stored, not the trees
+	 * @param width
+	 *          of the labeled picture
+	 * @param height
+	 *          of the labeled picture
+	 */
+	public static void write(Union union, int width, int height, File file) throws IOException {
+		if (!union.isFlat()) throw new IllegalStateException("Union has to be flattened first");
+
+		Collection<UnionGroup> all = union.getAllGroups();
+		UnionGroup[] sorted = all.toArray(new UnionGroup[all.size()]);
+		Arrays.sort(sorted, new Comparator<UnionGroup>() {
+			public int compare(UnionGroup a, UnionGroup b) {
+				return (a.getKey() < b.getKey()) ? -1 : ((a.getKey() == b.getKey()) ? 0 : 1);
+			}
+		});
+
+		long length = 4L * (HEADER_INTS + (long) width * height + (long) sorted.length * GROUP_INTS);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			FileChannel channel = raf.getChannel();
+			raf.setLength(length);
+			MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+			IntBuffer ints = buffer.asIntBuffer();
+
+			ints.put(MAGIC).put(VERSION).put(width).put(height).put(sorted.length);
+
+			for (int i = 0; i < width * height; i++)
+				ints.put(union.tree(i) >= 0 ? union.findFlat(i) : -1);
+
+			for (UnionGroup group : sorted) {
+				ints.put(group.getKey()).put(group.getSize()).put(group.getMinX())
+						.put(group.getMinY()).put(group.getMaxX()).put(group.getMaxY())
+						.put(group.isDisabled() ? 1 : 0);
+			}
+
+			buffer.force();
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Both sites are in the same group, background is not connected to anything
+	 */
+	public boolean connected(int p, int q) {
+		int root = this.labels.get(p);
+		return root >= 0 && root == this.labels.get(q);
+	}
+
+	/**
+	 * Colors of enabled groups at index root + 1, disabled groups get 0
+	 */
+	public void fillColorTable(int[] rootToRgb) {
+		for (int group = 0; group < this.groups; group++) {
+			Color color = this.groupMeta.color(group);
+			rootToRgb[this.getGroupKey(group) + 1] = (this.groupMeta.isDisabled(group) || color == null) ? 0
+					: color.getRGB() & 0xFFFFFF;
+		}
+	}
+
+	/**
+	 * Returns the root of the site, or -1 for background
+	 */
+	public int find(int p) {
+		return this.labels.get(p);
+	}
+
+	/**
+	 * Same as find, the map is always flat
+	 */
+	public int findFlat(int p) {
+		return this.labels.get(p);
+	}
+
+	/**
+	 * There are no find stats, the labels are just read from the map
+	 */
+	public void findStatsDisplay() {
+	}
+
+	public void flatten(Picture pic) {
+		throw new UnsupportedOperationException("Label map is read only");
+	}
+
+	public void flatten(int width, int height) {
+		throw new UnsupportedOperationException("Label map is read only");
+	}
+
+	public void generateColorsBySize(int min, int max) {
+		float range = max - min;
+		for (UnionGroup group : this.getAllGroups())
+			group.generateColorRainbow((group.getSize() - min) / range);
+	}
+
+	public void generateColorsRandom() {
+		for (UnionGroup group : this.getAllGroups())
+			group.generateColor();
+	}
+
+	/**
+	 * Return collection with views of all groups in order of their keys
+	 */
+	public Collection<UnionGroup> getAllGroups() {
+		return new AbstractCollection<UnionGroup>() {
+			public Iterator<UnionGroup> iterator() {
+				return new GroupIterator<UnionGroup>() {
+					UnionGroup view(int group) {
+						return new UnionGroup(groupMeta, group);
+					}
+				};
+			}
+
+			public int size() {
+				return groups;
+			}
+		};
+	}
+
+	/**
+	 * Color of the group of the site, null for background. The group is found
+	 * by binary search, so for whole picture fillColorTable is faster.
+	 */
+	public Color getColorFlat(int index) {
+		int group = this.groupOf(index);
+		return (group < 0) ? null : this.groupMeta.color(group);
+	}
+
+	/*
+	 * Zero copy access to the group table, groups are indexed from 0 to
+	 * getGroupCount()-1 in order of their keys
+	 */
+
+	public int getGroupCount() {
+		return this.groups;
+	}
+
+	public int getGroupKey(int group) {
+		return this.groupTable.get(group * GROUP_INTS + GROUP_KEY);
+	}
+
+	public int getGroupMaxX(int group) {
+		return this.groupTable.get(group * GROUP_INTS + GROUP_MAX_X);
+	}
+
+	public int getGroupMaxY(int group) {
+		return this.groupTable.get(group * GROUP_INTS + GROUP_MAX_Y);
+	}
+
+	public int getGroupMinX(int group) {
+		return this.groupTable.get(group * GROUP_INTS + GROUP_MIN_X);
+	}
+
+	public int getGroupMinY(int group) {
+		return this.groupTable.get(group * GROUP_INTS + GROUP_MIN_Y);
+	}
+
+	public int getGroupSize(int group) {
+		return this.groupTable.get(group * GROUP_INTS + GROUP_SIZE);
+	}
+
+	/**
+	 * Disabled flag as it was saved, not changed by setDisabled of the views
+	 */
+	public boolean isGroupDisabled(int group) {
+		return this.groupTable.get(group * GROUP_INTS + GROUP_DISABLED) != 0;
+	}
+
+	/**
+	 * Pixels of the groups are not packed, null
+	 */
+	public GroupPixels getGroupPixels() {
+		return null;
+	}
+
+	/**
+	 * Return collection of keys and views for each group in order of the keys
+	 */
+	public Set<Entry<Integer, UnionGroup>> getKeyValueGroups() {
+		return new AbstractSet<Entry<Integer, UnionGroup>>() {
+			public Iterator<Entry<Integer, UnionGroup>> iterator() {
+				return new GroupIterator<Entry<Integer, UnionGroup>>() {
+					Entry<Integer, UnionGroup> view(int group) {
+						return new AbstractMap.SimpleImmutableEntry<Integer, UnionGroup>(getGroupKey(group),
+								new UnionGroup(groupMeta, group));
+					}
+				};
+			}
+
+			public int size() {
+				return groups;
+			}
+		};
+	}
+
+	/**
+	 * Index of the group the site belongs to, found by binary search in the group
+	 * table
+	 *
+	 * @return -1 for background
+	 */
+	public int groupOf(int p) {
+		int key = this.labels.get(p);
+		if (key < 0) return -1;
+
+		int low = 0;
+		int high = this.groups - 1;
+		while (low <= high) {
+			int middle = (low + high) >>> 1;
+			int middleKey = this.getGroupKey(middle);
+
+			if (middleKey < key) {
+				low = middle + 1;
+			} else if (middleKey > key) {
+				high = middle - 1;
+			} else {
+				return middle;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Print stats of all groups
+	 */
+	public void groupStats() {
+		for (UnionGroup g : this.getAllGroups()) {
+			if (!g.isDisabled()) System.out.println(g);
+		}
+	}
+
+	public int height() {
+		return this.height;
+	}
+
+	public Boolean isFlat() {
+		return true;
+	}
+
+	/**
+	 * Label the image and save the map, or print the groups of saved map
+	 *
+	 * @param args
+	 *          image, threshold and output file to label, or just the label map
+	 *          file to print it
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length == 3) {
+			Picture pic = new Picture(args[0]);
+			WeightedQuickUnion union = new WeightedQuickUnion(pic);
+			union.populateTree(pic, Double.parseDouble(args[1]), false);
+			union.flatten(pic);
+			LabelMap.write(union, pic.width(), pic.height(), new File(args[2]));
+		} else if (args.length == 1) {
+			LabelMap map = LabelMap.open(new File(args[0]));
+			System.out.println("Label map " + map.width() + "x" + map.height() + " groups: "
+					+ map.getGroupCount());
+			map.groupStats();
+		} else {
+			System.out.println("Usage: LabelMap image threshold output | LabelMap labels");
+		}
+	}
+
+	public void populateTree(BinaryImage image, Boolean verbose) {
+		throw new UnsupportedOperationException("Label map is read only");
+	}
+
+	public void populateTree(ByteBuffer rgb, int width, int height, double threshold,
+			Boolean inverse, Boolean verbose) {
+		throw new UnsupportedOperationException("Label map is read only");
+	}
+
+	public void populateTree(Picture pic, double threshold, Boolean verbose) {
+		throw new UnsupportedOperationException("Label map is read only");
+	}
+
+	public void reset(int N) {
+		throw new UnsupportedOperationException("Label map is read only");
+	}
+
+	public void reset(Picture pic) {
+		throw new UnsupportedOperationException("Label map is read only");
+	}
+
+	public int tree(int i) {
+		return this.labels.get(i);
+	}
+
+	public void union(int p, int q) {
+		throw new UnsupportedOperationException("Label map is read only");
+	}
+
+	public int width() {
+		return this.width;
+	}
+
+	/**
+	 * Walks trough the groups in order of their keys
+	 */
+	private abstract class GroupIterator<T> implements Iterator<T> {
+		private int	group	= 0;
+
+		public boolean hasNext() {
+			return this.group < groups;
+		}
+
+		public T next() {
+			if (!this.hasNext()) throw new NoSuchElementException();
+			return this.view(this.group++);
+		}
+
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+
+		abstract T view(int group);
+	}
+
+	/**
+	 * Meta data of the views, read from the group table. Bounding box and size
+	 * can't be changed, colors and disabled flags are kept in the arrays of the
+	 * map.
+	 */
+	private final class Groups implements GroupMeta {
+
+		public int root(int group) {
+			return getGroupKey(group);
+		}
+
+		public int size(int group) {
+			return getGroupSize(group);
+		}
+
+		public int minX(int group) {
+			return getGroupMinX(group);
+		}
+
+		public int maxX(int group) {
+			return getGroupMaxX(group);
+		}
+
+		public int minY(int group) {
+			return getGroupMinY(group);
+		}
+
+		public int maxY(int group) {
+			return getGroupMaxY(group);
+		}
+
+		public Color color(int group) {
+			return (colors != null) ? colors[group] : null;
+		}
+
+		public boolean isDisabled(int group) {
+			return (disabled != null) ? disabled[group] : isGroupDisabled(group);
+		}
+
+		public void setColor(int group, Color color) {
+			if (colors == null) colors = new Color[groups];
+			colors[group] = color;
+		}
+
+		public void setDisabled(int group, boolean flag) {
+			if (disabled == null) {
+				disabled = new boolean[groups];
+				for (int i = 0; i < groups; i++)
+					disabled[i] = isGroupDisabled(i);
+			}
+			disabled[group] = flag;
+		}
+
+		public void setSize(int group, int size) {
+			throw new UnsupportedOperationException("Label map is read only");
+		}
+
+		public void setMinX(int group, int minX) {
+			throw new UnsupportedOperationException("Label map is read only");
+		}
+
+		public void setMaxX(int group, int maxX) {
+			throw new UnsupportedOperationException("Label map is read only");
+		}
+
+		public void setMinY(int group, int minY) {
+			throw new UnsupportedOperationException("Label map is read only");
+		}
+
+		public void setMaxY(int group, int maxY) {
+			throw new UnsupportedOperationException("Label map is read only");
+		}
+
+		public void updateMinMax(int group, int x, int y) {
+			throw new UnsupportedOperationException("Label map is read only");
+		}
+	}
+
+}
@@ -1,5 +1,6 @@
 package eu.antonkrug;
 
+import java.awt.GraphicsEnvironment;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.util.Map;
@@ -14,6 +15,7 @@ import javax.swing.event.ChangeListener;
 import javax.swing.filechooser.FileFilter;
 
 import edu.princeton.cs.introcs.Stopwatch;
+import eu.antonkrug.metrics.Metrics;
 
 /**
  * This is the main class and uses union to joint all the points, can call
@@ -32,8 +34,23 @@ public final class MachineVision implements ChangeListener {
 
 	public final static Boolean	VERBOSE			= true;
 	public final static Boolean	FAST_START	= false;
+	public final static Boolean	PARALLEL		= true;
+	public final static Boolean	RUN_LENGTH	= false;
+	// open the thresholded image before labeling, removes specks of noise
+	public final static Boolean	MORPHOLOGY	= false;
+	// threshold each pixel by its surroundings, for unevenly lit pictures
+	public final static Boolean	ADAPTIVE		= false;
+	// threshold by Otsu's method instead of the slider dialog
+	public final static Boolean	AUTO_THRESHOLD	= false;
+	// pack pixels of each group while flattening, so colorizeGroups doesn't
+	// scan their bounding boxes (two ints per pixel)
+	public final static Boolean	GROUP_PIXELS	= false;
 	private final static double	QUATER_PI		= Math.PI / 4f;
 
+	private final static Metrics.Stage	METRIC_FILTER		= Metrics.get().stage("disableSmallGroups");
+	private final static Metrics.Stage	METRIC_COLORIZE	= Metrics.get().stage("colorizeGroups");
+	private final static Metrics.Stage	METRIC_LINEAR		= Metrics.get().stage("colorizeLinear");
+
 	/**
 	 * Kick starts the application in one common setup
 	 * 
@@ -70,21 +87,43 @@ public final class MachineVision implements ChangeListener {
 			// bluring clears-out artificial independend groups because it filters out
 			// the dithering used in some images
 			app.blurInputImage();
+			if (AUTO_THRESHOLD) app.autoThreshold();
 			app.toBW(false);
 			app.preview.repaint();
 
-			JSlider slider = app.getSlider(app.optionPane);
-			app.optionPane.setMessage(new Object[] { "Select thershold: ", slider });
-			app.optionPane.setMessageType(JOptionPane.QUESTION_MESSAGE);
-			app.optionPane.setOptionType(JOptionPane.DEFAULT_OPTION);
-			JDialog dialog = app.optionPane.createDialog(app.parent, "Threshold for B&W");
-			dialog.setVisible(true);
+			if (!AUTO_THRESHOLD) {
+				JSlider slider = app.getSlider(app.optionPane);
+				app.optionPane.setMessage(new Object[] { "Select thershold: ", slider });
+				app.optionPane.setMessageType(JOptionPane.QUESTION_MESSAGE);
+				app.optionPane.setOptionType(JOptionPane.DEFAULT_OPTION);
+				JDialog dialog = app.optionPane.createDialog(app.parent, "Threshold for B&W");
+				dialog.setVisible(true);
+			}
 			if (VERBOSE) System.out.println("Selected threshold: " + app.getThreshold());
 		}
 
 		app.runTime = new Stopwatch();
-		app.union = new WeightedQuickUnion(app.width * app.height);
-		app.union.populateTree(app.pic, app.threshold, VERBOSE);
+		if (MORPHOLOGY || ADAPTIVE) {
+			WeightedQuickUnion union = new WeightedQuickUnion(app.width * app.height);
+			union.setGroupPixels(GROUP_PIXELS);
+			app.union = union;
+			if (MORPHOLOGY)
+				app.setMorphology(new Morphology(Morphology.Operation.OPEN, Morphology.Shape.RECTANGLE, 1, 1));
+			if (ADAPTIVE) app.setAdaptive(new AdaptiveThreshold(AdaptiveThreshold.Method.BRADLEY, 15, 0.15));
+			app.populateUnion(false);
+		} else if (RUN_LENGTH) {
+			app.union = new RunLengthUnion(app.pic);
+			app.union.populateTree(app.pic, app.threshold, VERBOSE);
+		} else {
+			WeightedQuickUnion union = new WeightedQuickUnion(app.width * app.height);
+			union.setGroupPixels(GROUP_PIXELS);
+			if (PARALLEL) {
+				union.populateTreeParallel(app.pic, app.threshold, VERBOSE);
+			} else {
+				union.populateTree(app.pic, app.threshold, VERBOSE);
+			}
+			app.union = union;
+		}
 		app.union.flatten(app.pic);
 		app.setGroupMinThreshold(20);
 		app.disableSmallGroups();
@@ -107,6 +146,9 @@ public final class MachineVision implements ChangeListener {
 
 		if (VERBOSE) app.union.findStatsDisplay();
 
+		// all the labeling metrics as one JSON line
+		if (VERBOSE) System.out.println(Metrics.get().toJson());
+
 		if (VERBOSE) System.out.println("Elapsed time: " + app.runTime.elapsedTime() + " seconds.");
 
 	}
@@ -126,7 +168,15 @@ public final class MachineVision implements ChangeListener {
 	private JOptionPane					optionPane;
 	private JFrame							parent;
 
-	private WeightedQuickUnion	union;
+	private Union								union;
+
+	// thresholded image cleaned by the morphology (if set) before labeling
+	private BinaryImage					binary;
+	private Morphology					morphology;
+	private AdaptiveThreshold		adaptive;
+
+	// color of each root at root + 1 (0 is background) for colorizeLinear
+	private int[]								rootToRgb;
 
 	/**
 	 * Constructor setting up GUI objects and some default values
@@ -136,9 +186,25 @@ public final class MachineVision implements ChangeListener {
 		this.height = 0;
 		this.threshold = 128;
 		this.groupMinThreshold = 6;
-		this.optionPane = new JOptionPane();
-		this.parent = new JFrame();
 		this.groupCount = 0;
+
+		// GUI objects can't be created without display, the batch processing,
+		// benchmarks and tests can run headless and don't need them anyway
+		if (!GraphicsEnvironment.isHeadless()) {
+			this.optionPane = new JOptionPane();
+			this.parent = new JFrame();
+		}
+	}
+
+	/**
+	 * Set the threshold by Otsu's method from the luminance histogram of the
+	 * original image, the histogram is counted together with the luminance
+	 * 
+	 * @return the new threshold
+	 */
+	public double autoThreshold() {
+		this.threshold = OtsuThreshold.level(this.pic.getLumHistogram(OtsuThreshold.SAMPLE_STEP));
+		return this.threshold;
 	}
 
 	/**
@@ -221,16 +287,29 @@ public final class MachineVision implements ChangeListener {
 	 *          Draw red rectangle box around the groups
 	 */
 	public void colorizeGroups(Picture picture, Boolean drawBox, Boolean identifyCircle) {
+		long nanos = System.nanoTime(), bytes = Metrics.allocatedBytes();
 		picture.clear();
 
+		// when the union packed pixels of each group, exactly the pixels of the
+		// group are painted, otherwise its bounding box is scanned
+		GroupPixels members = this.union.getGroupPixels();
+
 		for (Map.Entry<Integer, UnionGroup> entry : this.union.getKeyValueGroups()) {
 			UnionGroup group = entry.getValue();
 			if (!group.isDisabled()) {
-				for (int y = group.getMinY(); y <= group.getMaxY(); y++) {
-					int index = group.getMinX() + y * this.width;
-					for (int x = group.getMinX(); x <= group.getMaxX(); x++, index++) {
-						if (this.union.tree(index) == entry.getKey()) {
-							picture.setFast(x, y, group.getColor());
+				int key = entry.getKey();
+				int color = group.getColor().getRGB();
+				if (members != null) {
+					int[] pixels = members.pixels();
+					for (int i = members.start(key), end = members.end(key); i < end; i++)
+						picture.setFast(pixels[i], color);
+				} else {
+					for (int y = group.getMinY(); y <= group.getMaxY(); y++) {
+						int index = group.getMinX() + y * this.width;
+						for (int x = group.getMinX(); x <= group.getMaxX(); x++, index++) {
+							if (this.union.tree(index) == key) {
+								picture.setFast(x, y, color);
+							}
 						}
 					}
 				}
@@ -261,6 +340,48 @@ public final class MachineVision implements ChangeListener {
 
 			}
 		}
+		METRIC_COLORIZE.recordSince(nanos, bytes);
+	}
+
+	/**
+	 * Colorize enabled groups by one linear sweep trough the flattened labels.
+	 * Each label is mapped trough the table of colors indexed by root + 1, so
+	 * background (-1), disabled groups and the gaps between groups are all just
+	 * 0 from the table, without any test or Color object per pixel, and the
+	 * raster of the picture is written directly. Doesn't allocate anything once
+	 * the table is big enough. Boxes and circles are not drawn, see
+	 * colorizeGroups.
+	 * 
+	 * @param picture
+	 *          Target canvas, all its pixels are overwritten
+	 */
+	public void colorizeLinear(Picture picture) {
+		long nanos = System.nanoTime(), bytes = Metrics.allocatedBytes();
+
+		if (!this.union.isFlat()) {
+			if (VERBOSE) System.out.println("For this method the image has to be flat. Flattening now.");
+			this.union.flatten(this.width, this.height);
+		}
+
+		int N = this.width * this.height;
+		if (this.rootToRgb == null || this.rootToRgb.length < N + 1) this.rootToRgb = new int[N + 1];
+		this.union.fillColorTable(this.rootToRgb);
+		int[] table = this.rootToRgb;
+		table[0] = 0;
+
+		int[] raster = picture.getRaster();
+		if (this.union instanceof WeightedQuickUnion) {
+			// plain array loop, without the interface call per pixel
+			int[] tree = ((WeightedQuickUnion) this.union).treeArray();
+			for (int i = 0; i < N; i++)
+				raster[i] = table[tree[i] + 1];
+		} else {
+			for (int i = 0; i < N; i++)
+				raster[i] = table[this.union.tree(i) + 1];
+		}
+		picture.invalidateLum();
+
+		METRIC_LINEAR.recordSince(nanos, bytes);
 	}
 
 	/**
@@ -269,6 +390,7 @@ public final class MachineVision implements ChangeListener {
 	 * reverted if desired.
 	 */
 	public void disableSmallGroups() {
+		long nanos = System.nanoTime(), bytes = Metrics.allocatedBytes();
 		this.groupCount = 0;
 		this.groupBiggest = -1;
 		this.groupSmallest = Integer.MAX_VALUE;
@@ -288,6 +410,7 @@ public final class MachineVision implements ChangeListener {
 				this.groupCount++;
 			}
 		}
+		METRIC_FILTER.recordSince(nanos, bytes);
 	}
 
 	/**
@@ -313,6 +436,16 @@ public final class MachineVision implements ChangeListener {
 			if (showAll || !group.isDisabled()) this.drawGroupBox(picture, group);
 	}
 
+	/**
+	 * Local thresholding used by populateUnion instead of the threshold, null
+	 * if none
+	 * 
+	 * @return
+	 */
+	public AdaptiveThreshold getAdaptive() {
+		return this.adaptive;
+	}
+
 	/**
 	 * Get the image file name
 	 * 
@@ -385,6 +518,15 @@ public final class MachineVision implements ChangeListener {
 		return this.pic;
 	}
 
+	/**
+	 * Morphology done before labeling by populateUnion, null if none
+	 * 
+	 * @return
+	 */
+	public Morphology getMorphology() {
+		return this.morphology;
+	}
+
 	/**
 	 * Return preview windows image object (use carefuly)
 	 * 
@@ -424,7 +566,7 @@ public final class MachineVision implements ChangeListener {
 	 * 
 	 * @return
 	 */
-	public WeightedQuickUnion getUnion() {
+	public Union getUnion() {
 		return union;
 	}
 
@@ -487,6 +629,37 @@ public final class MachineVision implements ChangeListener {
 		}
 	}
 
+	/**
+	 * Threshold the origin image into bits (by the adaptive threshold if set),
+	 * clean it by the morphology (if set) and label it by the union. The union
+	 * is reset first, so it can be recycled for each picture.
+	 * 
+	 * @param inverse
+	 *          if true the threshold will work exactly oposite than when it's
+	 *          false
+	 */
+	public void populateUnion(Boolean inverse) {
+		if (this.adaptive != null) {
+			this.binary = this.adaptive.threshold(this.pic, inverse, this.binary);
+		} else {
+			this.binary = this.pic.toBinary(this.threshold, inverse, this.binary);
+		}
+		if (this.morphology != null) this.morphology.apply(this.binary);
+
+		this.union.reset(this.pic);
+		this.union.populateTree(this.binary, false);
+	}
+
+	/**
+	 * Local thresholding used by populateUnion instead of the threshold, null
+	 * to use the threshold
+	 * 
+	 * @param adaptive
+	 */
+	public void setAdaptive(AdaptiveThreshold adaptive) {
+		this.adaptive = adaptive;
+	}
+
 	/**
 	 * Set the filenam
 	 * 
@@ -523,6 +696,16 @@ public final class MachineVision implements ChangeListener {
 		this.pic = pic;
 	}
 
+	/**
+	 * Morphology done on the thresholded image before labeling by
+	 * populateUnion, null to label the thresholded image as it is
+	 * 
+	 * @param morphology
+	 */
+	public void setMorphology(Morphology morphology) {
+		this.morphology = morphology;
+	}
+
 	/**
 	 * Set thershold to new value
 	 * @param value
@@ -532,11 +715,12 @@ public final class MachineVision implements ChangeListener {
 	}
 
 	/**
-	 * Change internal union class object with new given one (use carefuly)
+	 * Change internal union class object with new given one (use carefuly). It
+	 * can be the same object as before recycled by its reset method.
 	 * 
 	 * @param union
 	 */
-	public void setUnion(WeightedQuickUnion union) {
+	public void setUnion(Union union) {
 		this.union = union;
 	}
 
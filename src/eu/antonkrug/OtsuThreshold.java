@@ -0,0 +1,163 @@
+package eu.antonkrug;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Automatic threshold by Otsu's method, from the 256 bin histogram of the 8
+ * bit luminance it picks the split into dark and bright pixels where the
+ * variance between the two classes is the biggest. The histogram is counted
+ * while the luminance is calculated anyway (Picture.getLumHistogram,
+ * Binarizer.getHistogram, WeightedQuickUnion.getLumHistogram), so choosing
+ * the threshold costs just one pass over the 256 bins.
+ *
+ * For video the instance keeps the threshold and each frame moves it only
+ * part of the way towards the threshold of the frame, so it doesn't flicker
+ * between frames when the split is not clear. First frame is taken as it is.
+ * The threshold given out is rounded to whole number, so it doesn't change by
+ * tiny bits with every frame, which would make updateTree label whole frames
+ * instead of the changed rows only.
+ *
+ * Final is used because it's not intended to extend this class and as in
+ * Effective Java book if I do not design and document for inheritance then I
+ * should prohibit it.
+ *
+ * @author Anton Krug
+ */
+public final class OtsuThreshold {
+	public final static int	BINS							= Picture.LUM_LEVELS;
+
+	// when there is nothing to split (all pixels have the same luminance)
+	public final static int	DEFAULT_THRESHOLD	= 128;
+
+	// every which row of camera frames is counted, the threshold of quarter of
+	// the rows is practically the same and it costs quarter of the time
+	public final static int	SAMPLE_STEP				= 4;
+
+	private final double		smoothing;
+	private double					smoothed;
+	private boolean					first;
+
+	/**
+	 * @param threshold
+	 *          used until the first frame is seen
+	 * @param smoothing
+	 *          how much of the way towards the threshold of the new frame is
+	 *          done, 1 is no smoothing at all
+	 */
+	public OtsuThreshold(double threshold, double smoothing) {
+		if (smoothing <= 0 || smoothing > 1)
+			throw new IllegalArgumentException("Smoothing has to be more than 0 and at most 1");
+
+		this.smoothed = threshold;
+		this.smoothing = smoothing;
+		this.first = true;
+	}
+
+	public double getSmoothing() {
+		return this.smoothing;
+	}
+
+	/**
+	 * Smoothed threshold rounded to whole number
+	 */
+	public double getThreshold() {
+		return Math.round(this.smoothed);
+	}
+
+	/**
+	 * Count the 8 bit luminance of raw frame with R, G, B bytes per pixel into
+	 * the histogram, for frames which are not labeled (WeightedQuickUnion counts
+	 * the same histogram while labeling, see setLumHistogram). Only every step
+	 * row is counted (usually SAMPLE_STEP).
+	 *
+	 * @param histogram
+	 *          reused when it's given, it's cleared first
+	 * @return the histogram
+	 */
+	public static int[] histogram(ByteBuffer rgb, int width, int height, int step, int[] histogram) {
+		if (histogram == null) histogram = new int[BINS];
+		for (int i = 0; i < BINS; i++)
+			histogram[i] = 0;
+
+		// absolute gets, the position of the buffer is not changed
+		for (int y = 0; y < height; y += step) {
+			for (int x = 0, at = rgb.position() + y * width * 3; x < width; x++, at += 3) {
+				int lum = Picture.lumFixed(rgb.get(at) & 0xFF, rgb.get(at + 1) & 0xFF,
+						rgb.get(at + 2) & 0xFF);
+				histogram[lum >>> Picture.LUM_SHIFT]++;
+			}
+		}
+		return histogram;
+	}
+
+	/**
+	 * Otsu's threshold of the histogram. Pixels in the bins below it are one
+	 * class, the ones from it up are the other one, so it's the same as the
+	 * threshold of the slider. When more splits are equally good (empty bins
+	 * between two peaks) the middle one is taken.
+	 *
+	 * @param histogram
+	 *          256 bins of the 8 bit luminance
+	 * @return threshold 1 to 255, or DEFAULT_THRESHOLD if there is nothing to
+	 *         split
+	 */
+	public static int level(int[] histogram) {
+		long total = 0, sum = 0;
+		for (int i = 0; i < BINS; i++) {
+			total += histogram[i];
+			sum += (long) i * histogram[i];
+		}
+
+		long dark = 0, darkSum = 0;
+		double best = 0;
+		int from = -1, to = -1;
+
+		// split after bin k, between class variance without the constant 1 / total^2
+		for (int k = 0; k < BINS - 1; k++) {
+			dark += histogram[k];
+			darkSum += (long) k * histogram[k];
+			long bright = total - dark;
+			if (dark == 0 || bright == 0) continue;
+
+			double difference = (double) darkSum * bright - (double) (sum - darkSum) * dark;
+			double variance = difference / dark * difference / bright;
+			if (variance > best) {
+				best = variance;
+				from = k;
+				to = k;
+			} else if (variance == best && to == k - 1) {
+				to = k;
+			}
+		}
+
+		if (from < 0) return DEFAULT_THRESHOLD;
+		return (from + to) / 2 + 1;
+	}
+
+	/**
+	 * Start again, next frame will be taken as it is
+	 */
+	public void reset() {
+		this.first = true;
+	}
+
+	/**
+	 * Move the threshold towards the threshold of the next frame
+	 *
+	 * @param histogram
+	 *          256 bins of the 8 bit luminance of the frame
+	 * @return the new threshold
+	 */
+	public double update(int[] histogram) {
+		int level = level(histogram);
+
+		if (this.first) {
+			this.smoothed = level;
+			this.first = false;
+		} else {
+			this.smoothed += this.smoothing * (level - this.smoothed);
+		}
+		return this.getThreshold();
+	}
+
+}
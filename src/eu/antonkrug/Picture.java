@@ -30,12 +30,11 @@ import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.awt.event.KeyEvent;
 import java.awt.image.BufferedImage;
-import java.awt.image.ConvolveOp;
-import java.awt.image.Kernel;
-import java.awt.image.RescaleOp;
+import java.awt.image.DataBufferInt;
 import java.io.File;
 import java.io.IOException;
 import java.net.URL;
+import java.util.Arrays;
 
 import javax.imageio.ImageIO;
 import javax.swing.ImageIcon;
@@ -61,9 +60,27 @@ public final class Picture implements ActionListener {
 		}
 	}
 
+	// RGB part of the packed pixel, the TYPE_INT_RGB has no alpha
+	private final static int	RGB_MASK	= 0xFFFFFF;
+
+	// luminance plane is in 8.8 fixed point, weights are .299 .587 .114 scaled
+	// by 65536 so after shift by 8 the maximum (255 << 8) still fits into char
+	public final static int		LUM_SHIFT	= 8;
+	// levels of the 8 bit luminance, bins of the luminance histograms
+	public final static int		LUM_LEVELS	= 1 << 8;
+	private final static int	LUM_R			= 19595;
+	private final static int	LUM_G			= 38470;
+	private final static int	LUM_B			= 7471;
+
 	private BufferedImage	image;
+	private int[]					pixels;
+	private char[]				lumPlane;
+	private int[]					lumHistogram;
+	private int						lumHistogramStep;
+	private boolean				lumValid;
 	private JFrame				frame;
 	private String				filename;
+	private BinomialBlur	blurScratch;
 
 	private final int			width, height;
 
@@ -75,9 +92,8 @@ public final class Picture implements ActionListener {
 		height = pic.getHeight();
 		image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
 		filename = "/dev/null :p";
-		for (int x = 0; x < width(); x++)
-			for (int y = 0; y < height(); y++)
-				image.setRGB(x, y, pic.getRGB(x, y));
+		updateRaster();
+		copyFrom(pic);
 	}
 
 	/**
@@ -92,6 +108,7 @@ public final class Picture implements ActionListener {
 		image = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
 		// set to TYPE_INT_ARGB to support transparency
 		filename = w + "-by-" + h;
+		updateRaster();
 	}
 
 	/**
@@ -102,9 +119,8 @@ public final class Picture implements ActionListener {
 		height = pic.height();
 		image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
 		filename = pic.filename;
-		for (int x = 0; x < width(); x++)
-			for (int y = 0; y < height(); y++)
-				image.setRGB(x, y, pic.get(x, y).getRGB());
+		updateRaster();
+		System.arraycopy(pic.pixels, 0, pixels, 0, pixels.length);
 	}
 
 	/**
@@ -129,14 +145,15 @@ public final class Picture implements ActionListener {
 				}
 				tmp = ImageIO.read(url);
 			}
+			// no reader for this format
+			if (tmp == null) throw new IOException("Unknown image format");
+
 			width = tmp.getWidth(null);
 			height = tmp.getHeight(null);
 
 			image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-			for (int y = 0; y < height; y++)
-				for (int x = 0; x < width; x++) {
-					image.setRGB(x, y, tmp.getRGB(x, y));
-				}
+			updateRaster();
+			copyFrom(tmp);
 
 		} catch (IOException e) {
 			// e.printStackTrace();
@@ -163,25 +180,28 @@ public final class Picture implements ActionListener {
 	 * be 1bit image, or indexded GIF etc...
 	 */
 	/**
-	 * Blur RGB canvas, using kernel matrix.
+	 * Blur RGB canvas with 3x3 binomial kernel, edge pixels are not changed.
 	 */
 	public void blur() {
-		BufferedImage imageTmp = new BufferedImage(this.width, this.height, BufferedImage.TYPE_INT_RGB);
+		this.blur(1);
+	}
 
-		float data[] = { 0.0625f, 0.125f, 0.0625f, 0.125f, 0.25f, 0.125f, 0.0625f, 0.125f, 0.0625f };
-		Kernel kernel = new Kernel(3, 3, data);
-		ConvolveOp convolve = new ConvolveOp(kernel, ConvolveOp.EDGE_NO_OP, null);
-		convolve.filter(image, imageTmp);
-		image = imageTmp;
+	/**
+	 * Blur RGB canvas in place with separable binomial kernel of 2 * radius + 1
+	 * pixels, up to BinomialBlur.MAX_RADIUS. Pixels closer to the edge than the
+	 * radius are not changed. The scratch buffers are kept for next calls.
+	 */
+	public void blur(int radius) {
+		if (this.blurScratch == null) this.blurScratch = new BinomialBlur(this.width, this.height);
+		this.blurScratch.blur(this.pixels, radius);
+		invalidateLum();
 	}
 
 	/**
 	 * Will clear the image with 0's (in RGB that's black)
 	 */
 	public void clear() {
-		for (int y = 0; y < this.height; y++)
-			for (int x = 0; x < this.width; x++)
-				image.setRGB(x, y, 0);
+		this.fill(0);
 	}
 
 	/**
@@ -193,6 +213,7 @@ public final class Picture implements ActionListener {
 	 */
 	public void drawString(int x, int y, String text) {
 		this.image.getGraphics().drawString(text, x, y);
+		invalidateLum();
 	}
 
 	/**
@@ -203,7 +224,7 @@ public final class Picture implements ActionListener {
 			throw new IndexOutOfBoundsException("x must be between 0 and " + (width() - 1));
 		if (y < 0 || y >= height())
 			throw new IndexOutOfBoundsException("y must be between 0 and " + (height() - 1));
-		return new Color(image.getRGB(x, y));
+		return new Color(pixels[y * width + x]);
 	}
 
 	/**
@@ -215,7 +236,7 @@ public final class Picture implements ActionListener {
 	 * @return Returns color of given pixel
 	 */
 	public Color getFast(int x, int y) {
-		return new Color(image.getRGB(x, y));
+		return new Color(pixels[y * width + x]);
 	}
 
 	/**
@@ -258,11 +279,170 @@ public final class Picture implements ActionListener {
 	 * @return Luminance value
 	 */
 	public double getLum(int x, int y) {
-		Color color = new Color(this.image.getRGB(x, y));
-		int r = color.getRed();
-		int g = color.getGreen();
-		int b = color.getBlue();
-		return .299 * r + .587 * g + .114 * b;
+		return lum(this.pixels[y * this.width + x]);
+	}
+
+	/**
+	 * Luminance of whole row y stored into dst (has to be at least width long)
+	 * 
+	 * @param y
+	 *          Vertical coordinate
+	 * @param dst
+	 *          Destination array
+	 */
+	public void getLumRow(int y, double[] dst) {
+		int index = y * this.width;
+		for (int x = 0; x < this.width; x++, index++)
+			dst[x] = lum(this.pixels[index]);
+	}
+
+	/**
+	 * Histogram of the 8 bit luminance (LUM_LEVELS bins) of every step row, for
+	 * OtsuThreshold. When the luminance plane is not cached yet the sampled rows
+	 * are counted while it's calculated, otherwise they are counted from the
+	 * cached plane. Kept with the plane until the picture is changed.
+	 * 
+	 * @param step
+	 *          every which row is counted (OtsuThreshold.SAMPLE_STEP), 1 for all
+	 * @return Cached histogram, don't modify it
+	 */
+	public int[] getLumHistogram(int step) {
+		if (step < 1) throw new IllegalArgumentException("step has to be at least 1");
+
+		if (!lumValid) {
+			this.calculateLum(step);
+		} else if (lumHistogramStep != step) {
+			this.clearLumHistogram(step);
+			for (int y = 0; y < this.height(); y += step)
+				for (int i = y * this.width(), end = i + this.width(); i < end; i++)
+					lumHistogram[lumPlane[i] >>> LUM_SHIFT]++;
+		}
+		return lumHistogram;
+	}
+
+	/**
+	 * Luminance of all pixels in 8.8 fixed point (value 256 is luminance 1.0),
+	 * stored row by row. It's calculated only once and kept until the picture is
+	 * changed, so thresholding the same picture many times (labeling, moving the
+	 * threshold slider) doesn't have to calculate the luminance again. Compare it
+	 * with lumAbove/lumBelow thresholds.
+	 * 
+	 * @return Cached luminance plane, don't modify it
+	 */
+	public char[] getLumPlane() {
+		if (!lumValid) this.calculateLum(0);
+		return lumPlane;
+	}
+
+	/**
+	 * Luminance of one pixel in the same 8.8 fixed point as getLumPlane, for
+	 * code which reads pixels from other places than Picture (camera buffers).
+	 * 
+	 * @param r
+	 * @param g
+	 * @param b
+	 * @return Fixed point luminance
+	 */
+	public static int lumFixed(int r, int g, int b) {
+		return (LUM_R * r + LUM_G * g + LUM_B * b) >> (16 - LUM_SHIFT);
+	}
+
+	/**
+	 * Convert threshold to fixed point so lumPlane[i] > lumAbove(threshold)
+	 * approximates getLum > threshold. It's not exactly the same test, the
+	 * plane is truncated (rounded down) to 1/256 and the weights are rounded to
+	 * 1/65536, so luminance within about 1/256 of the threshold can end up on
+	 * the other side (about 1 in 100000 decisions on the povray pictures).
+	 * 
+	 * @param threshold
+	 * @return Fixed point threshold
+	 */
+	public static int lumAbove(double threshold) {
+		return (int) Math.floor(threshold * (1 << LUM_SHIFT));
+	}
+
+	/**
+	 * Convert threshold to fixed point so lumPlane[i] < lumBelow(threshold)
+	 * approximates getLum < threshold, with the same rounding as lumAbove, so
+	 * luminance within about 1/256 of the threshold can end up on the other
+	 * side.
+	 * 
+	 * @param threshold
+	 * @return Fixed point threshold
+	 */
+	public static int lumBelow(double threshold) {
+		return (int) Math.ceil(threshold * (1 << LUM_SHIFT));
+	}
+
+	/**
+	 * Calculate the luminance plane, rows which are multiple of step are counted
+	 * into the histogram in the same pass, no histogram when step is 0
+	 */
+	private void calculateLum(int step) {
+		if (lumPlane == null || lumPlane.length != pixels.length) lumPlane = new char[pixels.length];
+		// histogram of the old pixels is not valid anymore
+		if (step > 0) {
+			this.clearLumHistogram(step);
+		} else {
+			lumHistogramStep = 0;
+		}
+
+		for (int y = 0, i = 0; y < this.height(); y++) {
+			int end = i + this.width();
+			if (step > 0 && y % step == 0) {
+				for (; i < end; i++) {
+					int rgb = pixels[i];
+					lumPlane[i] = (char) lumFixed((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF);
+					lumHistogram[lumPlane[i] >>> LUM_SHIFT]++;
+				}
+			} else {
+				for (; i < end; i++) {
+					int rgb = pixels[i];
+					lumPlane[i] = (char) lumFixed((rgb >> 16) & 0xFF, (rgb >> 8) & 0xFF, rgb & 0xFF);
+				}
+			}
+		}
+		lumValid = true;
+	}
+
+	/**
+	 * Empty histogram for counting every step row
+	 */
+	private void clearLumHistogram(int step) {
+		if (lumHistogram == null) lumHistogram = new int[LUM_LEVELS];
+		Arrays.fill(lumHistogram, 0);
+		lumHistogramStep = step;
+	}
+
+	/**
+	 * Has to be called when pixels are changed trough getRaster or getImage, so
+	 * the cached luminance plane is calculated again.
+	 */
+	public void invalidateLum() {
+		lumValid = false;
+	}
+
+	/**
+	 * Raw access to the pixels of the image, it's the array used by the
+	 * BufferedImage itself, not a copy, so use it carefuly and call invalidateLum
+	 * after changing it. Pixels are stored row by row and packed as 0xRRGGBB.
+	 * 
+	 * @return Backing array of the image
+	 */
+	public int[] getRaster() {
+		return this.pixels;
+	}
+
+	/**
+	 * Copy packed RGB pixels of row y into dst (has to be at least width long)
+	 * 
+	 * @param y
+	 *          Vertical coordinate
+	 * @param dst
+	 *          Destination array
+	 */
+	public void getRGBRow(int y, int[] dst) {
+		System.arraycopy(this.pixels, y * this.width, dst, 0, this.width);
 	}
 
 	/**
@@ -276,9 +456,10 @@ public final class Picture implements ActionListener {
 	 * Inverse colors
 	 */
 	public void inverse() {
-		RescaleOp op = new RescaleOp(-1.0f, 255f, null);
-		// BufferedImage tmp = op.filter(image, null);
-		image = op.filter(image, null);
+		// same as RescaleOp(-1.0f, 255f) which is 255 - value for each channel
+		for (int i = 0; i < pixels.length; i++)
+			pixels[i] ^= RGB_MASK;
+		invalidateLum();
 	}
 
 	/**
@@ -290,23 +471,24 @@ public final class Picture implements ActionListener {
 	 * @param maxY
 	 */
 	public void rectange(int minX, int maxX, int minY, int maxY) {
-		Color color = Color.RED;
+		int color = Color.RED.getRGB() & RGB_MASK;
 		for (int i = minX; i < maxX; i++) {
-			image.setRGB(i, minY, color.getRGB());
-			image.setRGB(i, maxY, color.getRGB());
+			pixels[minY * width + i] = color;
+			pixels[maxY * width + i] = color;
 		}
 
 		for (int i = minY; i < maxY; i++) {
-			image.setRGB(minX, i, color.getRGB());
-			image.setRGB(maxX, i, color.getRGB());
+			pixels[i * width + minX] = color;
+			pixels[i * width + maxX] = color;
 		}
+		invalidateLum();
 	}
 
 	/**
-	 * Repaint the content inside the GUI
+	 * Repaint the content inside the GUI, does nothing if it's not shown
 	 */
 	public void repaint() {
-		frame.repaint();
+		if (frame != null) frame.repaint();
 	}
 
 	/**
@@ -347,7 +529,8 @@ public final class Picture implements ActionListener {
 		if (y < 0 || y >= height())
 			throw new IndexOutOfBoundsException("y must be between 0 and " + (height() - 1));
 		if (color == null) throw new NullPointerException("can't set Color to null");
-		image.setRGB(x, y, color.getRGB());
+		pixels[y * width + x] = color.getRGB() & RGB_MASK;
+		lumValid = false;
 	}
 
 	/**
@@ -358,7 +541,42 @@ public final class Picture implements ActionListener {
 	 * @param color
 	 */
 	public void setFast(int x, int y, Color color) {
-		image.setRGB(x, y, color.getRGB());
+		pixels[y * width + x] = color.getRGB() & RGB_MASK;
+		lumValid = false;
+	}
+
+	/**
+	 * As setFast, but the color is given already packed as 0xRRGGBB, so no Color
+	 * object is needed
+	 * 
+	 * @param x
+	 * @param y
+	 * @param rgb
+	 */
+	public void setFast(int x, int y, int rgb) {
+		pixels[y * width + x] = rgb & RGB_MASK;
+		lumValid = false;
+	}
+
+	/**
+	 * As setFast, but the pixel is given by its index (y * width + x)
+	 * 
+	 * @param index
+	 * @param rgb
+	 */
+	public void setFast(int index, int rgb) {
+		pixels[index] = rgb & RGB_MASK;
+		lumValid = false;
+	}
+
+	/**
+	 * Fill whole image with one packed 0xRRGGBB color
+	 * 
+	 * @param rgb
+	 */
+	public void fill(int rgb) {
+		Arrays.fill(pixels, rgb & RGB_MASK);
+		invalidateLum();
 	}
 
 	/**
@@ -393,6 +611,22 @@ public final class Picture implements ActionListener {
 		frame.repaint();
 	}
 
+	/**
+	 * Threshold this picture into one bit per pixel image in one pass over the
+	 * cached luminance plane, foreground is the same as toBW makes white.
+	 * 
+	 * @param target
+	 *          reused when it has the same size, otherwise new one is created
+	 * @return the binary image
+	 */
+	public BinaryImage toBinary(double threshold, Boolean inverse, BinaryImage target) {
+		if (target == null || target.width() != this.width() || target.height() != this.height())
+			target = new BinaryImage(this.width(), this.height());
+
+		Binarizer.pack(this, threshold, inverse, target.bits());
+		return target;
+	}
+
 	/**
 	 * Calling itself with some default variables
 	 */
@@ -415,18 +649,20 @@ public final class Picture implements ActionListener {
 		int over, under;
 
 		if (inverse) {
-			over = Color.BLACK.getRGB();
-			under = Color.WHITE.getRGB();
+			over = Color.BLACK.getRGB() & RGB_MASK;
+			under = Color.WHITE.getRGB() & RGB_MASK;
 		} else {
-			over = Color.WHITE.getRGB();
-			under = Color.BLACK.getRGB();
+			over = Color.WHITE.getRGB() & RGB_MASK;
+			under = Color.BLACK.getRGB() & RGB_MASK;
 		}
 
-		for (int y = 0; y < this.height; y++) {
-			for (int x = 0; x < this.width; x++) {
-				this.image.setRGB(x, y, (source.getLum(x, y) < threshold) ? under : over);
-			}
+		// when source is this picture, the plane is read before it's invalidated
+		char[] lum = source.getLumPlane();
+		int below = lumBelow(threshold);
+		for (int i = 0; i < this.pixels.length; i++) {
+			this.pixels[i] = (lum[i] < below) ? under : over;
 		}
+		invalidateLum();
 	}
 
 	/**
@@ -460,10 +696,37 @@ public final class Picture implements ActionListener {
 			return false;
 		}
 
-		for (int x = 0; x < width(); x++)
-			for (int y = 0; y < height(); y++) {
-				if (!this.get(x, y).equals(src.get(x, y))) return false;
-			}
+		for (int i = 0; i < pixels.length; i++) {
+			if (((this.pixels[i] ^ src.pixels[i]) & RGB_MASK) != 0) return false;
+		}
 		return true;
 	}
+
+	/**
+	 * Luminance of packed 0xRRGGBB pixel
+	 */
+	private static double lum(int rgb) {
+		int r = (rgb >> 16) & 0xFF;
+		int g = (rgb >> 8) & 0xFF;
+		int b = rgb & 0xFF;
+		return .299 * r + .587 * g + .114 * b;
+	}
+
+	/**
+	 * Copy any type of image into this one, the getRGB converts indexed, B&W
+	 * and other atypical images into packed RGB
+	 */
+	private void copyFrom(BufferedImage src) {
+		src.getRGB(0, 0, width, height, pixels, 0, width);
+		for (int i = 0; i < pixels.length; i++)
+			pixels[i] &= RGB_MASK;
+	}
+
+	/**
+	 * Get reference to the int array backing the image, has to be called every
+	 * time the image object is replaced
+	 */
+	private void updateRaster() {
+		pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+	}
 }
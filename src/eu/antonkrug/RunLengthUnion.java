@@ -0,0 +1,533 @@
+package eu.antonkrug;
+
+import java.awt.Color;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import eu.antonkrug.metrics.Counter;
+import eu.antonkrug.metrics.Metrics;
+
+/**
+ * Union implementation which doesn't keep tree entry for each pixel, but just
+ * for horizontal runs of foreground pixels (row, start x, end x). The
+ * populateTree in WeightedQuickUnion is already finding the runs in pre-pass
+ * (caching of leftRoot), but it still writes each pixel. Here whole run is just
+ * one element in the union-find, so on blobby or sparse images there are a lot
+ * less elements to store and union.
+ *
+ * Group keys (and the values returned by tree and findFlat) are indexes of the
+ * root runs, not pixel indexes. Per-pixel labels are not stored at all, they
+ * are looked up from the runs only when asked for. The last run found is
+ * cached, because pixels are usually asked in the same order as they are
+ * stored.
+ *
+ * Find and union stats are always counted, into plain fields in the hot loops,
+ * and they are added to the metrics once per picture (populateTree, flatten).
+ *
+ * Final is used because it's not intended to extend this class and as in
+ * Effective Java book if I do not design and document for inheritance then I
+ * should prohibit it. It should get better performance as well because no
+ * tables are used with method calls for final classes.
+ *
+ * @author Anton Krug
+ */
+public final class RunLengthUnion implements Union {
+	private final static int		RUNS_INITIAL	= 1024;
+
+	private final static Counter	METRIC_FIND_CALLS				= Metrics.get().counter("runs.find.calls");
+	private final static Counter	METRIC_FIND_ITERATIONS	= Metrics.get().counter(
+																														"runs.find.iterations");
+	private final static Counter	METRIC_FIND_FLAT				= Metrics.get().counter(
+																														"runs.find.flat.calls");
+	private final static Counter	METRIC_LINKS						= Metrics.get().counter("runs.union.links");
+
+	private int									width, height;
+
+	// index of first run for each row, rowStart[height] is count of all runs
+	private int[]								rowStart;
+
+	// first and last x of each run (inclusive) and its parent in the forest
+	private int[]								runStart, runEnd;
+	private int[]								parent;
+	private int									runs;
+
+	private TreeMeta						treeMeta;
+
+	// cached run lookup of last pixel
+	private int									cacheRow, cacheRun;
+
+	// counted locally and added to the metrics once per picture
+	private long								findStatsCalls;
+	private long								findStatsIterations;
+	private long								findStatsFlatCalls;
+	private long								unionStatsLinks;
+	private Boolean							flat;
+
+	/**
+	 * Initializes empty structure, arrays will grow when first picture is
+	 * populated.
+	 */
+	public RunLengthUnion() {
+		this.rowStart = new int[1];
+		this.runStart = new int[RUNS_INITIAL];
+		this.runEnd = new int[RUNS_INITIAL];
+		this.parent = new int[RUNS_INITIAL];
+		this.treeMeta = new TreeMeta(RUNS_INITIAL);
+		this.reset(0);
+	}
+
+	/**
+	 * Initializes structure ready for given picture.
+	 *
+	 * @param pic
+	 *          the picture which will be processed
+	 */
+	public RunLengthUnion(Picture pic) {
+		this();
+		this.reset(pic);
+	}
+
+	/**
+	 * Are the two pixels <tt>p</tt> and <tt>q</tt> in the same component?
+	 */
+	public boolean connected(int p, int q) {
+		return find(p) == find(q);
+	}
+
+	/**
+	 * Colors of enabled groups at index root + 1, disabled groups get 0
+	 */
+	public void fillColorTable(int[] rootToRgb) {
+		this.treeMeta.colorTable(rootToRgb);
+	}
+
+	/**
+	 * Returns the root run for the component containing pixel <tt>p</tt>, or -1
+	 * if the pixel is background.
+	 */
+	public int find(int p) {
+		int run = this.runOf(p);
+		if (run < 0) return -1;
+		return this.findRun(run);
+	}
+
+	/**
+	 * As find but it assumes the tree is flat
+	 */
+	public int findFlat(int p) {
+		this.findStatsFlatCalls++;
+
+		int run = this.runOf(p);
+		if (run < 0) return -1;
+		return this.parent[run];
+	}
+
+	/**
+	 * Display profiling stats of the find calls of all instances so far, the
+	 * stats are taken from the metrics.
+	 */
+	public void findStatsDisplay() {
+		this.publishMetrics();
+		long calls = METRIC_FIND_CALLS.get();
+		System.out.println("Find stats, calls:" + calls + " looped:" + METRIC_FIND_ITERATIONS.get()
+				+ " loops/call:" + (float) (METRIC_FIND_ITERATIONS.get()) / calls + " runs:" + runs);
+		System.out.println("Find stats flat, calls:" + METRIC_FIND_FLAT.get());
+	}
+
+	/**
+	 * Will flatten all runs to point to their roots and calculate the bounding
+	 * boxes of groups. Only the first and last pixel of each run can change the
+	 * bounding box, so it's enough to update it twice per run.
+	 */
+	public void flatten(Picture pic) {
+		this.flatten(pic.width(), pic.height());
+	}
+
+	/**
+	 * The runs know dimensions of the picture, so this is same as
+	 * flatten(Picture)
+	 */
+	public void flatten(int width, int height) {
+		for (int y = 0; y < this.height; y++) {
+			for (int run = this.rowStart[y]; run < this.rowStart[y + 1]; run++) {
+				int root = this.findRun(run);
+				this.parent[run] = root;
+				this.treeMeta.updateMinMax(root, this.runStart[run], y);
+				this.treeMeta.updateMinMax(root, this.runEnd[run], y);
+			}
+		}
+		this.flat = true;
+		this.publishMetrics();
+	}
+
+	/**
+	 * Generate colors by group size
+	 */
+	public void generateColorsBySize(int min, int max) {
+		this.treeMeta.generateColorsBySize(min, max);
+	}
+
+	/**
+	 * Generate colors randomly
+	 */
+	public void generateColorsRandom() {
+		this.treeMeta.generateColors();
+	}
+
+	/**
+	 * Get collection of all groups
+	 */
+	public Collection<UnionGroup> getAllGroups() {
+		return this.treeMeta.getAllGroups();
+	}
+
+	/**
+	 * As getColor but assuming the tree is flattened
+	 */
+	public Color getColorFlat(int index) {
+		return this.treeMeta.color(findFlat(index));
+	}
+
+	/**
+	 * Pixels of the groups are not packed, null
+	 */
+	public GroupPixels getGroupPixels() {
+		return null;
+	}
+
+	/**
+	 * Return collection of keys and values for each group
+	 */
+	public Set<Entry<Integer, UnionGroup>> getKeyValueGroups() {
+		return this.treeMeta.getKeyValueGroups();
+	}
+
+	/**
+	 * Number of runs found in the picture
+	 */
+	public int getRuns() {
+		return this.runs;
+	}
+
+	/**
+	 * Print stats of all groups
+	 */
+	public void groupStats() {
+		for (UnionGroup g : this.treeMeta.getAllGroups()) {
+			if (!g.isDisabled()) System.out.println(g);
+		}
+	}
+
+	/**
+	 * True if the tree was flattened
+	 */
+	public Boolean isFlat() {
+		return flat;
+	}
+
+	/**
+	 * Find all runs in the picture and then join the runs which overlap with
+	 * runs on the line above. Runs of both lines are sorted by x, so the
+	 * overlapping ones can be found by walking both lines at once.
+	 */
+	public void populateTree(Picture pic, double threshold, Boolean verbose) {
+		this.reset(pic);
+
+		char[] lum = pic.getLumPlane();
+		int above = Picture.lumAbove(threshold);
+
+		// ********** binarize & run finding pass ***************
+		int index = 0;
+		for (int y = 0; y < this.height; y++) {
+			this.rowStart[y] = this.runs;
+			int x = 0;
+			while (x < this.width) {
+				if (lum[index + x] > above) {
+					int start = x;
+					x++;
+					while (x < this.width && lum[index + x] > above)
+						x++;
+					this.addRun(start, x - 1);
+				} else {
+					x++;
+				}
+			}
+			index += this.width;
+		}
+
+		this.joinRuns(verbose);
+	}
+
+	/**
+	 * Runs of the binary image are found by scanning its words, so background
+	 * is skipped 64 pixels at time
+	 */
+	public void populateTree(BinaryImage image, Boolean verbose) {
+		this.reset(image.width() * image.height());
+		this.resize(image.width(), image.height());
+
+		// ********** run finding pass ***************
+		for (int y = 0; y < this.height; y++) {
+			this.rowStart[y] = this.runs;
+			int x = image.nextSet(y, 0);
+			while (x < this.width) {
+				int end = image.nextClear(y, x);
+				this.addRun(x, end - 1);
+				x = image.nextSet(y, end);
+			}
+		}
+
+		this.joinRuns(verbose);
+	}
+
+	/**
+	 * Same as populateTree but reads the raw R, G, B bytes of the frame, the
+	 * foreground is the same as when the frame would be binarized by toBW and
+	 * then labeled (luminance bigger or equal than threshold, or smaller when
+	 * inverse is set).
+	 */
+	public void populateTree(ByteBuffer rgb, int width, int height, double threshold,
+			Boolean inverse, Boolean verbose) {
+		this.reset(width * height);
+		this.resize(width, height);
+
+		int offset = rgb.position();
+		int below = Picture.lumBelow(threshold);
+		boolean invert = inverse;
+
+		// ********** threshold & run finding pass ***************
+		for (int y = 0; y < this.height; y++) {
+			this.rowStart[y] = this.runs;
+			int start = -1;
+			for (int x = 0; x < this.width; x++, offset += 3) {
+				int lum = Picture.lumFixed(rgb.get(offset) & 0xFF, rgb.get(offset + 1) & 0xFF,
+						rgb.get(offset + 2) & 0xFF);
+
+				if ((lum < below) == invert) {
+					if (start < 0) start = x;
+				} else if (start >= 0) {
+					this.addRun(start, x - 1);
+					start = -1;
+				}
+			}
+			if (start >= 0) this.addRun(start, this.width - 1);
+		}
+
+		this.joinRuns(verbose);
+	}
+
+	/**
+	 * Prepare this structure for next picture, arrays are kept and grow only
+	 * when more runs or rows are needed.
+	 */
+	public void reset(Picture pic) {
+		this.reset(pic.width() * pic.height());
+		this.resize(pic.width(), pic.height());
+	}
+
+	/**
+	 * Forget all runs, the N is not needed because the arrays are sized by
+	 * count of runs and the picture dimensions are known in populateTree.
+	 */
+	public void reset(int N) {
+		if (N < 0) throw new IllegalArgumentException("N must be nonnegative");
+
+		this.width = 0;
+		this.height = 0;
+		this.rowStart[0] = 0;
+		this.runs = 0;
+		this.cacheRow = -1;
+		this.cacheRun = -1;
+
+		this.flat = false;
+
+		this.treeMeta.reset(0);
+	}
+
+	/**
+	 * Return content for pixel i, -1 for background, otherwise parent of the run
+	 * (after flattening it's the root run).
+	 */
+	public int tree(int i) {
+		int run = this.runOf(i);
+		if (run < 0) return -1;
+		return this.parent[run];
+	}
+
+	/**
+	 * Merges the component containing pixel <tt>p</tt> with the component
+	 * containing pixel <tt>q</tt>. Background pixels can't be joined.
+	 */
+	public void union(int p, int q) {
+		int runP = this.runOf(p);
+		int runQ = this.runOf(q);
+
+		if (runP < 0 || runQ < 0) return;
+
+		// runs of the joined group don't point to its root anymore
+		this.flat = false;
+		this.unionRuns(runP, runQ);
+	}
+
+	/**
+	 * Add new run at the end, grow the arrays if needed
+	 */
+	private void addRun(int start, int end) {
+		if (this.runs == this.runStart.length) {
+			int[] tmp = new int[this.runs * 2];
+			System.arraycopy(this.runStart, 0, tmp, 0, this.runs);
+			this.runStart = tmp;
+
+			tmp = new int[this.runs * 2];
+			System.arraycopy(this.runEnd, 0, tmp, 0, this.runs);
+			this.runEnd = tmp;
+
+			this.parent = new int[this.runs * 2];
+		}
+		this.runStart[this.runs] = start;
+		this.runEnd[this.runs] = end;
+		this.runs++;
+	}
+
+	/**
+	 * Root of given run, on the way every node is pointed to its grandparent
+	 * (path halving), so the paths stay short without extra pass.
+	 */
+	private int findRun(int run) {
+		this.findStatsCalls++;
+
+		while (run != this.parent[run]) {
+			this.parent[run] = this.parent[this.parent[run]];
+			run = this.parent[run];
+			this.findStatsIterations++;
+		}
+		return run;
+	}
+
+	/**
+	 * Create group for each run found and then join the runs which overlap with
+	 * the runs on the line above.
+	 */
+	private void joinRuns(Boolean verbose) {
+		this.rowStart[this.height] = this.runs;
+
+		// sized by capacity of runs, so it grows as rarely as the run arrays
+		this.treeMeta.reset(this.runStart.length);
+		for (int run = 0; run < this.runs; run++) {
+			this.parent[run] = run;
+			this.treeMeta.inc(run);
+			this.treeMeta.setSize(run, this.runEnd[run] - this.runStart[run] + 1);
+		}
+
+		if (verbose) System.out.println("Pre-pass groups: " + this.treeMeta.getGroups());
+
+		// ********* second final pass *********
+		for (int y = 1; y < this.height; y++) {
+			int top = this.rowStart[y - 1];
+			int topEnd = this.rowStart[y];
+			int run = this.rowStart[y];
+			int runLast = this.rowStart[y + 1];
+
+			while (top < topEnd && run < runLast) {
+				if (this.runEnd[top] < this.runStart[run]) {
+					top++;
+				} else if (this.runEnd[run] < this.runStart[top]) {
+					run++;
+				} else {
+					// they overlap, move the one which ends first
+					this.unionRuns(top, run);
+					if (this.runEnd[top] < this.runEnd[run]) {
+						top++;
+					} else {
+						run++;
+					}
+				}
+			}
+		}
+
+		if (verbose) System.out.println("Final pass groups: " + this.treeMeta.getGroups());
+		this.publishMetrics();
+	}
+
+	/**
+	 * Add the locally counted find and union stats to the metrics and start
+	 * counting from zero.
+	 */
+	private void publishMetrics() {
+		METRIC_FIND_CALLS.add(this.findStatsCalls);
+		METRIC_FIND_ITERATIONS.add(this.findStatsIterations);
+		METRIC_FIND_FLAT.add(this.findStatsFlatCalls);
+		METRIC_LINKS.add(this.unionStatsLinks);
+		this.findStatsCalls = 0;
+		this.findStatsIterations = 0;
+		this.findStatsFlatCalls = 0;
+		this.unionStatsLinks = 0;
+	}
+
+	/**
+	 * Set dimensions of the next picture, grow the row offsets if needed
+	 */
+	private void resize(int width, int height) {
+		this.width = width;
+		this.height = height;
+		if (this.rowStart.length < this.height + 1) this.rowStart = new int[this.height + 1];
+	}
+
+	/**
+	 * Find run which contains pixel p, or -1 if it's background. Runs of the row
+	 * are sorted so it's binary search, but first the cached run is checked.
+	 * After reset there are no runs (and no dimensions), so all is background.
+	 */
+	private int runOf(int p) {
+		if (this.runs == 0) return -1;
+
+		int y = p / this.width;
+		int x = p - y * this.width;
+
+		if (y == this.cacheRow && this.cacheRun >= 0 && x >= this.runStart[this.cacheRun]
+				&& x <= this.runEnd[this.cacheRun]) return this.cacheRun;
+
+		int low = this.rowStart[y];
+		int high = this.rowStart[y + 1] - 1;
+
+		// last run which starts before or at x
+		while (low <= high) {
+			int mid = (low + high) >>> 1;
+			if (this.runStart[mid] <= x) {
+				low = mid + 1;
+			} else {
+				high = mid - 1;
+			}
+		}
+
+		if (high < this.rowStart[y] || this.runEnd[high] < x) return -1;
+
+		this.cacheRow = y;
+		this.cacheRun = high;
+		return high;
+	}
+
+	/**
+	 * Weighted union of two runs
+	 */
+	private void unionRuns(int runP, int runQ) {
+		int rootP = this.findRun(runP);
+		int rootQ = this.findRun(runQ);
+
+		// they are the same, exit
+		if (rootP == rootQ) return;
+
+		// make smaller root point to larger one
+		this.unionStatsLinks++;
+		if (this.treeMeta.size(rootP) < this.treeMeta.size(rootQ)) {
+			this.parent[rootP] = rootQ;
+			this.treeMeta.merge(rootQ, rootP);
+		} else {
+			this.parent[rootQ] = rootP;
+			this.treeMeta.merge(rootP, rootQ);
+		}
+	}
+
+}
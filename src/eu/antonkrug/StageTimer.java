@@ -0,0 +1,93 @@
+package eu.antonkrug;
+
+/**
+ * Accumulates time spend in each stage of frame processing, so the FPS
+ * printout can show where the time goes. Stages are given just by index into
+ * the names given to constructor, calling mark(stage) adds the time since the
+ * previous mark (or start) to that stage.
+ *
+ * Nothing is allocated while timing, so it can stay enabled for every frame.
+ *
+ * Final is used because it's not intended to extend this class and as in
+ * Effective Java book if I do not design and document for inheritance then I
+ * should prohibit it.
+ *
+ * @author Anton Krug
+ */
+public final class StageTimer {
+	private final String[]	names;
+	private final long[]		nanos;
+	private long						last;
+
+	/**
+	 * @param names
+	 *          names of the stages, index of the name is the stage number
+	 */
+	public StageTimer(String... names) {
+		this.names = names;
+		this.nanos = new long[names.length];
+		this.last = System.nanoTime();
+	}
+
+	/**
+	 * Get time accumulated for given stage
+	 *
+	 * @param stage
+	 * @return nanoseconds
+	 */
+	public long getNanos(int stage) {
+		return this.nanos[stage];
+	}
+
+	/**
+	 * Get time accumulated for all stages together
+	 *
+	 * @return nanoseconds
+	 */
+	public long getTotalNanos() {
+		long total = 0;
+		for (long stage : this.nanos)
+			total += stage;
+		return total;
+	}
+
+	/**
+	 * Add time since last mark to the given stage
+	 *
+	 * @param stage
+	 */
+	public void mark(int stage) {
+		long now = System.nanoTime();
+		this.nanos[stage] += now - this.last;
+		this.last = now;
+	}
+
+	/**
+	 * Clear all the accumulated times
+	 */
+	public void reset() {
+		for (int i = 0; i < this.nanos.length; i++)
+			this.nanos[i] = 0;
+	}
+
+	/**
+	 * Start timing of first stage (when there was a pause since the last mark)
+	 */
+	public void start() {
+		this.last = System.nanoTime();
+	}
+
+	/**
+	 * Shares of each stage from the total time
+	 */
+	public String toString() {
+		long total = Math.max(1, this.getTotalNanos());
+		StringBuilder out = new StringBuilder();
+		for (int i = 0; i < this.names.length; i++) {
+			if (i > 0) out.append(' ');
+			out.append(String.format("%s=%3d%%", this.names[i], (int) (100 * this.nanos[i] / total)));
+		}
+		return out.toString();
+	}
+
+}
@@ -0,0 +1,308 @@
+package eu.antonkrug;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Labeling of images too big to be loaded whole (scans, stitched mosaics).
+ * The image is read band by band trough ImageReader source regions, each band
+ * is labeled on its own by WeightedQuickUnion recycled for all bands, so only
+ * one band of pixels and labels is in memory at the time.
+ *
+ * Groups which don't touch top or bottom row of the band are complete and
+ * their stats are given to the listener straight away. The ones touching the
+ * band boundary get a node in small equivalence forest, the last row of the
+ * band is kept as table of these nodes, so the groups from the next band can be
+ * joined with them. When no pixel of the last row belongs to a group anymore,
+ * the group is complete and given to the listener. After each band the forest
+ * is compacted to the groups still open, so it never grows over the width of
+ * the image.
+ *
+ * Bands are full width tiles, because the groups can be joined on one side only
+ * and the row above is all the boundary table needs. Foreground is the same as
+ * WeightedQuickUnion.populateTree(Picture) gives for the whole image.
+ *
+ * Formats with random access to the rows (tiled or striped TIFF, BMP) read
+ * just the band, compressed streams like JPEG or PNG are decoded from the
+ * start for each band, for them the bands should be rather big.
+ *
+ * Final is used because it's not intended to extend this class and as in
+ * Effective Java book if I do not design and document for inheritance then I
+ * should prohibit it.
+ *
+ * @author Anton Krug
+ */
+public final class TiledLabeling {
+	public final static int	BAND_ROWS	= 256;
+
+	private final double		threshold;
+	private final int				bandRows;
+
+	// equivalence forest of the groups touching band boundaries
+	private int[]						parent, size, minX, maxX, minY, maxY;
+	private int							nodes;
+
+	// node of each pixel in the last row of the previous band, -1 background
+	private int[]						boundary;
+	private int[]						nextBoundary;
+	private int[]						localToNode;
+	private int[]						renumber;
+
+	/**
+	 * Receives the stats of each complete group
+	 */
+	public interface Listener {
+		public void component(int size, int minX, int minY, int maxX, int maxY);
+	}
+
+	/**
+	 * @param threshold
+	 *          luminance threshold of the foreground
+	 * @param bandRows
+	 *          how many rows are read and labeled at once
+	 */
+	public TiledLabeling(double threshold, int bandRows) {
+		if (bandRows < 1) throw new IllegalArgumentException("band has to have at least 1 row");
+
+		this.threshold = threshold;
+		this.bandRows = bandRows;
+	}
+
+	/**
+	 * Label given image file band by band
+	 *
+	 * @return count of groups found
+	 */
+	public int label(File file, Listener listener) throws IOException {
+		ImageInputStream input = ImageIO.createImageInputStream(file);
+		if (input == null) throw new IOException("Can't open " + file);
+
+		try {
+			Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+			if (!readers.hasNext()) throw new IOException("No image reader for " + file);
+
+			ImageReader reader = readers.next();
+			try {
+				reader.setInput(input, true, true);
+				return this.label(reader, listener);
+			} finally {
+				reader.dispose();
+			}
+		} finally {
+			input.close();
+		}
+	}
+
+	/**
+	 * Label first image of the reader band by band
+	 *
+	 * @return count of groups found
+	 */
+	public int label(ImageReader reader, Listener listener) throws IOException {
+		int width = reader.getWidth(0);
+		int height = reader.getHeight(0);
+		int rows = Math.min(this.bandRows, height);
+
+		WeightedQuickUnion union = new WeightedQuickUnion(width * rows);
+		ImageReadParam param = reader.getDefaultReadParam();
+
+		this.allocate(width, rows);
+
+		int components = 0;
+		for (int y = 0; y < height; y += rows) {
+			int bandHeight = Math.min(rows, height - y);
+
+			param.setSourceRegion(new Rectangle(0, y, width, bandHeight));
+			Picture band = new Picture(reader.read(0, param));
+
+			union.reset(band);
+			union.populateTree(band, this.threshold, false);
+			union.flatten(band);
+
+			components += this.joinBand(union, width, bandHeight, y, y + bandHeight == height, listener);
+		}
+		return components;
+	}
+
+	/**
+	 * Prints count of groups and the stats of each group as CSV, the image
+	 * doesn't have to fit into memory.
+	 *
+	 * @param args
+	 *          image file, threshold (default 128) and rows per band
+	 */
+	public static void main(String[] args) throws IOException {
+		if (args.length < 1) {
+			System.out.println("Usage: TiledLabeling image [threshold] [bandRows]");
+			return;
+		}
+
+		double threshold = (args.length > 1) ? Double.parseDouble(args[1]) : 128;
+		int bandRows = (args.length > 2) ? Integer.parseInt(args[2]) : BAND_ROWS;
+
+		System.out.println("size,minX,minY,maxX,maxY");
+		int count = new TiledLabeling(threshold, bandRows).label(new File(args[0]), new Listener() {
+			public void component(int size, int minX, int minY, int maxX, int maxY) {
+				System.out.println(size + "," + minX + "," + minY + "," + maxX + "," + maxY);
+			}
+		});
+		System.err.println("Groups: " + count);
+	}
+
+	/**
+	 * Add group of the band into the forest
+	 */
+	private int addNode(UnionGroup group, int y) {
+		if (this.nodes == this.parent.length) {
+			int length = this.parent.length * 2;
+			this.parent = Arrays.copyOf(this.parent, length);
+			this.size = Arrays.copyOf(this.size, length);
+			this.minX = Arrays.copyOf(this.minX, length);
+			this.maxX = Arrays.copyOf(this.maxX, length);
+			this.minY = Arrays.copyOf(this.minY, length);
+			this.maxY = Arrays.copyOf(this.maxY, length);
+			this.renumber = new int[length];
+		}
+
+		int node = this.nodes++;
+		this.parent[node] = node;
+		this.size[node] = group.getSize();
+		this.minX[node] = group.getMinX();
+		this.maxX[node] = group.getMaxX();
+		this.minY[node] = y + group.getMinY();
+		this.maxY[node] = y + group.getMaxY();
+		return node;
+	}
+
+	private void allocate(int width, int rows) {
+		int length = 2 * width + 2;
+		this.parent = new int[length];
+		this.size = new int[length];
+		this.minX = new int[length];
+		this.maxX = new int[length];
+		this.minY = new int[length];
+		this.maxY = new int[length];
+		this.renumber = new int[length];
+		this.nodes = 0;
+
+		this.boundary = new int[width];
+		this.nextBoundary = new int[width];
+		Arrays.fill(this.boundary, -1);
+		this.localToNode = new int[width * rows];
+	}
+
+	private int findNode(int node) {
+		while (node != this.parent[node]) {
+			this.parent[node] = this.parent[this.parent[node]];
+			node = this.parent[node];
+		}
+		return node;
+	}
+
+	/**
+	 * Join labeled band with the groups left open by the previous bands, report
+	 * the complete groups and keep the open ones for the next band.
+	 *
+	 * @return count of groups reported
+	 */
+	private int joinBand(WeightedQuickUnion union, int width, int rows, int y, boolean last,
+			Listener listener) {
+		int components = 0;
+
+		// ********** groups of the band ***************
+		for (UnionGroup group : union.getAllGroups()) {
+			boolean top = (y > 0 && group.getMinY() == 0);
+			boolean bottom = (!last && group.getMaxY() == rows - 1);
+
+			if (top || bottom) {
+				this.localToNode[group.getKey()] = this.addNode(group, y);
+			} else {
+				listener.component(group.getSize(), group.getMinX(), y + group.getMinY(),
+						group.getMaxX(), y + group.getMaxY());
+				components++;
+			}
+		}
+
+		// ********** join with the previous band ***************
+		for (int x = 0; x < width; x++) {
+			int root = union.tree(x);
+			if (root >= 0 && this.boundary[x] >= 0) this.joinNodes(this.localToNode[root], this.boundary[x]);
+		}
+
+		// ********** groups still open touch the last row ***************
+		int offset = (rows - 1) * width;
+		for (int x = 0; x < width; x++) {
+			int root = last ? -1 : union.tree(offset + x);
+			this.nextBoundary[x] = (root >= 0) ? this.findNode(this.localToNode[root]) : -1;
+		}
+
+		// roots with pixel in the last row stay open
+		for (int node = 0; node < this.nodes; node++)
+			this.renumber[node] = -1;
+		for (int x = 0; x < width; x++) {
+			if (this.nextBoundary[x] >= 0) this.renumber[this.nextBoundary[x]] = 0;
+		}
+
+		// ********** report complete groups, compact forest to the open ones ******
+		// open groups are renumbered in order of their nodes, so the node can only
+		// move down to the place of already processed one
+		int open = 0;
+		for (int node = 0; node < this.nodes; node++) {
+			if (this.parent[node] != node) continue;
+
+			if (this.renumber[node] < 0) {
+				listener.component(this.size[node], this.minX[node], this.minY[node], this.maxX[node],
+						this.maxY[node]);
+				components++;
+			} else {
+				this.renumber[node] = open;
+				this.parent[open] = open;
+				this.size[open] = this.size[node];
+				this.minX[open] = this.minX[node];
+				this.maxX[open] = this.maxX[node];
+				this.minY[open] = this.minY[node];
+				this.maxY[open] = this.maxY[node];
+				open++;
+			}
+		}
+		this.nodes = open;
+
+		for (int x = 0; x < width; x++) {
+			int node = this.nextBoundary[x];
+			this.boundary[x] = (node >= 0) ? this.renumber[node] : -1;
+		}
+
+		return components;
+	}
+
+	/**
+	 * Union of two nodes, the stats are merged into the new root
+	 */
+	private void joinNodes(int a, int b) {
+		a = this.findNode(a);
+		b = this.findNode(b);
+		if (a == b) return;
+
+		if (this.size[a] < this.size[b]) {
+			int tmp = a;
+			a = b;
+			b = tmp;
+		}
+
+		this.parent[b] = a;
+		this.size[a] += this.size[b];
+		this.minX[a] = Math.min(this.minX[a], this.minX[b]);
+		this.maxX[a] = Math.max(this.maxX[a], this.maxX[b]);
+		this.minY[a] = Math.min(this.minY[a], this.minY[b]);
+		this.maxY[a] = Math.max(this.maxY[a], this.maxY[b]);
+	}
+
+}
@@ -1,33 +1,75 @@
 package eu.antonkrug;
 
 import java.awt.Color;
+import java.util.AbstractCollection;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.Iterator;
 import java.util.Map.Entry;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 /**
  * Just container structure to keep together meta of groups and their count.
  * Plus few methods to do some operations with them.
- * 
- * Final is used because it's not intended to extend this class and as 
- * in Effective Java book if I do not design and document for inheritance 
+ *
+ * The meta data are kept as parallel primitive arrays indexed by the root of
+ * the group (struct of arrays), instead of HashMap with UnionGroup objects.
+ * The inc and updateMinMax are called for every single pixel, so boxing the
+ * keys into Integer and looking them up in HashMap was wasting a lot of time
+ * and created a lot of garbage. Now it's just array access. The UnionGroup
+ * objects are created only when somebody asks for them trough getAllGroups or
+ * getKeyValueGroups and are just views into these arrays.
+ *
+ * Group is alive when its size is bigger than 0, merged groups have size 0.
+ *
+ * Final is used because it's not intended to extend this class and as
+ * in Effective Java book if I do not design and document for inheritance
  * then I should prohibit it. It should get better performance as well because
  * no tables are used with method calls for final classes.
- * 
- * @author Anton Krug 
+ *
+ * @author Anton Krug
  */
 
 public final class TreeMeta {
-	private HashMap<Integer, UnionGroup>	meta;
-	private int													groups;
+	private final static int	KEYS_INITIAL	= 64;
+
+	private int[]							size;
+	private int[]							minX, maxX;
+	private int[]							minY, maxY;
+	private boolean[]					disabled;
+	private Color[]						colors;
+
+	// list of roots in order they were created, merged roots are skipped when
+	// iterating and removed when the list is compacted
+	private int[]							keys;
+	private int								keysCount;
+
+	private int								groups;
+
+	// what the UnionGroup views see, the raw setters stay package private
+	private final GroupMeta		view;
 
 	/**
-	 * Contructor initialising the instances and default values
+	 * Contructor initialising the arrays for N elements
+	 *
+	 * @param N
+	 *          the number of objects
 	 */
-	public TreeMeta() {
-		this.meta = new HashMap<Integer, UnionGroup>();
+	public TreeMeta(int N) {
+		this.size = new int[N];
+		this.minX = new int[N];
+		this.maxX = new int[N];
+		this.minY = new int[N];
+		this.maxY = new int[N];
+		this.disabled = new boolean[N];
+		this.colors = new Color[N];
+
+		this.keys = new int[Math.min(N, KEYS_INITIAL)];
+		this.keysCount = 0;
 		this.groups = 0;
+		this.view = new View();
 	}
 
 	/**
@@ -36,7 +78,23 @@ public final class TreeMeta {
 	 * @return
 	 */
 	public Color color(int key) {
-		return this.meta.get(key).getColor();
+		return this.colors[key];
+	}
+
+	/**
+	 * Write packed 0xRRGGBB color of each group into table at index key + 1,
+	 * disabled groups and groups without color get 0. Entries of keys which
+	 * are not groups are not touched.
+	 * 
+	 * @param table
+	 */
+	public void colorTable(int[] table) {
+		this.compact();
+		for (int i = 0; i < this.groups; i++) {
+			int key = this.keys[i];
+			Color color = this.colors[key];
+			table[key + 1] = (this.disabled[key] || color == null) ? 0 : color.getRGB() & 0xFFFFFF;
+		}
 	}
 
 	/**
@@ -44,10 +102,10 @@ public final class TreeMeta {
 	 */
 	public void generateColors() {
 		for (UnionGroup group:this.getAllGroups()) {
-			group.generateColor();	
+			group.generateColor();
 		}
 	}
-	
+
 	/**
 	 * Call color generator on each group and give the color depending by its size
 	 * @param min
@@ -56,27 +114,52 @@ public final class TreeMeta {
 	public void generateColorsBySize(int min, int max) {
 		float max_less=max-min;
 		for (UnionGroup group:this.getAllGroups()) {
-			group.generateColorRainbow((group.getSize()-min)/max_less);	
+			group.generateColorRainbow((group.getSize()-min)/max_less);
 		}
 	}
 
 	/**
 	 * Get metadata info by given key
 	 * @param key
-	 * @return
+	 * @return view of the group or null if there is no such group
 	 */
 	public UnionGroup get(int key) {
-		return this.meta.get(key);
+		if (!this.exists(key)) return null;
+		return new UnionGroup(this.view, key);
 	}
-	
+
 	/**
 	 * Return whole meta data collections with all groups
 	 * @return
 	 */
 	public Collection<UnionGroup> getAllGroups() {
-		return this.meta.values();
+		this.compact();
+
+		return new AbstractCollection<UnionGroup>() {
+			public Iterator<UnionGroup> iterator() {
+				final KeyIterator keyIterator = new KeyIterator();
+
+				return new Iterator<UnionGroup>() {
+					public boolean hasNext() {
+						return keyIterator.hasNext();
+					}
+
+					public UnionGroup next() {
+						return new UnionGroup(view, keyIterator.nextKey());
+					}
+
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+
+			public int size() {
+				return groups;
+			}
+		};
 	}
-	
+
 	/**
 	 * Return number of groups contained in this object
 	 * @return
@@ -84,13 +167,39 @@ public final class TreeMeta {
 	public int getGroups() {
 		return this.groups;
 	}
-	
+
 	/**
 	 * Get all keys and values for all groups
 	 * @return
 	 */
 	public Set<Entry<Integer,UnionGroup>> getKeyValueGroups() {
-		return this.meta.entrySet();
+		this.compact();
+
+		return new AbstractSet<Entry<Integer, UnionGroup>>() {
+			public Iterator<Entry<Integer, UnionGroup>> iterator() {
+				final KeyIterator keyIterator = new KeyIterator();
+
+				return new Iterator<Entry<Integer, UnionGroup>>() {
+					public boolean hasNext() {
+						return keyIterator.hasNext();
+					}
+
+					public Entry<Integer, UnionGroup> next() {
+						int key = keyIterator.nextKey();
+						return new AbstractMap.SimpleImmutableEntry<Integer, UnionGroup>(key, new UnionGroup(
+								view, key));
+					}
+
+					public void remove() {
+						throw new UnsupportedOperationException();
+					}
+				};
+			}
+
+			public int size() {
+				return groups;
+			}
+		};
 	}
 
 	/**
@@ -98,42 +207,344 @@ public final class TreeMeta {
 	 * @param key
 	 */
 	public void inc(int key) {
-		if (this.meta.containsKey(key)) {
-			this.meta.get(key).incSize();
-		} else {
-			this.meta.put(key, new UnionGroup());
+		if (this.incLocal(key)) {
+			this.addKey(key);
 			this.groups++;
 		}
 	}
-	
+
 	/**
 	 * Merge 2 groups metadata together
 	 * @param keyA
 	 * @param keyB
 	 */
 	public void merge(int keyA, int keyB) {
-		this.meta.get(keyA).incSize(this.meta.get(keyB).getSize());
-		this.meta.remove(keyB);
+		this.mergeLocal(keyA, keyB);
 		this.groups--;
 	}
-	
+
+	/**
+	 * Forget all groups and make sure there is space for N elements. Arrays are
+	 * reused when they are big enough, only sizes of the groups which were alive
+	 * have to be cleared, rest of the data is initialised when the group is
+	 * created again.
+	 * 
+	 * @param N
+	 *          the number of objects
+	 */
+	public void reset(int N) {
+		if (this.size.length < N) {
+			this.size = new int[N];
+			this.minX = new int[N];
+			this.maxX = new int[N];
+			this.minY = new int[N];
+			this.maxY = new int[N];
+			this.disabled = new boolean[N];
+			this.colors = new Color[N];
+		} else {
+			for (int i = 0; i < this.keysCount; i++)
+				this.size[this.keys[i]] = 0;
+		}
+
+		this.keysCount = 0;
+		this.groups = 0;
+	}
+
 	/**
 	 * Get size of given group
 	 * @param key
 	 * @return
 	 */
 	public int size(int key) {
-		return this.meta.get(key).getSize();
+		return this.size[key];
 	}
 
 	/**
-	 * Update the min and max x/y of given group 
+	 * Update the min and max x/y of given group
 	 * @param key
 	 * @param x
 	 * @param y
 	 */
 	public void updateMinMax(int key,int x, int y) {
-		this.meta.get(key).updateMinMax(x, y);
+		if (x < this.minX[key]) this.minX[key] = x;
+
+		if (x > this.maxX[key]) this.maxX[key] = x;
+
+		if (y < this.minY[key]) this.minY[key] = y;
+
+		if (y > this.maxY[key]) this.maxY[key] = y;
+	}
+
+	/*
+	 * Methods used by the parallel labeling, each strip touches only its own
+	 * roots in the arrays, but the list of keys and count of groups is shared.
+	 * So strips use the local versions and then register their roots at the end.
+	 */
+
+	/**
+	 * As inc but doesn't register new group into list of keys
+	 * 
+	 * @param key
+	 * @return true if new group was created
+	 */
+	boolean incLocal(int key) {
+		if (this.size[key] > 0) {
+			this.size[key]++;
+			return false;
+		}
+
+		this.size[key] = 1;
+		this.minX[key] = Integer.MAX_VALUE;
+		this.minY[key] = Integer.MAX_VALUE;
+		this.maxX[key] = -1;
+		this.maxY[key] = -1;
+		this.disabled[key] = false;
+		this.colors[key] = null;
+		return true;
+	}
+
+	/**
+	 * As merge but doesn't change the count of groups
+	 * 
+	 * @param keyA
+	 * @param keyB
+	 */
+	void mergeLocal(int keyA, int keyB) {
+		this.size[keyA] += this.size[keyB];
+		this.size[keyB] = 0;
+	}
+
+	/**
+	 * Register groups created by incLocal, the ones which got merged in meantime
+	 * are kept in list of keys but not counted.
+	 * 
+	 * @param created
+	 *          roots created by incLocal
+	 * @param count
+	 *          how many of them are in the array
+	 */
+	void register(int[] created, int count) {
+		for (int i = 0; i < count; i++) {
+			this.addKey(created[i]);
+			if (this.size[created[i]] > 0) this.groups++;
+		}
+	}
+
+	/**
+	 * Drop the group, used when part of the picture is labeled again. The key
+	 * stays in the list of keys until compact() is called, which has to happen
+	 * before the same key can be created again.
+	 * 
+	 * @param key
+	 */
+	void remove(int key) {
+		if (this.size[key] == 0) return;
+		this.size[key] = 0;
+		this.groups--;
+	}
+
+	/**
+	 * Make this a copy of the groups of the source, arrays are reused when they
+	 * are big enough. Only the alive groups are copied, so it costs about the
+	 * same as iterating trough them.
+	 * 
+	 * @param source
+	 */
+	void copy(TreeMeta source) {
+		this.reset(source.size.length);
+		source.compact();
+
+		for (int i = 0; i < source.groups; i++) {
+			int key = source.keys[i];
+			this.size[key] = source.size[key];
+			this.minX[key] = source.minX[key];
+			this.maxX[key] = source.maxX[key];
+			this.minY[key] = source.minY[key];
+			this.maxY[key] = source.maxY[key];
+			this.disabled[key] = source.disabled[key];
+			this.colors[key] = source.colors[key];
+			this.addKey(key);
+		}
+		this.groups = source.groups;
+	}
+
+	/*
+	 * Raw accessors used by the UnionGroup views
+	 */
+
+	boolean exists(int key) {
+		return key >= 0 && key < this.size.length && this.size[key] > 0;
+	}
+
+	boolean isDisabled(int key) {
+		return this.disabled[key];
+	}
+
+	/**
+	 * Key on given position in the list of keys, valid after compact() for
+	 * positions below getGroups()
+	 */
+	int key(int position) {
+		return this.keys[position];
+	}
+
+	int maxX(int key) {
+		return this.maxX[key];
+	}
+
+	int maxY(int key) {
+		return this.maxY[key];
+	}
+
+	int minX(int key) {
+		return this.minX[key];
+	}
+
+	int minY(int key) {
+		return this.minY[key];
+	}
+
+	void setColor(int key, Color color) {
+		this.colors[key] = color;
+	}
+
+	void setDisabled(int key, boolean disabled) {
+		this.disabled[key] = disabled;
+	}
+
+	void setMaxX(int key, int maxX) {
+		this.maxX[key] = maxX;
+	}
+
+	void setMaxY(int key, int maxY) {
+		this.maxY[key] = maxY;
+	}
+
+	void setMinX(int key, int minX) {
+		this.minX[key] = minX;
+	}
+
+	void setMinY(int key, int minY) {
+		this.minY[key] = minY;
+	}
+
+	void setSize(int key, int size) {
+		this.size[key] = size;
+	}
+
+	/**
+	 * Append root to the list of keys and grow the list if needed
+	 */
+	private void addKey(int key) {
+		if (this.keysCount == this.keys.length) {
+			int[] tmp = new int[Math.min(this.size.length, Math.max(KEYS_INITIAL, this.keys.length * 2))];
+			System.arraycopy(this.keys, 0, tmp, 0, this.keysCount);
+			this.keys = tmp;
+		}
+		this.keys[this.keysCount++] = key;
+	}
+
+	/**
+	 * Remove merged roots from the list of keys, so iterating trough groups
+	 * doesn't have to skip them every time. Also makes sure that removed or
+	 * merged key will not be listed twice if it's created again.
+	 */
+	void compact() {
+		if (this.keysCount == this.groups) return;
+
+		int live = 0;
+		for (int i = 0; i < this.keysCount; i++) {
+			if (this.size[this.keys[i]] > 0) this.keys[live++] = this.keys[i];
+		}
+		this.keysCount = live;
+	}
+
+	/**
+	 * Walks trough list of keys and skips the merged ones
+	 */
+	private final class KeyIterator {
+		private int	position	= 0;
+
+		private boolean hasNext() {
+			while (position < keysCount && size[keys[position]] == 0)
+				position++;
+			return position < keysCount;
+		}
+
+		private int nextKey() {
+			if (!hasNext()) throw new NoSuchElementException();
+			return keys[position++];
+		}
+	}
+
+	/**
+	 * The meta data for the UnionGroup views, groups are indexed by their root
+	 */
+	private final class View implements GroupMeta {
+
+		public int root(int group) {
+			return group;
+		}
+
+		public int size(int group) {
+			return size[group];
+		}
+
+		public int minX(int group) {
+			return minX[group];
+		}
+
+		public int maxX(int group) {
+			return maxX[group];
+		}
+
+		public int minY(int group) {
+			return minY[group];
+		}
+
+		public int maxY(int group) {
+			return maxY[group];
+		}
+
+		public Color color(int group) {
+			return colors[group];
+		}
+
+		public boolean isDisabled(int group) {
+			return disabled[group];
+		}
+
+		public void setColor(int group, Color color) {
+			colors[group] = color;
+		}
+
+		public void setDisabled(int group, boolean flag) {
+			disabled[group] = flag;
+		}
+
+		public void setSize(int group, int value) {
+			size[group] = value;
+		}
+
+		public void setMinX(int group, int value) {
+			minX[group] = value;
+		}
+
+		public void setMaxX(int group, int value) {
+			maxX[group] = value;
+		}
+
+		public void setMinY(int group, int value) {
+			minY[group] = value;
+		}
+
+		public void setMaxY(int group, int value) {
+			maxY[group] = value;
+		}
+
+		public void updateMinMax(int group, int x, int y) {
+			TreeMeta.this.updateMinMax(group, x, y);
+		}
 	}
 
 }
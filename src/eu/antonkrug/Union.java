@@ -1,6 +1,7 @@
 package eu.antonkrug;
 
 import java.awt.Color;
+import java.nio.ByteBuffer;
 import java.util.Collection;
 import java.util.Set;
 import java.util.Map.Entry;
@@ -14,10 +15,29 @@ import eu.antonkrug.UnionGroup;
 public interface Union {
 	public void populateTree(Picture pic, double threshold, Boolean verbose);
 
+	// label raw frame with R, G, B bytes per pixel (for example camera memory
+	// given by FrameSource) without making Picture or BufferedImage of it
+	public void populateTree(ByteBuffer rgb, int width, int height, double threshold,
+			Boolean inverse, Boolean verbose);
+
+	// label already thresholded one bit per pixel image, runs of foreground are
+	// found by scanning whole words
+	public void populateTree(BinaryImage image, Boolean verbose);
+
+	// prepare the same instance for next picture (frame), so the structures can
+	// be reused instead of allocating new ones for each frame
+	public void reset(Picture pic);
+
+	public void reset(int N);
+
 	public void generateColorsRandom();
 
 	public void generateColorsBySize(int min, int max);
 
+	// packed color of each enabled group at index root + 1, so the flattened
+	// labels (-1 background) can be mapped to colors without any test
+	public void fillColorTable(int[] rootToRgb);
+
 	public int find(int p);
 
 	public boolean connected(int p, int q);
@@ -26,6 +46,10 @@ public interface Union {
 
 	public Collection<UnionGroup> getAllGroups();
 
+	// pixels of each group packed together by flatten, null when the
+	// implementation doesn't build them
+	public GroupPixels getGroupPixels();
+
 	public Set<Entry<Integer, UnionGroup>> getKeyValueGroups();
 
 	public int tree(int i);
@@ -38,6 +62,8 @@ public interface Union {
 	// implement or call non-flat version of find. Other methods can be almost stubs
 	public void flatten(Picture pic);
 
+	public void flatten(int width, int height);
+
 	public Boolean isFlat();
 
 	public int findFlat(int p);
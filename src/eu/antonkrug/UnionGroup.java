@@ -5,8 +5,11 @@ import java.util.Random;
 import java.security.SecureRandom;
 
 /**
- * Just container structure to keep together meta of groups and their count.
- * Plus few methods to do some operations with them.
+ * View of one group meta data, the data itself are kept in TreeMeta primitive
+ * arrays (or in the group table of LabelMap) and this object just points to
+ * them by the index of the group. Therefore any change done trough setters is
+ * written straight into the GroupMeta and these objects can be created only
+ * when needed.
  * 
  * Final is used because it's not intended to extend this class and as in
  * Effective Java book if I do not design and document for inheritance then I
@@ -27,22 +30,12 @@ import java.security.SecureRandom;
 
 public final class UnionGroup {
 	private static Random	rnd	= new SecureRandom();
-	private Color					color;
-	private int						size;
-	private Boolean				disabled;
-	private int						minX, maxX;
-	private int						minY, maxY;
+	private final GroupMeta	meta;
+	private final int				key;
 
-	public UnionGroup() {
-		// Set the size of a group 1
-		this.size = 1;
-
-		this.minX = Integer.MAX_VALUE;
-		this.minY = Integer.MAX_VALUE;
-		this.maxX = -1;
-		this.maxY = -1;
-
-		this.disabled = false;
+	UnionGroup(GroupMeta meta, int key) {
+		this.meta = meta;
+		this.key = key;
 	}
 
 	public void generateColor() {
@@ -51,12 +44,12 @@ public final class UnionGroup {
 		// Saturation between 0.4 and 0.9 like (4 + rnd(5)) / 10
 		// float saturation = (4000 + rnd.nextInt(5000)) / 10000f;
 		float saturation = (4 + rnd.nextInt(5)) / 10f;
-		this.color = Color.getHSBColor(rnd.nextInt(10) / 10f, saturation, 0.9f);
+		this.meta.setColor(this.key, Color.getHSBColor(rnd.nextInt(10) / 10f, saturation, 0.9f));
 	}
 
 	public void generateColorRainbow(float size) {
 		// Generate bright colors by size of each group
-		this.color = Color.getHSBColor(size * 0.8f, 0.8f, 0.9f);
+		this.meta.setColor(this.key, Color.getHSBColor(size * 0.8f, 0.8f, 0.9f));
 	}
 
 	/*
@@ -64,67 +57,71 @@ public final class UnionGroup {
 	 */
 
 	public Color getColor() {
-		return color;
+		return this.meta.color(this.key);
+	}
+
+	public int getKey() {
+		return this.meta.root(this.key);
 	}
 
 	public int getMaxX() {
-		return maxX;
+		return this.meta.maxX(this.key);
 	}
 
 	public int getMaxY() {
-		return maxY;
+		return this.meta.maxY(this.key);
 	}
 
 	public int getMinX() {
-		return minX;
+		return this.meta.minX(this.key);
 	}
 
 	public int getMinY() {
-		return minY;
+		return this.meta.minY(this.key);
 	}
 
 	public int getSize() {
-		return size;
+		return this.meta.size(this.key);
 	}
 
 	public void incSize() {
-		this.size++;
+		this.meta.setSize(this.key, this.meta.size(this.key) + 1);
 	}
 
 	public void incSize(int amount) {
-		this.size += amount;
+		this.meta.setSize(this.key, this.meta.size(this.key) + amount);
 	}
 
 	public Boolean isDisabled() {
-		return disabled;
+		return this.meta.isDisabled(this.key);
 	}
 
 	public void setColor(Color color) {
-		this.color = color;
+		this.meta.setColor(this.key, color);
 	}
 
 	public void setDisabled(Boolean disabled) {
-		this.disabled = disabled;
+		this.meta.setDisabled(this.key, disabled);
 	}
 
 	public void setMaxX(int maxx) {
-		this.maxX = maxx;
+		this.meta.setMaxX(this.key, maxx);
 	}
 
 	public void setMaxY(int maxy) {
-		this.maxY = maxy;
+		this.meta.setMaxY(this.key, maxy);
 	}
 
 	public void setMinX(int minx) {
-		this.minX = minx;
+		this.meta.setMinX(this.key, minx);
 	}
 
 	public void setMinY(int miny) {
-		this.minY = miny;
+		this.meta.setMinY(this.key, miny);
 	}
 
 	public void setSize(int size) {
-		this.size = size;
+		this.meta.setSize(this.key, size);
 	}
 
 	/**
@@ -143,13 +140,7 @@ public final class UnionGroup {
 	 * @param y
 	 */
 	public void updateMinMax(int x, int y) {
-		if (x < minX) this.minX = x;
-
-		if (x > maxX) this.maxX = x;
-
-		if (y < minY) this.minY = y;
-
-		if (y > maxY) this.maxY = y;
+		this.meta.updateMinMax(this.key, x, y);
 	}
 
 }
@@ -2,14 +2,20 @@ package eu.antonkrug;
 
 import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import com.github.sarxos.webcam.Webcam;
 
-import edu.princeton.cs.introcs.Stopwatch;
+import eu.antonkrug.metrics.Metrics;
 
 /**
  * Streams images from webcam and detects blobs in it
  * 
+ * By default the frames go trough FramePipeline, with --serial argument they
+ * are grabbed, labeled and rendered one after other on the main thread (the
+ * FUSED_PIPELINE, INCREMENTAL, MORPHOLOGY and ADAPTIVE flags choose how), with
+ * --pipelined the pipeline is used even when PIPELINED is off.
+ * 
  * @author Anton Krug
  * 
  */
@@ -18,18 +24,68 @@ public final class WebCam {
 
 	static final Boolean	DETECT_BALL			= false;
 	static final Boolean	COLORS_BY_SIZE	= true;  //if not by size, then they will be random
-	
 
-	public static void main(String[] args) throws IOException {
+	// label straight from the camera buffer, without making Picture of each frame
+	static final Boolean	FUSED_PIPELINE	= true;
+
+	// relabel only rows which changed since previous frame (fused pipeline only)
+	static final Boolean	INCREMENTAL		= true;
+
+	// open the thresholded frame before labeling, so the specks of sensor noise
+	// are not labeled at all (changed rows are then found from the bits)
+	static final Boolean	MORPHOLOGY		= true;
+	static final int			MORPHOLOGY_RADIUS	= 1;
+
+	// threshold each pixel by the mean of its surroundings instead of the
+	// slider, for unevenly lit scenes (labeled from the bits as well)
+	static final Boolean	ADAPTIVE			= false;
+	static final int			ADAPTIVE_RADIUS	= 20;
+
+	// threshold chosen by Otsu's method from each frame instead of the fixed
+	// one, smoothed so it follows the lighting slowly (part of the way per frame)
+	static final Boolean	AUTO_THRESHOLD	= true;
+	static final double		AUTO_SMOOTHING	= 0.1;
+
+	// capture, label, filter and render on separate threads (see FramePipeline),
+	// default when neither --serial nor --pipelined is given
+	static final Boolean	PIPELINED			= true;
+	static final int			RING_SIZE			= 2;
+	static final Boolean	DROP_OLDEST		= true;
+
+	// pack pixels of each group while labeling, so colorizeGroups doesn't scan
+	// their bounding boxes (two ints per pixel)
+	static final Boolean	GROUP_PIXELS	= false;
+
+	// print all labeling metrics as JSON line with the FPS stats
+	static final Boolean	METRICS_LOG		= false;
+
+	// stages of the frame processing for the timing stats
+	private static final int	STAGE_CAM			= 0;
+	private static final int	STAGE_LABEL		= 1;
+	private static final int	STAGE_FLATTEN	= 2;
+	private static final int	STAGE_FILTER	= 3;
+	private static final int	STAGE_RENDER	= 4;
+
+	public static void main(String[] args) throws IOException, InterruptedException {
 		MachineVision app;
 		WeightedQuickUnion union;
-		Stopwatch runTime;
+		Webcam webcam;
+		FrameSource source;
 		int frameCount = 1;
-		double timeTaken = 0;
-		double camTimeTaken = 0;
+		StageTimer timer = new StageTimer("cam", "label", "flatten", "filter", "render");
+
+		boolean pipelined = PIPELINED;
+		for (String arg : args) {
+			if (arg.equals("--serial")) pipelined = false;
+			if (arg.equals("--pipelined")) pipelined = true;
+		}
+
+		// metrics can be watched with jconsole while running
+		Metrics.get().register();
 
 		// automatically open if webcam is closed
 		Webcam.setAutoOpenMode(true);
+		webcam = Webcam.getDefault();
 
 		app = new MachineVision();
 
@@ -41,57 +97,153 @@ public final class WebCam {
 		}
 
 		// get first image to setup GUI window
-		app.loadImage(Webcam.getDefault().getImage(), true);
+		app.loadImage(webcam.getImage(), true);
+		app.setGroupMinThreshold(40);
+
+		Morphology morphology = null;
+		if (MORPHOLOGY) {
+			morphology = new Morphology(Morphology.Operation.OPEN, Morphology.Shape.RECTANGLE,
+					MORPHOLOGY_RADIUS, MORPHOLOGY_RADIUS);
+			app.setMorphology(morphology);
+		}
+
+		AdaptiveThreshold adaptive = null;
+		if (ADAPTIVE) {
+			adaptive = new AdaptiveThreshold(AdaptiveThreshold.Method.BRADLEY, ADAPTIVE_RADIUS, 0.15);
+			app.setAdaptive(adaptive);
+		}
+
+		OtsuThreshold auto = null;
+		if (AUTO_THRESHOLD) auto = new OtsuThreshold(app.getThreshold(), AUTO_SMOOTHING);
+
+		if (pipelined) {
+			// frames are copied, so camera can grab while previous ones are labeled
+			source = new WebcamFrameSource(webcam, RING_SIZE + 2);
+			FramePipeline pipeline = new FramePipeline(app, source, DETECT_BALL, COLORS_BY_SIZE,
+					RING_SIZE, DROP_OLDEST);
+			pipeline.setMorphology(morphology);
+			pipeline.setAdaptive(adaptive);
+			pipeline.setAutoThreshold(auto);
+			pipeline.setGroupPixels(GROUP_PIXELS);
+			pipeline.setVerbose(true);
+			pipeline.setMetricsLog(METRICS_LOG);
+
+			// returns when the camera is closed
+			pipeline.run();
+			return;
+		}
+
+		// union is allocated just once and then recycled for each frame, with
+		// GROUP_PIXELS the pixels of the groups are indexed for colorizing
+		union = new WeightedQuickUnion(app.getImage());
+		union.setGroupPixels(GROUP_PIXELS);
+		if (AUTO_THRESHOLD) union.setLumHistogram(OtsuThreshold.SAMPLE_STEP);
+		app.setUnion(union);
+
+		// zero copy, the frame is labeled before next one is grabbed
+		source = new WebcamFrameSource(webcam, 1);
+		Binarizer binarizer = new Binarizer();
+		BinaryImage binary = new BinaryImage(source.width(), source.height());
 
 		while (true) {
-			runTime = new Stopwatch();
+			timer.start();
+
+			if (FUSED_PIPELINE) {
+				ByteBuffer frame = source.acquire();
+
+				// will not crash on null pointer when the window is closed
+				if (frame == null) System.exit(0);
+				timer.mark(STAGE_CAM);
+
+				if (MORPHOLOGY || ADAPTIVE) {
+					// thresholded into bits and cleaned, then labeled from them
+					if (ADAPTIVE) {
+						binary = adaptive.threshold(frame, source.width(), source.height(), DETECT_BALL,
+								binary);
+					} else {
+						binarizer.binarize(frame, source.width(), source.height(), app.getThreshold(),
+								DETECT_BALL, binary.bits());
+						// used from the next frame
+						if (AUTO_THRESHOLD) app.setThreshold(auto.update(binarizer.getHistogram()));
+					}
+					source.release(frame);
+					if (MORPHOLOGY) morphology.apply(binary);
+
+					if (INCREMENTAL) {
+						// rows with the same bits as in previous frame are not labeled again
+						union.updateTree(binary, false);
+						timer.mark(STAGE_LABEL);
+					} else {
+						union.reset(source.width() * source.height());
+						union.populateTree(binary, false);
+						timer.mark(STAGE_LABEL);
+
+						union.flatten(source.width(), source.height());
+					}
+				} else if (INCREMENTAL) {
+					// thresholding (inversed when detecting ball) is done while labeling
+					// static scene is not labeled again, the tree is flat afterwards
+					union.updateTree(frame, source.width(), source.height(), app.getThreshold(),
+							DETECT_BALL, false);
+					source.release(frame);
+					// histogram is counted while labeling, used from the next frame
+					if (AUTO_THRESHOLD) app.setThreshold(auto.update(union.getLumHistogram()));
+					timer.mark(STAGE_LABEL);
+				} else {
+					union.reset(source.width() * source.height());
+					union.populateTree(frame, source.width(), source.height(), app.getThreshold(),
+							DETECT_BALL, false);
+					source.release(frame);
+					if (AUTO_THRESHOLD) app.setThreshold(auto.update(union.getLumHistogram()));
+					timer.mark(STAGE_LABEL);
+
+					union.flatten(source.width(), source.height());
+				}
+				timer.mark(STAGE_FLATTEN);
 
-			BufferedImage web = Webcam.getDefault().getImage();
+			} else {
+				BufferedImage web = webcam.getImage();
 
-			// will not crash on null pointer when the window is closed
-			if (web != null) {
+				// will not crash on null pointer when the window is closed
+				if (web == null) System.exit(0);
 				app.setImage(web);
-				camTimeTaken += runTime.elapsedTime();
+				timer.mark(STAGE_CAM);
 
 				// app.blurInputImage();
 
-				// will inverse image when detecting ball
-				app.toBWorigin(DETECT_BALL);
+				// histogram is counted with the luminance the labeling needs anyway
+				if (AUTO_THRESHOLD) app.setThreshold(auto.update(app.getImage().getLumHistogram(OtsuThreshold.SAMPLE_STEP)));
 
-				union = new WeightedQuickUnion(app.getWidth() * app.getHeight());
-				app.setUnion(union);
+				// will inverse image when detecting ball, the union is reset by it
+				app.populateUnion(DETECT_BALL);
+				timer.mark(STAGE_LABEL);
 
-				union.populateTree(app.getImage(), app.getThreshold(), false);
 				union.flatten(app.getImage());
+				timer.mark(STAGE_FLATTEN);
+			}
 
-				app.setGroupMinThreshold(40);
-				app.disableSmallGroups();
-
-				if (COLORS_BY_SIZE) {
-					union.generateColorsBySize(app.getGroupSmallest(), app.getGroupBiggest());
-				} else {
-					union.generateColorsRandom();					
-				}
-
-				app.colorizeGroups(app.getPreview(), true, DETECT_BALL);
-
-				app.getPreview().repaint();
+			app.disableSmallGroups();
+			timer.mark(STAGE_FILTER);
 
-				timeTaken += runTime.elapsedTime();
+			if (COLORS_BY_SIZE) {
+				union.generateColorsBySize(app.getGroupSmallest(), app.getGroupBiggest());
+			} else {
+				union.generateColorsRandom();
+			}
 
-				// display stats every 10frames
-				if ((frameCount % 10) == 0) {
-					System.out.printf("FPS: %3d, timeSpendWithCam=%4d%% %s\n", (int) (10 / timeTaken),
-							(int) ((100f * (camTimeTaken)) / timeTaken), app);
-					timeTaken = 0;
-					camTimeTaken = 0;
+			app.colorizeGroups(app.getPreview(), true, DETECT_BALL);
 
-				}
+			app.getPreview().repaint();
+			timer.mark(STAGE_RENDER);
 
-				frameCount++;
-			} else {
-				System.exit(0);
+			// display stats every 10frames
+			if ((frameCount % 10) == 0) {
+				System.out.printf("FPS: %3d, %s %s\n", (int) (10e9 / timer.getTotalNanos()), timer, app);
+				if (METRICS_LOG) System.out.println(Metrics.get().toJson());
+				timer.reset();
 			}
+
+			frameCount++;
 		}
 
 	}
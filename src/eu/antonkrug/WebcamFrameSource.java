@@ -0,0 +1,113 @@
+package eu.antonkrug;
+
+import java.awt.Dimension;
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import com.github.sarxos.webcam.Webcam;
+
+/**
+ * Frames straight from the webcam memory. The default device gives direct
+ * ByteBuffer pointing into the native grabber memory (BufferAccess), so there
+ * is no copy into byte array, no BufferedImage and no Picture made for each
+ * frame.
+ * 
+ * The native memory is overwritten when next frame is grabbed, that's why the
+ * double-buffering contract of FrameSource is needed:
+ * 
+ * With 1 buffer the frame is the camera memory itself (zero copy) and next
+ * frame is not grabbed until the previous one is released. Good for the simple
+ * loop where frame is labeled before next one is needed.
+ * 
+ * With 2 or more buffers each frame is copied in one bulk copy into one of the
+ * buffers owned by this source, so the camera can grab next frame while the
+ * previous ones are still being labeled on other threads.
+ * 
+ * Webcam can't be opened in asynchronous mode, because then its updater thread
+ * is grabbing frames on its own and would overwrite the memory anytime.
+ * 
+ * Final is used because it's not intended to extend this class and as in
+ * Effective Java book if I do not design and document for inheritance then I
+ * should prohibit it.
+ * 
+ * @author Anton Krug
+ */
+public final class WebcamFrameSource implements FrameSource {
+	private final Webcam										webcam;
+	private final int												width, height;
+	private final boolean										zeroCopy;
+
+	// free buffers, in zero copy mode just one token standing for camera memory
+	private final BlockingQueue<ByteBuffer>	free;
+	private final ByteBuffer								token;
+
+	/**
+	 * @param webcam
+	 *          the camera to grab the frames from
+	 * @param buffers
+	 *          1 for zero copy, more to allow grabbing while previous frames are
+	 *          still in use
+	 */
+	public WebcamFrameSource(Webcam webcam, int buffers) {
+		if (buffers < 1) throw new IllegalArgumentException("at least one buffer is needed");
+
+		Dimension size = webcam.getViewSize();
+		this.webcam = webcam;
+		this.width = size.width;
+		this.height = size.height;
+		this.zeroCopy = (buffers == 1);
+
+		this.free = new ArrayBlockingQueue<ByteBuffer>(buffers);
+		this.token = ByteBuffer.allocate(0);
+		if (this.zeroCopy) {
+			this.free.add(this.token);
+		} else {
+			for (int i = 0; i < buffers; i++)
+				this.free.add(ByteBuffer.allocateDirect(this.width * this.height * 3));
+		}
+	}
+
+	/**
+	 * Grab next frame, waits when all buffers are in use
+	 */
+	public ByteBuffer acquire() {
+		ByteBuffer slot;
+		try {
+			slot = this.free.take();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+
+		ByteBuffer camera = this.webcam.getImageBytes();
+		if (camera == null) {
+			this.free.add(slot);
+			return null;
+		}
+
+		if (this.zeroCopy) return camera;
+
+		slot.clear();
+		slot.put(camera);
+		slot.flip();
+		return slot;
+	}
+
+	public int height() {
+		return this.height;
+	}
+
+	/**
+	 * Give the frame back, after this the frame memory can be overwritten
+	 */
+	public void release(ByteBuffer frame) {
+		// adding more than was taken fails, so double release is caught
+		this.free.add(this.zeroCopy ? this.token : frame);
+	}
+
+	public int width() {
+		return this.width;
+	}
+
+}
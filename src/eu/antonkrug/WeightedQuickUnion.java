@@ -1,9 +1,17 @@
 package eu.antonkrug;
 
 import java.awt.Color;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import eu.antonkrug.metrics.Counter;
+import eu.antonkrug.metrics.Histogram;
+import eu.antonkrug.metrics.Metrics;
 
 /**
  * Based on: http://algs4.cs.princeton.edu/15uf 4th Edition</i> by Robert
@@ -14,17 +22,78 @@ import java.util.Set;
  * @author Anton Krug
  */
 public final class WeightedQuickUnion implements Union {
-	public final static Boolean	FIND_STATS				= false;
-	public final static Boolean	FIND_FLAT_ON_FLY	= false;
+	// default link strategy, SIZE when true, NONE otherwise
 	public final static Boolean	WEIGHTED_UNION		= true;
 
+	// find paths this long or longer are counted together in the last length
+	public final static int			PATH_LENGTHS			= 64;
+
+	private final static Metrics.Stage	METRIC_POPULATE				= Metrics.get().stage("populateTree");
+	private final static Metrics.Stage	METRIC_PARALLEL				= Metrics.get().stage(
+																																"populateTreeParallel");
+	private final static Metrics.Stage	METRIC_FLATTEN				= Metrics.get().stage("flatten");
+	private final static Metrics.Stage	METRIC_UPDATE					= Metrics.get().stage("updateTree");
+	private final static Histogram			METRIC_UPDATE_ROWS		= Metrics.get().histogram(
+																																"updateTree.rows");
+	private final static Histogram			METRIC_PRE_PASS				= Metrics.get().histogram(
+																																"groups.prePass");
+	private final static Histogram			METRIC_GROUPS					= Metrics.get().histogram(
+																																"groups.final");
+	private final static Histogram			METRIC_PATH						= Metrics.get().histogram(
+																																"find.pathLength");
+	private final static Counter				METRIC_LINKS					= Metrics.get().counter("union.links");
+	private final static Counter				METRIC_FIND_FLAT			= Metrics.get().counter(
+																																"find.flat.calls");
+	private final static Counter[]			METRIC_FIND_CALLS			= new Counter[FindStrategy.values().length];
+	private final static Counter[]			METRIC_FIND_ITERATIONS	= new Counter[FindStrategy.values().length];
+
+	static {
+		for (FindStrategy strategy : FindStrategy.values()) {
+			String name = "find." + strategy.name().toLowerCase();
+			METRIC_FIND_CALLS[strategy.ordinal()] = Metrics.get().counter(name + ".calls");
+			METRIC_FIND_ITERATIONS[strategy.ordinal()] = Metrics.get().counter(name + ".iterations");
+		}
+	}
+
+	// strips thinner than this are not worth of the fork/join overhead
+	public final static int			STRIP_MIN_ROWS		= 32;
+	final static ForkJoinPool					POOL						= new ForkJoinPool();
+
 	private int[]								tree;
 	private TreeMeta						treeMeta;
 
-	private int									findStatsCalls;
-	private int									findStatsIterations;
+	private FindStrategy				findStrategy;
+	private LinkStrategy				linkStrategy;
+	private byte[]							rank;
+
+	// find path lengths counted locally, indexed by strategy * PATH_LENGTHS +
+	// length, and added to the metrics once per frame
+	private long[]							findStatsPaths;
+	private long[]							findStatsLongIterations;
+	private long								findStatsFlatCalls;
+	private long								unionStatsLinks;
 	private Boolean							flat;
 
+	// pixels of each group packed together, built by flatten when enabled
+	private GroupPixels					groupPixels;
+
+	// 8 bit luminance of every step row of the last camera frame, counted while
+	// it's labeled, for OtsuThreshold
+	private int[]								lumHistogram;
+	private int									lumHistogramStep;
+
+	// previous frame labeled by updateTree, the next one can be labeled
+	// incrementally only when it has same size and thresholding, previousImage
+	// is the foreground of it when it was labeled from BinaryImage
+	private boolean							previousValid;
+	private int									previousWidth;
+	private int									previousHeight;
+	private double							previousThreshold;
+	private boolean							previousInverse;
+	private BinaryImage					previousImage;
+	private boolean[]						dirtyRows;
+	private int[]								dirtyQueue;
+
 	/**
 	 * Initializes an empty union-find data structure with N isolated components
 	 * -1 through N-1.
@@ -36,15 +105,30 @@ public final class WeightedQuickUnion implements Union {
 	 */
 	public WeightedQuickUnion(int N) {
 		this.flat = false;
-		this.findStatsCalls = 0;
-		this.findStatsIterations = 0;
+		this.previousValid = false;
+		this.findStrategy = FindStrategy.NONE;
+		this.linkStrategy = WEIGHTED_UNION ? LinkStrategy.SIZE : LinkStrategy.NONE;
+		this.findStatsPaths = new long[FindStrategy.values().length * PATH_LENGTHS];
+		this.findStatsLongIterations = new long[FindStrategy.values().length];
+		this.findStatsFlatCalls = 0;
+		this.unionStatsLinks = 0;
 
-		this.treeMeta = new TreeMeta();
+		this.treeMeta = new TreeMeta(N);
 		this.tree = new int[N];
 		for (int i = 0; i < N; i++)
 			this.tree[i] = -1;
 	}
 
+	/**
+	 * Initializes union-find structure big enough for given picture.
+	 * 
+	 * @param pic
+	 *          the picture which will be processed
+	 */
+	public WeightedQuickUnion(Picture pic) {
+		this(pic.width() * pic.height());
+	}
+
 	/**
 	 * Are the two sites <tt>p</tt> and <tt>q</tt> in the same component?
 	 * 
@@ -61,9 +145,45 @@ public final class WeightedQuickUnion implements Union {
 		return find(p) == find(q);
 	}
 
+	/**
+	 * Make this a snapshot of the labels and groups of the first N sites of the
+	 * source, the arrays are reused when they are big enough. It's meant for
+	 * handing labeled frame to other threads while the source goes on with
+	 * labeling the next frame incrementally, so the snapshot is never used as a
+	 * previous frame by updateTree.
+	 * 
+	 * @param source
+	 *          union to copy, packed pixels are copied when both have them and
+	 *          dropped when the source doesn't have them
+	 * @param N
+	 *          the number of sites
+	 */
+	public void copy(WeightedQuickUnion source, int N) {
+		if (this.tree.length < N) this.tree = new int[N];
+		System.arraycopy(source.tree, 0, this.tree, 0, N);
+
+		this.treeMeta.copy(source.treeMeta);
+		if (source.groupPixels == null) {
+			this.groupPixels = null;
+		} else if (this.groupPixels != null) {
+			this.groupPixels.copy(source.groupPixels, this.treeMeta);
+		}
+
+		this.flat = source.flat;
+		this.previousValid = false;
+	}
+
+	/**
+	 * Colors of enabled groups at index root + 1, disabled groups get 0
+	 */
+	public void fillColorTable(int[] rootToRgb) {
+		this.treeMeta.colorTable(rootToRgb);
+	}
+
 	/**
 	 * Returns the component identifier for the component containing site, be
-	 * careful to not send a -1 <tt>p</tt>.
+	 * careful to not send a -1 <tt>p</tt>. Depending on the find strategy the
+	 * visited sites are moved closer to the root on the way.
 	 * 
 	 * @param p
 	 *          the integer representing one site
@@ -73,32 +193,75 @@ public final class WeightedQuickUnion implements Union {
 	 *           unless 0 <= p < N
 	 */
 	public int find(int p) {
-		if (FIND_FLAT_ON_FLY) {
-			// will update root with every find operation
-			int orig = p;
-
-			if (FIND_STATS) findStatsCalls++;
+		return this.find(p, this.findStatsPaths, this.findStatsLongIterations);
+	}
 
-			while (p != this.tree[p]) {
-				p = this.tree[p];
+	/**
+	 * The find, counting the path length into the given stats, so strips
+	 * labeling in parallel can count into their own arrays
+	 */
+	private int find(int p, long[] paths, long[] longIterations) {
+		int length = 0;
+		int root;
 
-				if (FIND_STATS) findStatsIterations++;
-			}
+		switch (this.findStrategy) {
+			case FULL_COMPRESSION:
+				// first find the root, then point the whole path to it
+				root = p;
+				while (root != this.tree[root]) {
+					root = this.tree[root];
+					length++;
+				}
 
-			this.tree[orig] = p;
+				while (p != root) {
+					int next = this.tree[p];
+					this.tree[p] = root;
+					p = next;
+				}
+				break;
 
-		} else {
-			// will not update root
+			case HALVING:
+				// every other site on the path is pointed to its grandparent
+				while (p != this.tree[p]) {
+					this.tree[p] = this.tree[this.tree[p]];
+					p = this.tree[p];
+					length++;
+				}
+				root = p;
+				break;
 
-			if (FIND_STATS) findStatsCalls++;
+			case SPLITTING:
+				// every site on the path is pointed to its grandparent
+				while (p != this.tree[p]) {
+					int next = this.tree[p];
+					this.tree[p] = this.tree[next];
+					p = next;
+					length++;
+				}
+				root = p;
+				break;
 
-			while (p != this.tree[p]) {
-				p = this.tree[p];
+			default:
+				// will not update the tree
+				while (p != this.tree[p]) {
+					p = this.tree[p];
+					length++;
+				}
+				root = p;
+				break;
+		}
 
-				if (FIND_STATS) findStatsIterations++;
-			}
+		// single increment in the common case, so it can stay always on. With
+		// LabelingBenchmark populateTree and flatten are within the noise of find
+		// without it, counting per row instead wasn't any faster.
+		int strategy = this.findStrategy.ordinal();
+		if (length < PATH_LENGTHS - 1) {
+			paths[strategy * PATH_LENGTHS + length]++;
+		} else {
+			paths[strategy * PATH_LENGTHS + PATH_LENGTHS - 1]++;
+			longIterations[strategy] += length;
 		}
-		return p;
+		return root;
 	}
 
 	/**
@@ -107,45 +270,47 @@ public final class WeightedQuickUnion implements Union {
 	 * find.
 	 */
 	public int findFlat(int p) {
-		if (FIND_STATS) findStatsCalls++;
+		this.findStatsFlatCalls++;
 		return this.tree[p];
 	}
 
 	/**
-	 * Display profiling stats when verbose debuging is enabled for find call. 
-	 * 
+	 * Display profiling stats of the find calls for each strategy which was used
+	 * so far (by all instances), the stats are taken from the metrics.
 	 */
 	public void findStatsDisplay() {
-		if (FIND_STATS)
-			System.out.println("Find stats, calls:" + findStatsCalls + " looped:" + findStatsIterations
-					+ " loops/call:" + (float) (findStatsIterations) / findStatsCalls);
+		this.publishMetrics();
+		for (FindStrategy strategy : FindStrategy.values()) {
+			int i = strategy.ordinal();
+			long calls = METRIC_FIND_CALLS[i].get();
+			if (calls == 0) continue;
+			System.out.println("Find stats " + strategy + ", calls:" + calls + " looped:"
+					+ METRIC_FIND_ITERATIONS[i].get() + " loops/call:"
+					+ (float) (METRIC_FIND_ITERATIONS[i].get()) / calls);
+		}
+		System.out.println("Find stats flat, calls:" + METRIC_FIND_FLAT.get());
 	}
 
 	/**
 	 * Will flatten all groups into weight 1.
 	 */
 	public void flatten(Picture pic) {
-		// because of the horizontal pre-grouping here it will often encounter same
-		// group which will belong to same root, therefore i will cache 1 pixel of
-		// the root loockup to reuse it. This will work even between the gaps if the
-		// group will be same. So flatening should go pretty quick and
-		// guarantee that root is 1 iteration away for another fast image processing
-		int cacheGroup = -1;
-		int cacheRoot = -1;
-		int index = 0;
-		for (int y = 0; y < pic.height(); y++) {
-			for (int x = 0; x < pic.width(); x++, index++) {
-				if (this.tree[index] >= 0) {
-					if (cacheGroup != this.tree[index]) {
-						cacheGroup = this.tree[index];
-						cacheRoot = find(cacheGroup);
-					}
-					this.tree[index] = cacheRoot;
-					this.treeMeta.updateMinMax(cacheRoot, x, y);
-				}
-			}
-		}
+		this.flatten(pic.width(), pic.height());
+	}
+
+	/**
+	 * As flatten(Picture) when there is no picture, just the dimensions of the
+	 * frame which was labeled.
+	 */
+	public void flatten(int width, int height) {
+		long nanos = System.nanoTime(), bytes = Metrics.allocatedBytes();
+
+		if (this.groupPixels != null) this.groupPixels.begin(this.treeMeta, width * height);
+		this.flattenRows(width, 0, height - 1, this.groupPixels);
 		this.flat = true;
+
+		METRIC_FLATTEN.recordSince(nanos, bytes);
+		this.publishMetrics();
 	}
 
 	/**
@@ -177,12 +342,47 @@ public final class WeightedQuickUnion implements Union {
 		return this.treeMeta.color(findFlat(index));
 	}
 
+	/**
+	 * How the find is moving sites closer to the root
+	 */
+	public FindStrategy getFindStrategy() {
+		return this.findStrategy;
+	}
+
+	/**
+	 * Pixels of each group packed together, null if they are not built or the
+	 * tree is not flat
+	 */
+	public GroupPixels getGroupPixels() {
+		// after union the groups changed and they are valid after next flatten
+		return this.flat ? this.groupPixels : null;
+	}
+
+	/**
+	 * Histogram of the 8 bit luminance of the last frame labeled from the camera
+	 * buffer (populateTree or updateTree of ByteBuffer), counted from every step
+	 * row while the frame is labeled. Null when it's not enabled by
+	 * setLumHistogram.
+	 * 
+	 * @return the histogram, don't modify it
+	 */
+	public int[] getLumHistogram() {
+		return this.lumHistogram;
+	}
+
 	/**
 	 * Return collection of keys and values for each group
 	 */
 	public Set<Entry<Integer, UnionGroup>> getKeyValueGroups() {
 		return this.treeMeta.getKeyValueGroups();
 	}
+
+	/**
+	 * Which root is linked under which when joining two groups
+	 */
+	public LinkStrategy getLinkStrategy() {
+		return this.linkStrategy;
+	}
 	
 	/**
 	 * Print stats of all groups
@@ -222,9 +422,14 @@ public final class WeightedQuickUnion implements Union {
 	 * In second pass it check for top and just joins the flat groups together.
 	 */
 	public void populateTree(Picture pic, double threshold, Boolean verbose) {
+		long nanos = System.nanoTime(), bytes = Metrics.allocatedBytes();
 
 		int index = 0;
 
+		// luminance is calculated only once for the picture and cached
+		char[] lum = pic.getLumPlane();
+		int above = Picture.lumAbove(threshold);
+
 		// will merge on line basis so at least it will do less unions in final pass
 		// overhead in this stage is minimal, but saving for second stage is huge,
 		// because it generates flat groups and in second stage just first pixels
@@ -240,7 +445,7 @@ public final class WeightedQuickUnion implements Union {
 		for (int y = 0; y < pic.height(); y++) {
 			int leftRoot = -1;
 			for (int x = 0; x < pic.width(); x++, index++) {
-				if (pic.getLum(x, y) > threshold) {
+				if (lum[index] > above) {
 
 					// will check if element left to current one is in some root,
 					// if so will add current one to it as well.
@@ -270,27 +475,232 @@ public final class WeightedQuickUnion implements Union {
 		}
 
 		if (verbose) System.out.println("Pre-pass groups: " + this.treeMeta.getGroups());
+		METRIC_PRE_PASS.record(this.treeMeta.getGroups());
 
-		// ********* second final pass *********
+		this.unionRows(pic.width(), 0, pic.height() - 1);
 
-		// this part could be done as linear loop but, then it would require more
-		// conditional checking per each loop cycle, which would make it even slowe
-		// than it's now
+		if (verbose) System.out.println("Final pass groups: " + this.treeMeta.getGroups());
+		METRIC_GROUPS.record(this.treeMeta.getGroups());
+		METRIC_POPULATE.recordSince(nanos, bytes);
+	}
 
-		// you don't have to process first line (because it will not do any
-		// difference)
-		index = pic.width();
-		for (int y = 1; y < pic.height(); y++) {
+	/**
+	 * Same groups as populateTree of the picture the image was thresholded
+	 * from, but the runs are found by scanning the words of the image, so
+	 * background is skipped 64 pixels at time. Each run is created with its
+	 * whole size at once and in the second pass the rows are joined only once
+	 * for each run of pixels which are foreground in both rows, instead of
+	 * checking every pixel with the one above it.
+	 */
+	public void populateTree(BinaryImage image, Boolean verbose) {
+		long nanos = System.nanoTime(), bytes = Metrics.allocatedBytes();
 
-			// get pointer 1 pixel above the current
-			int top = (y - 1) * pic.width();
-			for (int x = 0; x < pic.width(); x++, index++, top++)
-				if (this.tree[index] >= 0 && this.tree[top] >= 0) this.union(top, index);
+		this.labelRows(image, 0, image.height() - 1);
+
+		if (verbose) System.out.println("Pre-pass groups: " + this.treeMeta.getGroups());
+		METRIC_PRE_PASS.record(this.treeMeta.getGroups());
+
+		this.unionRows(image, 0, image.height() - 1);
+
+		if (verbose) System.out.println("Final pass groups: " + this.treeMeta.getGroups());
+		METRIC_GROUPS.record(this.treeMeta.getGroups());
+		METRIC_POPULATE.recordSince(nanos, bytes);
+	}
+
+	/**
+	 * Fused version of populateTree for webcam frames, reads the raw 3 bytes per
+	 * pixel RGB buffer given by the camera and thresholds each pixel in the same
+	 * sweep as the pre-grouping is done. So there is no copy of the frame into
+	 * Picture, no binarization pass and no luminance plane, the labels and
+	 * groups meta data are produced straight from the camera memory.
+	 * 
+	 * Foreground is the same as when the frame would be binarized by toBW and
+	 * then labeled: pixels with luminance bigger or equal than threshold, or
+	 * smaller when inverse is set.
+	 * 
+	 * @param rgb
+	 *          buffer with R, G, B bytes for each pixel row by row starting at
+	 *          its position
+	 * @param width
+	 *          width of the frame
+	 * @param height
+	 *          height of the frame
+	 */
+	public void populateTree(ByteBuffer rgb, int width, int height, double threshold,
+			Boolean inverse, Boolean verbose) {
+		long nanos = System.nanoTime(), bytes = Metrics.allocatedBytes();
+
+		this.labelRows(rgb, width, 0, height - 1, Picture.lumBelow(threshold), inverse,
+				this.clearLumHistogram());
+
+		if (verbose) System.out.println("Pre-pass groups: " + this.treeMeta.getGroups());
+		METRIC_PRE_PASS.record(this.treeMeta.getGroups());
+
+		this.unionRows(width, 0, height - 1);
+
+		if (verbose) System.out.println("Final pass groups: " + this.treeMeta.getGroups());
+		METRIC_GROUPS.record(this.treeMeta.getGroups());
+		METRIC_POPULATE.recordSince(nanos, bytes);
+	}
+
+	/**
+	 * Same result as populateTree, but the picture is split into horizontal
+	 * strips which are processed in parallel. Each strip does the same
+	 * binarize & pre-group pass and the vertical union pass as populateTree, but
+	 * only within its own rows, so strips never touch each others part of the
+	 * tree. When all strips are done, the first row of each strip is joined with
+	 * the last row of strip above it (seam pass), which are just few unions
+	 * compared to the rest of the picture.
+	 * 
+	 * Roots can end up on different positions than with populateTree, but the
+	 * groups (components) will be the same. Each strip counts its find and
+	 * union stats on its own and they are added together at the end.
+	 */
+	public void populateTreeParallel(final Picture pic, final double threshold, Boolean verbose) {
+		long nanos = System.nanoTime(), bytes = Metrics.allocatedBytes();
+		int width = pic.width();
+		int height = pic.height();
+
+		if (height == 0) return;
+
+		// few strips per core so faster cores can take over work from slower ones
+		int strips = Math.max(1, Math.min(POOL.getParallelism() * 4, height / STRIP_MIN_ROWS));
+		int rows = (height + strips - 1) / strips;
+		strips = (height + rows - 1) / rows;
+
+		// plane is cached lazily, so it has to be ready before strips start
+		char[] lum = pic.getLumPlane();
+		int above = Picture.lumAbove(threshold);
+
+		final Strip[] list = new Strip[strips];
+		for (int i = 0; i < strips; i++)
+			list[i] = new Strip(lum, above, width, i * rows, Math.min(height, (i + 1) * rows));
 
+		POOL.invoke(new RecursiveAction() {
+			private static final long	serialVersionUID	= 1L;
+
+			protected void compute() {
+				invokeAll(list);
+			}
+		});
+
+		for (Strip strip : list)
+			this.treeMeta.register(strip.created, strip.createdCount);
+
+		if (verbose) System.out.println("Strips: " + strips + " groups: " + this.treeMeta.getGroups());
+		METRIC_PRE_PASS.record(this.treeMeta.getGroups());
+
+		// ********* seam pass *********
+		for (int i = 1; i < strips; i++) {
+			int index = list[i].yFrom * width;
+			int top = index - width;
+			for (int x = 0; x < width; x++, index++, top++)
+				if (this.tree[index] >= 0 && this.tree[top] >= 0) this.union(top, index);
 		}
 
+		// stats of the strips are added to the ones of the seam pass
+		for (Strip strip : list)
+			this.addStats(strip);
+
 		if (verbose) System.out.println("Final pass groups: " + this.treeMeta.getGroups());
+		METRIC_GROUPS.record(this.treeMeta.getGroups());
+		METRIC_PARALLEL.recordSince(nanos, bytes);
+	}
 
+	/**
+	 * Prepare this structure for next picture of same or different size. The
+	 * tree array and meta data are reused and grown only when the picture
+	 * resolution is bigger than anything processed before. So processing frames
+	 * from webcam doesn't need to allocate new structures for every frame.
+	 * 
+	 * @param pic
+	 *          the picture which will be processed next
+	 */
+	public void reset(Picture pic) {
+		this.reset(pic.width() * pic.height());
+	}
+
+	/**
+	 * Same as reset(Picture) but just for N isolated components.
+	 * 
+	 * @throws java.lang.IllegalArgumentException
+	 *           if N < 0
+	 * @param N
+	 *          the number of objects
+	 */
+	public void reset(int N) {
+		if (N < 0) throw new IllegalArgumentException("N must be nonnegative");
+
+		this.flat = false;
+		this.previousValid = false;
+
+		if (this.tree.length < N) this.tree = new int[N];
+		Arrays.fill(this.tree, 0, N, -1);
+
+		if (this.rank != null) {
+			if (this.rank.length < N) {
+				this.rank = new byte[N];
+			} else {
+				Arrays.fill(this.rank, 0, N, (byte) 0);
+			}
+		}
+
+		this.treeMeta.reset(N);
+	}
+
+	/**
+	 * Change the find strategy, can be changed anytime, even in middle of
+	 * labeling, because all strategies keep the same roots.
+	 * 
+	 * @param findStrategy
+	 */
+	public void setFindStrategy(FindStrategy findStrategy) {
+		this.findStrategy = findStrategy;
+	}
+
+	/**
+	 * Build pixels of each group by flatten (and updateTree), so they can be
+	 * colorized without scanning their bounding boxes. Costs two ints per pixel.
+	 * 
+	 * @param enabled
+	 */
+	public void setGroupPixels(Boolean enabled) {
+		if (!enabled) {
+			this.groupPixels = null;
+		} else if (this.groupPixels == null) {
+			this.groupPixels = new GroupPixels(this.tree.length);
+		}
+	}
+
+	/**
+	 * Change the link strategy, has to be set before populateTree (after reset),
+	 * because the ranks are counted only while rank strategy is used.
+	 * 
+	 * @param linkStrategy
+	 */
+	public void setLinkStrategy(LinkStrategy linkStrategy) {
+		this.linkStrategy = linkStrategy;
+		if (linkStrategy == LinkStrategy.RANK && this.rank == null) {
+			this.rank = new byte[this.tree.length];
+		}
+	}
+
+	/**
+	 * Count histogram of the luminance of every step row of the camera frames
+	 * while they are labeled, so OtsuThreshold doesn't have to read the frame
+	 * again (see getLumHistogram). 0 to stop counting.
+	 * 
+	 * @param step
+	 *          every which row is counted (OtsuThreshold.SAMPLE_STEP)
+	 */
+	public void setLumHistogram(int step) {
+		if (step < 0) throw new IllegalArgumentException("step can't be negative");
+		this.lumHistogramStep = step;
+		if (step == 0) {
+			this.lumHistogram = null;
+		} else if (this.lumHistogram == null) {
+			this.lumHistogram = new int[Picture.LUM_LEVELS];
+		}
 	}
 
 	/**
@@ -300,6 +710,13 @@ public final class WeightedQuickUnion implements Union {
 		return tree[i];
 	}
 
+	/**
+	 * Raw labels for the linear sweeps (colorizeLinear), don't modify it
+	 */
+	int[] treeArray() {
+		return this.tree;
+	}
+
 	/**
 	 * Merges the component containing site<tt>p</tt> with the component
 	 * containing site <tt>q</tt>.
@@ -312,24 +729,580 @@ public final class WeightedQuickUnion implements Union {
 	 *           unless both 0 <= p < N and 0 <= q < N
 	 */
 	public void union(int p, int q) {
-		int rootP = find(p);
-		int rootQ = find(q);
+		// tree is not matching the previous frame anymore and the joined group
+		// is not flat
+		this.previousValid = false;
+		this.flat = false;
+		this.link(p, q, null);
+	}
 
-		// they are the same, exit
-		if (rootP == rootQ) return;
+	/**
+	 * Label next video frame reusing the labels of the previous one. Rows where
+	 * the thresholded frame differs from the previous frame are marked dirty and
+	 * then grown until they cover whole old groups touching them. Only these
+	 * bands are labeled again and joined with the untouched rows around them, so
+	 * static parts of the scene keep their roots, sizes, min/max and colors.
+	 * 
+	 * Whole frame is labeled when there is no usable previous frame (first call,
+	 * after reset or union, or when resolution or thresholding changed). In both
+	 * cases the tree is flat afterwards and flatten doesn't have to be called.
+	 * 
+	 * @param rgb
+	 *          buffer with R, G, B bytes for each pixel row by row starting at
+	 *          its position
+	 * @param width
+	 *          width of the frame
+	 * @param height
+	 *          height of the frame
+	 * @return how many rows had to be labeled again
+	 */
+	public int updateTree(ByteBuffer rgb, int width, int height, double threshold,
+			Boolean inverse, Boolean verbose) {
+		boolean invert = inverse;
+		int below = Picture.lumBelow(threshold);
+
+		if (!this.previousValid || this.previousImage != null || this.previousWidth != width
+				|| this.previousHeight != height || this.previousThreshold != threshold
+				|| this.previousInverse != invert) {
+			this.reset(width * height);
+			this.populateTree(rgb, width, height, threshold, inverse, verbose);
+			this.flatten(width, height);
+
+			this.previousValid = true;
+			this.previousImage = null;
+			this.previousWidth = width;
+			this.previousHeight = height;
+			this.previousThreshold = threshold;
+			this.previousInverse = invert;
+			METRIC_UPDATE_ROWS.record(height);
+			return height;
+		}
+
+		long nanos = System.nanoTime(), bytes = Metrics.allocatedBytes();
+		this.clearDirtyRows(height);
+
+		// ********** find rows which changed ***************
+		// enough to find first different pixel in the row, the foreground of the
+		// previous frame is still in the tree. Rows sampled for the histogram are
+		// read whole and counted here, so relabel doesn't count them again.
+		int[] histogram = this.clearLumHistogram();
+		int queued = 0;
+		int offset = rgb.position();
+		for (int y = 0; y < height; y++) {
+			boolean sampled = histogram != null && y % this.lumHistogramStep == 0;
+			int index = y * width;
+			for (int x = 0; x < width; x++, index++) {
+				int at = offset + index * 3;
+				int lum = Picture.lumFixed(rgb.get(at) & 0xFF, rgb.get(at + 1) & 0xFF,
+						rgb.get(at + 2) & 0xFF);
+				if (sampled) histogram[lum >>> Picture.LUM_SHIFT]++;
+
+				if (!this.dirtyRows[y] && ((lum < below) == invert) != (this.tree[index] >= 0)) {
+					this.dirtyRows[y] = true;
+					this.dirtyQueue[queued++] = y;
+					if (!sampled) break;
+				}
+			}
+		}
+
+		queued = this.relabel(rgb, null, width, height, below, invert, queued, verbose);
+		METRIC_UPDATE.recordSince(nanos, bytes);
+		return queued;
+	}
+
+	/**
+	 * Same as updateTree of raw frame, but for frames which were thresholded
+	 * (and cleaned by Morphology) into BinaryImage. Copy of the foreground is
+	 * kept, so the changed rows are found by comparing the packed words of each
+	 * row with the previous frame, 64 pixels at time.
+	 * 
+	 * @return how many rows had to be labeled again
+	 */
+	public int updateTree(BinaryImage image, Boolean verbose) {
+		int width = image.width();
+		int height = image.height();
+
+		if (!this.previousValid || this.previousImage == null || !this.previousImage.sameSize(image)) {
+			this.reset(width * height);
+			this.populateTree(image, verbose);
+			this.flatten(width, height);
+
+			if (this.previousImage == null || !this.previousImage.sameSize(image))
+				this.previousImage = new BinaryImage(width, height);
+			this.previousImage.copy(image);
+			this.previousValid = true;
+			this.previousWidth = width;
+			this.previousHeight = height;
+			METRIC_UPDATE_ROWS.record(height);
+			return height;
+		}
+
+		long nanos = System.nanoTime(), bytes = Metrics.allocatedBytes();
+		this.clearDirtyRows(height);
+
+		// ********** find rows which changed ***************
+		int queued = 0;
+		int words = image.words();
+		long[] bits = image.bits();
+		long[] previous = this.previousImage.bits();
+		for (int y = 0, row = 0; y < height; y++, row += words) {
+			for (int w = row; w < row + words; w++) {
+				if (bits[w] != previous[w]) {
+					this.dirtyRows[y] = true;
+					this.dirtyQueue[queued++] = y;
+					break;
+				}
+			}
+		}
+
+		if (queued > 0) this.previousImage.copy(image);
+		queued = this.relabel(null, image, width, height, 0, false, queued, verbose);
+		METRIC_UPDATE.recordSince(nanos, bytes);
+		return queued;
+	}
+
+	/**
+	 * Add the stats counted by the strip to the ones of this structure
+	 */
+	private void addStats(Strip strip) {
+		for (int i = 0; i < strip.paths.length; i++)
+			this.findStatsPaths[i] += strip.paths[i];
+		for (int i = 0; i < strip.longIterations.length; i++)
+			this.findStatsLongIterations[i] += strip.longIterations[i];
+		this.unionStatsLinks += strip.links;
+	}
+
+	/**
+	 * No row of the next frame is dirty yet, the arrays grow with the height
+	 */
+	private void clearDirtyRows(int height) {
+		if (this.dirtyRows == null || this.dirtyRows.length < height) {
+			this.dirtyRows = new boolean[height];
+			this.dirtyQueue = new int[height];
+		} else {
+			Arrays.fill(this.dirtyRows, 0, height, false);
+		}
+	}
+
+	/**
+	 * Empty histogram for the next frame, null when it's not counted
+	 */
+	private int[] clearLumHistogram() {
+		if (this.lumHistogram != null) Arrays.fill(this.lumHistogram, 0);
+		return this.lumHistogram;
+	}
+
+	/**
+	 * As flatten but only for the rows yFrom to yTo (inclusive), the rows have
+	 * to contain whole groups, otherwise the min/max of groups would be wrong.
+	 */
+	private void flattenRows(int width, int yFrom, int yTo, GroupPixels pixels) {
+		// because of the horizontal pre-grouping here it will often encounter same
+		// group which will belong to same root, therefore i will cache 1 pixel of
+		// the root loockup to reuse it. This will work even between the gaps if the
+		// group will be same. So flatening should go pretty quick and
+		// guarantee that root is 1 iteration away for another fast image processing
+		int cacheGroup = -1;
+		int cacheRoot = -1;
+		int index = yFrom * width;
+		for (int y = yFrom; y <= yTo; y++) {
+			for (int x = 0; x < width; x++, index++) {
+				if (this.tree[index] >= 0) {
+					if (cacheGroup != this.tree[index]) {
+						cacheGroup = this.tree[index];
+						cacheRoot = find(cacheGroup);
+					}
+					this.tree[index] = cacheRoot;
+					this.treeMeta.updateMinMax(cacheRoot, x, y);
+					if (pixels != null) pixels.add(cacheRoot, index);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Union row y with the row below it, returns true if any two different
+	 * groups got joined.
+	 */
+	private boolean joinRows(int width, int y) {
+		boolean joined = false;
+		int top = y * width;
+		int index = top + width;
+		for (int x = 0; x < width; x++, index++, top++) {
+			if (this.tree[index] >= 0 && this.tree[top] >= 0 && find(top) != find(index)) {
+				this.link(top, index, null);
+				joined = true;
+			}
+		}
+		return joined;
+	}
+
+	/**
+	 * Threshold & pre-group pass of the fused populateTree for the rows yFrom to
+	 * yTo (inclusive), each row is pre-grouped on its own. When histogram is
+	 * given every lumHistogramStep row is counted into it.
+	 */
+	private void labelRows(ByteBuffer rgb, int width, int yFrom, int yTo, int below,
+			boolean invert, int[] histogram) {
+		int index = yFrom * width;
+		int offset = rgb.position() + index * 3;
+
+		for (int y = yFrom; y <= yTo; y++) {
+			boolean sampled = histogram != null && y % this.lumHistogramStep == 0;
+			int leftRoot = -1;
+			for (int x = 0; x < width; x++, index++, offset += 3) {
+				int lum = Picture.lumFixed(rgb.get(offset) & 0xFF, rgb.get(offset + 1) & 0xFF,
+						rgb.get(offset + 2) & 0xFF);
+				if (sampled) histogram[lum >>> Picture.LUM_SHIFT]++;
+
+				if ((lum < below) == invert) {
+					if (leftRoot >= 0) {
+						this.tree[index] = leftRoot;
+						this.treeMeta.inc(leftRoot);
+					} else {
+						this.tree[index] = index;
+						leftRoot = index;
+						this.treeMeta.inc(index);
+					}
+				} else {
+					this.tree[index] = -1;
+					leftRoot = -1;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Run finding pass of populateTree of BinaryImage for the rows yFrom to yTo
+	 * (inclusive), each run is created with its whole size at once.
+	 */
+	private void labelRows(BinaryImage image, int yFrom, int yTo) {
+		int width = image.width();
+		for (int y = yFrom, index = yFrom * width; y <= yTo; y++, index += width) {
+			int x = 0;
+			while (x < width) {
+				int start = image.nextSet(y, x);
+				Arrays.fill(this.tree, index + x, index + start, -1);
+				if (start == width) break;
+
+				x = image.nextClear(y, start);
+				Arrays.fill(this.tree, index + start, index + x, index + start);
+				this.treeMeta.inc(index + start);
+				this.treeMeta.setSize(index + start, x - start);
+			}
+		}
+	}
+
+	/**
+	 * Add the locally counted find and union stats to the metrics and start
+	 * counting from zero.
+	 */
+	private void publishMetrics() {
+		for (FindStrategy strategy : FindStrategy.values()) {
+			int base = strategy.ordinal() * PATH_LENGTHS;
+			long calls = 0;
+			long iterations = this.findStatsLongIterations[strategy.ordinal()];
+
+			for (int length = 0; length < PATH_LENGTHS; length++) {
+				long count = this.findStatsPaths[base + length];
+				if (count == 0) continue;
 
-		// make smaller root point to larger one
-		if (WEIGHTED_UNION) {
-			if (this.treeMeta.size(rootP) < this.treeMeta.size(rootQ)) {
-				this.tree[rootP] = rootQ;
-				this.treeMeta.merge(rootQ, rootP);
+				calls += count;
+				if (length < PATH_LENGTHS - 1) iterations += length * count;
+				METRIC_PATH.record(length, count);
+				this.findStatsPaths[base + length] = 0;
+			}
+
+			if (calls == 0) continue;
+			METRIC_FIND_CALLS[strategy.ordinal()].add(calls);
+			METRIC_FIND_ITERATIONS[strategy.ordinal()].add(iterations);
+			this.findStatsLongIterations[strategy.ordinal()] = 0;
+		}
+
+		METRIC_FIND_FLAT.add(this.findStatsFlatCalls);
+		METRIC_LINKS.add(this.unionStatsLinks);
+		this.findStatsFlatCalls = 0;
+		this.unionStatsLinks = 0;
+	}
+
+	/**
+	 * Second half of updateTree, the queued rows which changed are grown to
+	 * whole old groups, labeled again and joined with the rows around them. The
+	 * rows are labeled from the image when it's given, otherwise from the raw
+	 * frame.
+	 */
+	private int relabel(ByteBuffer rgb, BinaryImage image, int width, int height, int below,
+			boolean invert, int queued, Boolean verbose) {
+		if (verbose) System.out.println("Changed rows: " + queued);
+		if (queued == 0) {
+			METRIC_UPDATE_ROWS.record(0);
+			return 0;
+		}
+
+		// ********** grow dirty rows to whole old groups ***************
+		// every old group touching dirty row will be labeled again, so all rows of
+		// it have to be dirty too, which can bring in yet another groups
+		for (int i = 0; i < queued; i++) {
+			int index = this.dirtyQueue[i] * width;
+			int lastRoot = -1;
+			for (int x = 0; x < width; x++, index++) {
+				int root = this.tree[index];
+				if (root >= 0 && root != lastRoot) {
+					lastRoot = root;
+					for (int y = this.treeMeta.minY(root); y <= this.treeMeta.maxY(root); y++) {
+						if (!this.dirtyRows[y]) {
+							this.dirtyRows[y] = true;
+							this.dirtyQueue[queued++] = y;
+						}
+					}
+				}
+			}
+		}
+
+		// ********** forget old groups in dirty rows ***************
+		// tree is flat so root is the pixel pointing to itself
+		for (int y = 0; y < height; y++) {
+			if (!this.dirtyRows[y]) continue;
+			int index = y * width;
+			for (int x = 0; x < width; x++, index++) {
+				if (this.tree[index] == index) this.treeMeta.remove(index);
+			}
+		}
+		this.treeMeta.compact();
+
+		// ********** label dirty bands and join them with clean rows ***************
+		boolean joined = false;
+		int yFrom = -1;
+		for (int y = 0; y <= height; y++) {
+			if (y < height && this.dirtyRows[y]) {
+				if (yFrom < 0) yFrom = y;
+				continue;
+			}
+			if (yFrom < 0) continue;
+
+			if (image != null) {
+				this.labelRows(image, yFrom, y - 1);
+				this.unionRows(image, yFrom, y - 1);
 			} else {
-				this.tree[rootQ] = rootP;
-				this.treeMeta.merge(rootP, rootQ);
+				this.labelRows(rgb, width, yFrom, y - 1, below, invert, null);
+				this.unionRows(width, yFrom, y - 1);
 			}
+			if (yFrom > 0) joined |= this.joinRows(width, yFrom - 1);
+			if (y < height) joined |= this.joinRows(width, y - 1);
+			yFrom = -1;
+		}
+
+		if (verbose) System.out.println("Relabeled rows: " + queued + ", groups: "
+				+ this.treeMeta.getGroups());
+
+		// when band got joined with an old group the old group pixels are not
+		// pointing to the root anymore, otherwise flattening the bands is enough
+		if (joined) {
+			this.flattenRows(width, 0, height - 1, null);
 		} else {
-			this.tree[rootP] = rootQ;
+			for (int y = 0; y < height; y++) {
+				if (!this.dirtyRows[y]) continue;
+				int yTo = y;
+				while (yTo + 1 < height && this.dirtyRows[yTo + 1])
+					yTo++;
+				this.flattenRows(width, y, yTo, null);
+				y = yTo;
+			}
+		}
+		this.flat = true;
+
+		// sizes of the old groups are the same, but the new ones could take any
+		// place in the packed pixels, so they are indexed again whole
+		if (this.groupPixels != null) {
+			this.groupPixels.begin(this.treeMeta, width * height);
+			for (int index = 0; index < width * height; index++) {
+				if (this.tree[index] >= 0) this.groupPixels.add(this.tree[index], index);
+			}
+		}
+
+		METRIC_UPDATE_ROWS.record(queued);
+		this.publishMetrics();
+		return queued;
+	}
+
+
+	/**
+	 * Second final pass of populateTree, joins pre-grouped rows yFrom+1 to yTo
+	 * with the rows above them.
+	 */
+	private void unionRows(int width, int yFrom, int yTo) {
+		// this part could be done as linear loop but, then it would require more
+		// conditional checking per each loop cycle, which would make it even slowe
+		// than it's now
+
+		// you don't have to process first line (because it will not do any
+		// difference)
+		int index = (yFrom + 1) * width;
+		for (int y = yFrom + 1; y <= yTo; y++) {
+
+			// get pointer 1 pixel above the current
+			int top = (y - 1) * width;
+			for (int x = 0; x < width; x++, index++, top++)
+				if (this.tree[index] >= 0 && this.tree[top] >= 0) this.link(top, index, null);
+
+		}
+	}
+
+	/**
+	 * Second pass of populateTree of BinaryImage, joins rows yFrom+1 to yTo with
+	 * the rows above them. Inside of each joint run both rows are just one run,
+	 * so one link is enough for all of it.
+	 */
+	private void unionRows(BinaryImage image, int yFrom, int yTo) {
+		int width = image.width();
+		for (int y = yFrom + 1, index = (yFrom + 1) * width; y <= yTo; y++, index += width) {
+			int x = image.nextJoint(y, 0);
+			while (x < width) {
+				this.link(index + x - width, index + x, null);
+				x = image.nextJoint(y, image.nextJointEnd(y, x));
+			}
+		}
+	}
+
+	/**
+	 * Does the union, when called from strip the count of groups can't be
+	 * touched because it's shared between strips, and the stats are counted
+	 * into the strip's own arrays.
+	 */
+	private void link(int p, int q, Strip strip) {
+		long[] paths = (strip == null) ? this.findStatsPaths : strip.paths;
+		long[] longIterations = (strip == null) ? this.findStatsLongIterations : strip.longIterations;
+		int rootP = find(p, paths, longIterations);
+		int rootQ = find(q, paths, longIterations);
+
+		// they are the same, exit
+		if (rootP == rootQ) return;
+
+		// make smaller (or lower) root point to larger one
+		boolean swap = false;
+		switch (this.linkStrategy) {
+			case SIZE:
+				swap = this.treeMeta.size(rootP) >= this.treeMeta.size(rootQ);
+				break;
+
+			case RANK:
+				if (this.rank[rootP] == this.rank[rootQ]) {
+					this.rank[rootQ]++;
+				} else {
+					swap = this.rank[rootP] > this.rank[rootQ];
+				}
+				break;
+
+			default:
+				break;
+		}
+
+		if (swap) {
+			int tmp = rootP;
+			rootP = rootQ;
+			rootQ = tmp;
+		}
+
+		this.tree[rootP] = rootQ;
+		if (strip == null) {
+			this.unionStatsLinks++;
 			this.treeMeta.merge(rootQ, rootP);
+		} else {
+			strip.links++;
+			this.treeMeta.mergeLocal(rootQ, rootP);
+		}
+	}
+
+	/**
+	 * How find moves the visited sites closer to the root: not at all, all of
+	 * them straight to the root (second pass over the path), or to their
+	 * grandparents in the same pass (every other site for halving, every site
+	 * for splitting).
+	 */
+	public enum FindStrategy {
+		NONE, FULL_COMPRESSION, HALVING, SPLITTING
+	}
+
+	/**
+	 * Which root is linked under which: smaller group under bigger one, lower
+	 * tree under higher one, or always the first one under the second.
+	 */
+	public enum LinkStrategy {
+		SIZE, RANK, NONE
+	}
+
+	/**
+	 * One horizontal strip of the picture for the parallel labeling. Remembers
+	 * the roots it created, so they can be registered when all strips are done.
+	 * Find and union stats are counted locally as well, sharing them would lose
+	 * updates and make the strips fight over the same cache lines.
+	 */
+	private final class Strip extends RecursiveAction {
+		private static final long	serialVersionUID	= 1L;
+
+		private final char[]			lum;
+		private final int					above;
+		private final int					width;
+		private final int					yFrom, yTo;
+		private int[]							created;
+		private int								createdCount;
+		private final long[]			paths;
+		private final long[]			longIterations;
+		private long							links;
+
+		private Strip(char[] lum, int above, int width, int yFrom, int yTo) {
+			this.lum = lum;
+			this.above = above;
+			this.width = width;
+			this.yFrom = yFrom;
+			this.yTo = yTo;
+			this.created = new int[64];
+			this.createdCount = 0;
+			this.paths = new long[FindStrategy.values().length * PATH_LENGTHS];
+			this.longIterations = new long[FindStrategy.values().length];
+			this.links = 0;
+		}
+
+		protected void compute() {
+			int index = yFrom * width;
+
+			// ********** binarize & pre-group pass ***************
+			for (int y = yFrom; y < yTo; y++) {
+				int leftRoot = -1;
+				for (int x = 0; x < width; x++, index++) {
+					if (lum[index] > above) {
+						if (leftRoot >= 0) {
+							tree[index] = leftRoot;
+							treeMeta.incLocal(leftRoot);
+						} else {
+							tree[index] = index;
+							leftRoot = index;
+							treeMeta.incLocal(index);
+							this.addCreated(index);
+						}
+					} else {
+						tree[index] = -1;
+						leftRoot = -1;
+					}
+				}
+			}
+
+			// ********* vertical pass within the strip *********
+			index = (yFrom + 1) * width;
+			for (int y = yFrom + 1; y < yTo; y++) {
+				int top = (y - 1) * width;
+				for (int x = 0; x < width; x++, index++, top++)
+					if (tree[index] >= 0 && tree[top] >= 0) link(top, index, this);
+			}
+		}
+
+		private void addCreated(int key) {
+			if (this.createdCount == this.created.length) {
+				int[] tmp = new int[this.created.length * 2];
+				System.arraycopy(this.created, 0, tmp, 0, this.createdCount);
+				this.created = tmp;
+			}
+			this.created[this.createdCount++] = key;
 		}
 	}
 
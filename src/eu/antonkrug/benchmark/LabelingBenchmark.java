@@ -0,0 +1,476 @@
+package eu.antonkrug.benchmark;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ConvolveOp;
+import java.awt.image.Kernel;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import eu.antonkrug.AdaptiveThreshold;
+import eu.antonkrug.Binarizer;
+import eu.antonkrug.BinaryImage;
+import eu.antonkrug.ConcurrentUnion;
+import eu.antonkrug.MachineVision;
+import eu.antonkrug.Morphology;
+import eu.antonkrug.OtsuThreshold;
+import eu.antonkrug.Picture;
+import eu.antonkrug.RunLengthUnion;
+import eu.antonkrug.WeightedQuickUnion;
+
+/**
+ * Micro benchmarks for the labeling hot path. For every input picture each
+ * stage is warmed up and then measured for few iterations, the result is
+ * printed as operations per second and bytes allocated per operation (same
+ * counter as GC profiler uses, so the garbage created per frame is visible).
+ *
+ * Only the run() part of the stage is measured, the prepare() part is there to
+ * get the structures into the state the stage expects (for example flatten
+ * needs populated tree). Allocation is counted for the benchmark thread only,
+ * the parallel labeling allocations done by worker threads are not included.
+ *
+ * Without arguments it runs on the bundled images and synthetic noise in few
+ * resolutions, or paths to the images can be given as arguments.
+ *
+ * Final is used because it's not intended to extend this class and as in
+ * Effective Java book if I do not design and document for inheritance then I
+ * should prohibit it.
+ *
+ * @author Anton Krug
+ */
+public final class LabelingBenchmark {
+
+	public final static int			WARMUP_ITERATIONS		= 3;
+	public final static int			MEASURE_ITERATIONS	= 5;
+	public final static long		ITERATION_NANOS			= 500000000L;
+	public final static double	THRESHOLD						= 128;
+
+	// density of foreground pixels in the synthetic noise pictures
+	public final static double	NOISE_DENSITY				= 0.5;
+
+	private final static String[]	IMAGES					= { "images/shapes.bmp", "images/cloud.jpg",
+			"images/stars.jpg", "images/bacteria.bmp", "images/povray/kitchen.jpg",
+			"images/povray/accident_bleu_1200x1600.jpg" };
+
+	private final static int[][]		NOISE_SIZES			= { { 320, 240 }, { 640, 480 }, { 1920, 1080 } };
+
+	public static void main(String[] args) {
+		List<Picture> inputs = new ArrayList<Picture>();
+		List<String> names = new ArrayList<String>();
+
+		if (args.length > 0) {
+			for (String arg : args) {
+				inputs.add(new Picture(arg));
+				names.add(arg);
+			}
+		} else {
+			for (String image : IMAGES) {
+				inputs.add(new Picture(image));
+				names.add(image);
+			}
+			for (int[] size : NOISE_SIZES) {
+				inputs.add(noise(size[0], size[1], NOISE_DENSITY, 42));
+				names.add("noise " + size[0] + "x" + size[1]);
+			}
+		}
+
+		System.out.printf("%-40s %-42s %12s %14s\n", "Benchmark", "Input", "ops/s", "bytes/op");
+		for (int i = 0; i < inputs.size(); i++) {
+			for (Stage stage : stages(inputs.get(i))) {
+				measure(stage, names.get(i));
+			}
+		}
+	}
+
+	/**
+	 * Generate black picture with white pixels randomly spread, worst case for
+	 * the labeling because there is a lot of tiny groups.
+	 *
+	 * @param width
+	 * @param height
+	 * @param density
+	 *          chance of the pixel to be white
+	 * @param seed
+	 *          so the same picture is generated on every run
+	 */
+	public static Picture noise(int width, int height, double density, long seed) {
+		Random rnd = new Random(seed);
+		BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+		for (int y = 0; y < height; y++)
+			for (int x = 0; x < width; x++)
+				if (rnd.nextDouble() < density) image.setRGB(x, y, 0xFFFFFF);
+		return new Picture(image);
+	}
+
+	/**
+	 * Run warmup and measurement iterations of given stage and print the result
+	 */
+	private static void measure(Stage stage, String input) {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		long thread = Thread.currentThread().getId();
+		boolean allocation = bean instanceof com.sun.management.ThreadMXBean;
+
+		for (int i = 0; i < WARMUP_ITERATIONS; i++)
+			iteration(stage, null, thread);
+
+		long ops = 0, nanos = 0, bytes = 0;
+		for (int i = 0; i < MEASURE_ITERATIONS; i++) {
+			long[] result = iteration(stage, allocation ? (com.sun.management.ThreadMXBean) bean : null,
+					thread);
+			ops += result[0];
+			nanos += result[1];
+			bytes += result[2];
+		}
+
+		System.out.printf("%-40s %-42s %12.2f %14s\n", stage.name, input, ops * 1e9 / nanos,
+				allocation ? String.valueOf(bytes / ops) : "n/a");
+	}
+
+	/**
+	 * One iteration, returns count of operations, nanoseconds spend in them and
+	 * bytes allocated by them
+	 */
+	private static long[] iteration(Stage stage, com.sun.management.ThreadMXBean bean, long thread) {
+		long ops = 0, nanos = 0, bytes = 0;
+
+		while (nanos < ITERATION_NANOS) {
+			stage.prepare();
+
+			long allocated = (bean != null) ? bean.getThreadAllocatedBytes(thread) : 0;
+			long start = System.nanoTime();
+			stage.run();
+			nanos += System.nanoTime() - start;
+			if (bean != null) bytes += bean.getThreadAllocatedBytes(thread) - allocated;
+
+			ops++;
+		}
+		return new long[] { ops, nanos, bytes };
+	}
+
+	/**
+	 * Raw RGB bytes of the picture as the camera gives them
+	 */
+	private static ByteBuffer rgbBuffer(Picture pic) {
+		int[] pixels = pic.getRaster();
+		ByteBuffer rgb = ByteBuffer.allocateDirect(pixels.length * 3);
+		for (int pixel : pixels) {
+			rgb.put((byte) (pixel >> 16));
+			rgb.put((byte) (pixel >> 8));
+			rgb.put((byte) pixel);
+		}
+		rgb.flip();
+		return rgb;
+	}
+
+	/**
+	 * All stages which will be measured for given picture
+	 */
+	private static List<Stage> stages(final Picture pic) {
+		final WeightedQuickUnion union = new WeightedQuickUnion(pic);
+		final RunLengthUnion runLength = new RunLengthUnion(pic);
+		final Picture bw = new Picture(pic.width(), pic.height());
+
+		final MachineVision app = new MachineVision();
+		app.loadImage(pic.getImage(), false);
+		app.setThreshold(THRESHOLD);
+		app.setGroupMinThreshold(20);
+		app.setUnion(union);
+
+		List<Stage> stages = new ArrayList<Stage>();
+
+		stages.add(new Stage("Picture.getLum") {
+			double	sink;
+
+			void run() {
+				double sum = 0;
+				for (int y = 0; y < pic.height(); y++)
+					for (int x = 0; x < pic.width(); x++)
+						sum += pic.getLum(x, y);
+				sink = sum;
+			}
+		});
+
+		// blur as it was done before by ConvolveOp, against the in place one
+		final ConvolveOp convolve = new ConvolveOp(new Kernel(3, 3, new float[] { 0.0625f, 0.125f,
+				0.0625f, 0.125f, 0.25f, 0.125f, 0.0625f, 0.125f, 0.0625f }), ConvolveOp.EDGE_NO_OP, null);
+		stages.add(new Stage("ConvolveOp 3x3") {
+			void run() {
+				BufferedImage blurred = new BufferedImage(pic.width(), pic.height(),
+						BufferedImage.TYPE_INT_RGB);
+				convolve.filter(pic.getImage(), blurred);
+			}
+		});
+
+		final Picture blurred = new Picture(pic);
+		for (final int radius : new int[] { 1, 3 }) {
+			stages.add(new Stage("Picture.blur radius " + radius) {
+				void run() {
+					blurred.blur(radius);
+				}
+			});
+		}
+
+		stages.add(new Stage("Picture.toBW") {
+			void run() {
+				bw.toBW(pic, THRESHOLD, false);
+			}
+		});
+
+		// thresholding alone into the bit mask, per pixel against packed words
+		final Binarizer binarizer = new Binarizer();
+		final long[] mask = new long[Binarizer.words(pic.width()) * pic.height()];
+		stages.add(new Stage("Binarizer.binarizeScalar") {
+			void run() {
+				Binarizer.binarizeScalar(pic, THRESHOLD, false, mask);
+			}
+		});
+
+		stages.add(new Stage("Binarizer.binarize") {
+			void run() {
+				binarizer.binarize(pic, THRESHOLD, false, mask);
+			}
+		});
+
+		final ByteBuffer rgb = rgbBuffer(pic);
+		stages.add(new Stage("Binarizer.binarize (rgb frame)") {
+			void run() {
+				binarizer.binarize(rgb, pic.width(), pic.height(), THRESHOLD, false, mask);
+			}
+		});
+
+		// automatic threshold, the histogram alone and Otsu's method on it
+		final int[] histogram = new int[OtsuThreshold.BINS];
+		stages.add(new Stage("OtsuThreshold.histogram (rgb frame)") {
+			void run() {
+				OtsuThreshold.histogram(rgb, pic.width(), pic.height(), OtsuThreshold.SAMPLE_STEP,
+						histogram);
+			}
+		});
+
+		stages.add(new Stage("OtsuThreshold.level") {
+			int	sink;
+
+			void run() {
+				sink = OtsuThreshold.level(pic.getLumHistogram(OtsuThreshold.SAMPLE_STEP));
+			}
+		});
+
+		stages.add(new Stage("populateTree") {
+			void prepare() {
+				union.reset(pic);
+			}
+
+			void run() {
+				union.populateTree(pic, THRESHOLD, false);
+			}
+		});
+
+		// labeling of the bit packed image, thresholding done once before
+		final BinaryImage binary = pic.toBinary(THRESHOLD, false, null);
+		stages.add(new Stage("Picture.toBinary") {
+			void run() {
+				pic.toBinary(THRESHOLD, false, binary);
+			}
+		});
+
+		stages.add(new Stage("populateTree (binary)") {
+			void prepare() {
+				union.reset(pic);
+			}
+
+			void run() {
+				union.populateTree(binary, false);
+			}
+		});
+
+		// opening before labeling, the cost shouldn't grow with the element size
+		final BinaryImage opened = new BinaryImage(pic.width(), pic.height());
+		for (final int radius : new int[] { 1, 7 }) {
+			final Morphology open = new Morphology(Morphology.Operation.OPEN,
+					Morphology.Shape.RECTANGLE, radius, radius);
+			stages.add(new Stage("Morphology open " + (2 * radius + 1) + "x" + (2 * radius + 1)) {
+				void prepare() {
+					opened.copy(binary);
+				}
+
+				void run() {
+					open.apply(opened);
+				}
+			});
+		}
+
+		// local thresholding, the cost shouldn't grow with the window size either
+		final BinaryImage local = new BinaryImage(pic.width(), pic.height());
+		for (final int radius : new int[] { 7, 50 }) {
+			final AdaptiveThreshold bradley = new AdaptiveThreshold(AdaptiveThreshold.Method.BRADLEY,
+					radius, 0.15);
+			stages.add(new Stage("AdaptiveThreshold Bradley radius " + radius) {
+				void run() {
+					bradley.threshold(pic, false, local);
+				}
+			});
+		}
+
+		final AdaptiveThreshold sauvola = new AdaptiveThreshold(AdaptiveThreshold.Method.SAUVOLA, 7,
+				0.3);
+		stages.add(new Stage("AdaptiveThreshold Sauvola radius 7") {
+			void run() {
+				sauvola.threshold(pic, false, local);
+			}
+		});
+
+		stages.add(new Stage("populateTree (binary opened 3x3)") {
+			void prepare() {
+				opened.copy(binary);
+				new Morphology(Morphology.Operation.OPEN, Morphology.Shape.RECTANGLE, 1, 1).apply(opened);
+				union.reset(pic);
+			}
+
+			void run() {
+				union.populateTree(opened, false);
+			}
+		});
+
+		stages.add(new Stage("populateTreeParallel") {
+			void prepare() {
+				union.reset(pic);
+			}
+
+			void run() {
+				union.populateTreeParallel(pic, THRESHOLD, false);
+			}
+		});
+
+		// find & link strategies on the same picture, labeling and flattening
+		for (final WeightedQuickUnion.FindStrategy find : WeightedQuickUnion.FindStrategy.values()) {
+			for (final WeightedQuickUnion.LinkStrategy link : WeightedQuickUnion.LinkStrategy.values()) {
+				final WeightedQuickUnion strategy = new WeightedQuickUnion(pic);
+				strategy.setFindStrategy(find);
+				strategy.setLinkStrategy(link);
+
+				stages.add(new Stage("populate+flatten " + find + "/" + link) {
+					void prepare() {
+						strategy.reset(pic);
+					}
+
+					void run() {
+						strategy.populateTree(pic, THRESHOLD, false);
+						strategy.flatten(pic);
+					}
+				});
+			}
+		}
+
+		final ConcurrentUnion concurrent = new ConcurrentUnion(pic);
+		stages.add(new Stage("ConcurrentUnion.populateTree") {
+			void run() {
+				concurrent.populateTree(pic, THRESHOLD, false);
+			}
+		});
+
+		stages.add(new Stage("RunLengthUnion.populateTree") {
+			void run() {
+				runLength.populateTree(pic, THRESHOLD, false);
+			}
+		});
+
+		stages.add(new Stage("RunLengthUnion.populateTree (binary)") {
+			void run() {
+				runLength.populateTree(binary, false);
+			}
+		});
+
+		// static scene, only the comparison with previous frame is done
+		final WeightedQuickUnion incremental = new WeightedQuickUnion(pic);
+		stages.add(new Stage("updateTree (same frame)") {
+			void run() {
+				incremental.updateTree(rgb, pic.width(), pic.height(), THRESHOLD, false, false);
+			}
+		});
+
+		stages.add(new Stage("flatten") {
+			void prepare() {
+				union.reset(pic);
+				union.populateTree(pic, THRESHOLD, false);
+			}
+
+			void run() {
+				union.flatten(pic);
+			}
+		});
+
+		stages.add(new Stage("disableSmallGroups") {
+			void run() {
+				app.disableSmallGroups();
+			}
+		});
+
+		stages.add(new Stage("colorizeGroups") {
+			void prepare() {
+				union.generateColorsBySize(app.getGroupSmallest(), app.getGroupBiggest());
+			}
+
+			void run() {
+				app.colorizeGroups(app.getPreview(), false, false);
+			}
+		});
+
+		stages.add(new Stage("colorizeLinear") {
+			void run() {
+				app.colorizeLinear(app.getPreview());
+			}
+		});
+
+		// same with the pixels of each group packed by flatten
+		final WeightedQuickUnion packed = new WeightedQuickUnion(pic);
+		packed.setGroupPixels(true);
+		final MachineVision packedApp = new MachineVision();
+		packedApp.loadImage(pic.getImage(), false);
+		packedApp.setGroupMinThreshold(20);
+		packedApp.setUnion(packed);
+
+		stages.add(new Stage("flatten (group pixels)") {
+			void prepare() {
+				packed.reset(pic);
+				packed.populateTree(pic, THRESHOLD, false);
+			}
+
+			void run() {
+				packed.flatten(pic);
+			}
+		});
+
+		stages.add(new Stage("colorizeGroups (group pixels)") {
+			void prepare() {
+				packedApp.disableSmallGroups();
+				packed.generateColorsBySize(packedApp.getGroupSmallest(), packedApp.getGroupBiggest());
+			}
+
+			void run() {
+				packedApp.colorizeGroups(packedApp.getPreview(), false, false);
+			}
+		});
+
+		return stages;
+	}
+
+	/**
+	 * One measured piece of the labeling
+	 */
+	private static abstract class Stage {
+		private final String	name;
+
+		Stage(String name) {
+			this.name = name;
+		}
+
+		void prepare() {
+		}
+
+		abstract void run();
+	}
+
+}
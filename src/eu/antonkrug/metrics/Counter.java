@@ -0,0 +1,37 @@
+package eu.antonkrug.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Monotonic counter, can be increased from any thread. Hot loops should count
+ * into their own local variable and add it here once per frame.
+ * 
+ * Final is used because it's not intended to extend this class and as in
+ * Effective Java book if I do not design and document for inheritance then I
+ * should prohibit it.
+ * 
+ * @author Anton Krug
+ */
+public final class Counter {
+	private final AtomicLong	value	= new AtomicLong();
+
+	Counter() {
+	}
+
+	public void add(long delta) {
+		this.value.addAndGet(delta);
+	}
+
+	public long get() {
+		return this.value.get();
+	}
+
+	public void inc() {
+		this.value.incrementAndGet();
+	}
+
+	void reset() {
+		this.value.set(0);
+	}
+
+}
@@ -0,0 +1,95 @@
+package eu.antonkrug.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of recorded values in power of two buckets: bucket 0 counts
+ * zeros, bucket b counts values from 2^(b-1) to 2^b - 1. Together with count,
+ * sum, max and the last value it's enough to see averages, tails and the
+ * current frame without keeping the samples.
+ * 
+ * Final is used because it's not intended to extend this class and as in
+ * Effective Java book if I do not design and document for inheritance then I
+ * should prohibit it.
+ * 
+ * @author Anton Krug
+ */
+public final class Histogram {
+	public final static int			BUCKETS	= 64;
+
+	private final AtomicLongArray	buckets	= new AtomicLongArray(BUCKETS);
+	private final AtomicLong			count		= new AtomicLong();
+	private final AtomicLong			sum			= new AtomicLong();
+	private final AtomicLong			max			= new AtomicLong();
+	private volatile long					last;
+
+	Histogram() {
+	}
+
+	/**
+	 * Bucket where the value belongs, negative values are counted as zeros
+	 */
+	public static int bucket(long value) {
+		return (value <= 0) ? 0 : 64 - Long.numberOfLeadingZeros(value);
+	}
+
+	public long getBucket(int bucket) {
+		return this.buckets.get(bucket);
+	}
+
+	public long getCount() {
+		return this.count.get();
+	}
+
+	public long getLast() {
+		return this.last;
+	}
+
+	public long getMax() {
+		return this.max.get();
+	}
+
+	public double getMean() {
+		long count = this.count.get();
+		return (count == 0) ? 0 : (double) this.sum.get() / count;
+	}
+
+	public long getSum() {
+		return this.sum.get();
+	}
+
+	/**
+	 * Record one value
+	 */
+	public void record(long value) {
+		this.record(value, 1);
+	}
+
+	/**
+	 * Record the same value many times, used when a loop was counting the
+	 * values locally
+	 */
+	public void record(long value, long times) {
+		if (times <= 0) return;
+
+		this.buckets.addAndGet(bucket(value), times);
+		this.count.addAndGet(times);
+		this.sum.addAndGet(value * times);
+		this.last = value;
+
+		long current = this.max.get();
+		while (value > current && !this.max.compareAndSet(current, value))
+			current = this.max.get();
+	}
+
+	void reset() {
+		for (int i = 0; i < BUCKETS; i++)
+			this.buckets.set(i, 0);
+		this.count.set(0);
+		this.sum.set(0);
+		this.max.set(0);
+		this.last = 0;
+	}
+
+}
@@ -0,0 +1,298 @@
+package eu.antonkrug.metrics;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Registry of the labeling metrics, always enabled. Counters and histograms
+ * are looked up by name once (keep the reference in a field) and then updating
+ * them is just few atomic operations, the hot loops count locally and add
+ * their counts once per frame, so it's cheap enough to be left on.
+ *
+ * The snapshot can be written as one JSON line (for example every few frames
+ * into a log) or the registry can be registered as MBean and watched with
+ * jconsole / VisualVM, each counter and each histogram statistic is an
+ * attribute.
+ *
+ * Final is used because it's not intended to extend this class and as in
+ * Effective Java book if I do not design and document for inheritance then I
+ * should prohibit it.
+ *
+ * @author Anton Krug
+ */
+public final class Metrics implements DynamicMBean {
+	public final static String												OBJECT_NAME	= "eu.antonkrug:type=Metrics";
+
+	private final static Metrics											DEFAULT			= new Metrics();
+	private final static ThreadMXBean									THREADS			= ManagementFactory
+																																		.getThreadMXBean();
+
+	private final ConcurrentMap<String, Counter>			counters;
+	private final ConcurrentMap<String, Histogram>		histograms;
+
+	public Metrics() {
+		this.counters = new ConcurrentHashMap<String, Counter>();
+		this.histograms = new ConcurrentHashMap<String, Histogram>();
+	}
+
+	/**
+	 * Bytes allocated so far by the current thread, 0 when the JVM can't tell
+	 */
+	public static long allocatedBytes() {
+		if (THREADS instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) THREADS).getThreadAllocatedBytes(Thread
+					.currentThread().getId());
+		}
+		return 0;
+	}
+
+	/**
+	 * The registry used by the labeling classes
+	 */
+	public static Metrics get() {
+		return DEFAULT;
+	}
+
+	/**
+	 * Get counter of given name, created when it doesn't exist yet
+	 */
+	public Counter counter(String name) {
+		Counter counter = this.counters.get(name);
+		if (counter == null) {
+			Counter created = new Counter();
+			counter = this.counters.putIfAbsent(name, created);
+			if (counter == null) counter = created;
+		}
+		return counter;
+	}
+
+	/**
+	 * Get histogram of given name, created when it doesn't exist yet
+	 */
+	public Histogram histogram(String name) {
+		Histogram histogram = this.histograms.get(name);
+		if (histogram == null) {
+			Histogram created = new Histogram();
+			histogram = this.histograms.putIfAbsent(name, created);
+			if (histogram == null) histogram = created;
+		}
+		return histogram;
+	}
+
+	/**
+	 * Register this registry in the platform MBean server, does nothing if it's
+	 * registered already
+	 */
+	public void register() {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(OBJECT_NAME);
+			if (!server.isRegistered(name)) server.registerMBean(this, name);
+		} catch (JMException e) {
+			throw new IllegalStateException("Can't register metrics MBean", e);
+		}
+	}
+
+	/**
+	 * Zero all the metrics, they stay registered so references kept by the
+	 * classes are still valid
+	 */
+	public void reset() {
+		for (Counter counter : this.counters.values())
+			counter.reset();
+		for (Histogram histogram : this.histograms.values())
+			histogram.reset();
+	}
+
+	/**
+	 * Get stage of given name, its metrics are name.nanos histogram and
+	 * name.bytes counter
+	 */
+	public Stage stage(String name) {
+		return new Stage(this.histogram(name + ".nanos"), this.counter(name + ".bytes"));
+	}
+
+	/**
+	 * Snapshot of all metrics as one JSON line
+	 */
+	public String toJson() {
+		StringBuilder out = new StringBuilder();
+		try {
+			this.writeJson(out);
+		} catch (IOException e) {
+			// StringBuilder doesn't throw
+		}
+		return out.toString();
+	}
+
+	/**
+	 * Write snapshot of all metrics as one JSON line (without the new line),
+	 * names are sorted so the lines are easy to compare.
+	 */
+	public void writeJson(Appendable out) throws IOException {
+		out.append("{\"time\":").append(String.valueOf(System.currentTimeMillis()));
+
+		out.append(",\"counters\":{");
+		boolean first = true;
+		for (Map.Entry<String, Counter> entry : new TreeMap<String, Counter>(this.counters)
+				.entrySet()) {
+			if (!first) out.append(',');
+			first = false;
+			out.append('"').append(entry.getKey()).append("\":")
+					.append(String.valueOf(entry.getValue().get()));
+		}
+
+		out.append("},\"histograms\":{");
+		first = true;
+		for (Map.Entry<String, Histogram> entry : new TreeMap<String, Histogram>(this.histograms)
+				.entrySet()) {
+			Histogram histogram = entry.getValue();
+			if (!first) out.append(',');
+			first = false;
+
+			out.append('"').append(entry.getKey()).append("\":{\"count\":")
+					.append(String.valueOf(histogram.getCount())).append(",\"sum\":")
+					.append(String.valueOf(histogram.getSum())).append(",\"max\":")
+					.append(String.valueOf(histogram.getMax())).append(",\"last\":")
+					.append(String.valueOf(histogram.getLast())).append(",\"buckets\":[");
+
+			// trailing empty buckets are left out
+			int used = Histogram.BUCKETS;
+			while (used > 0 && histogram.getBucket(used - 1) == 0)
+				used--;
+			for (int i = 0; i < used; i++) {
+				if (i > 0) out.append(',');
+				out.append(String.valueOf(histogram.getBucket(i)));
+			}
+			out.append("]}");
+		}
+		out.append("}}");
+	}
+
+	/*
+	 * DynamicMBean, counters are attributes with their own name, histograms
+	 * have name.count, name.mean, name.max and name.last attributes
+	 */
+
+	public Object getAttribute(String attribute) throws AttributeNotFoundException {
+		Counter counter = this.counters.get(attribute);
+		if (counter != null) return counter.get();
+
+		int dot = attribute.lastIndexOf('.');
+		Histogram histogram = (dot > 0) ? this.histograms.get(attribute.substring(0, dot)) : null;
+		if (histogram != null) {
+			String statistic = attribute.substring(dot + 1);
+			if (statistic.equals("count")) return histogram.getCount();
+			if (statistic.equals("mean")) return histogram.getMean();
+			if (statistic.equals("max")) return histogram.getMax();
+			if (statistic.equals("last")) return histogram.getLast();
+		}
+		throw new AttributeNotFoundException(attribute);
+	}
+
+	public AttributeList getAttributes(String[] attributes) {
+		AttributeList list = new AttributeList();
+		for (String attribute : attributes) {
+			try {
+				list.add(new Attribute(attribute, this.getAttribute(attribute)));
+			} catch (AttributeNotFoundException e) {
+				// skipped, as the DynamicMBean contract allows
+			}
+		}
+		return list;
+	}
+
+	public MBeanInfo getMBeanInfo() {
+		List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+		for (String name : new TreeMap<String, Counter>(this.counters).keySet())
+			attributes.add(new MBeanAttributeInfo(name, "long", "counter", true, false, false));
+
+		for (String name : new TreeMap<String, Histogram>(this.histograms).keySet()) {
+			attributes.add(new MBeanAttributeInfo(name + ".count", "long", "values recorded", true,
+					false, false));
+			attributes.add(new MBeanAttributeInfo(name + ".mean", "double", "mean value", true, false,
+					false));
+			attributes.add(new MBeanAttributeInfo(name + ".max", "long", "max value", true, false,
+					false));
+			attributes.add(new MBeanAttributeInfo(name + ".last", "long", "last value", true, false,
+					false));
+		}
+
+		MBeanOperationInfo[] operations = { new MBeanOperationInfo("reset", "Zero all the metrics",
+				null, "void", MBeanOperationInfo.ACTION) };
+
+		return new MBeanInfo(this.getClass().getName(), "Labeling metrics",
+				attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null, operations, null);
+	}
+
+	public Object invoke(String actionName, Object[] params, String[] signature)
+			throws ReflectionException {
+		if (actionName.equals("reset")) {
+			this.reset();
+			return null;
+		}
+		throw new ReflectionException(new NoSuchMethodException(actionName));
+	}
+
+	public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+		throw new AttributeNotFoundException("Metrics are read only");
+	}
+
+	public AttributeList setAttributes(AttributeList attributes) {
+		return new AttributeList();
+	}
+
+	/**
+	 * Time and allocation of one processing stage
+	 */
+	public final static class Stage {
+		private final Histogram	nanos;
+		private final Counter		bytes;
+
+		private Stage(Histogram nanos, Counter bytes) {
+			this.nanos = nanos;
+			this.bytes = bytes;
+		}
+
+		/**
+		 * Record one run of the stage
+		 *
+		 * @param nanos
+		 *          time it took
+		 * @param bytes
+		 *          bytes it allocated
+		 */
+		public void record(long nanos, long bytes) {
+			this.nanos.record(nanos);
+			this.bytes.add(bytes);
+		}
+
+		/**
+		 * Record run of the stage which started at given System.nanoTime() and
+		 * allocatedBytes() of the current thread
+		 */
+		public void recordSince(long startNanos, long startBytes) {
+			this.record(System.nanoTime() - startNanos, allocatedBytes() - startBytes);
+		}
+	}
+
+}
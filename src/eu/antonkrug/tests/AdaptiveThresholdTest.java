@@ -0,0 +1,124 @@
+package eu.antonkrug.tests;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import eu.antonkrug.AdaptiveThreshold;
+import eu.antonkrug.BinaryImage;
+import eu.antonkrug.Picture;
+import eu.antonkrug.WeightedQuickUnion;
+
+/**
+ * Unevenly lit picture, background goes from dark on the left to bright on
+ * the right and there are two squares a bit darker than the background around
+ * them. No global threshold can find both of them, the adaptive one has to.
+ *
+ * @author Anton Krug
+ */
+public class AdaptiveThresholdTest {
+
+	private final static int	WIDTH		= 200;
+	private final static int	HEIGHT	= 100;
+
+	/**
+	 * Gradient with two 20x20 squares 30% darker than the background under them
+	 */
+	private static Picture gradient() {
+		Picture pic = new Picture(WIDTH, HEIGHT);
+		for (int y = 0; y < HEIGHT; y++) {
+			for (int x = 0; x < WIDTH; x++) {
+				int gray = 50 + x;
+				if (y >= 40 && y < 60 && ((x >= 20 && x < 40) || (x >= 160 && x < 180)))
+					gray = gray * 7 / 10;
+				pic.getRaster()[y * WIDTH + x] = (gray << 16) | (gray << 8) | gray;
+			}
+		}
+		return pic;
+	}
+
+	private static int groups(BinaryImage image) {
+		WeightedQuickUnion union = new WeightedQuickUnion(image.width() * image.height());
+		union.populateTree(image, false);
+		return union.getKeyValueGroups().size();
+	}
+
+	@Test
+	public void testGlobalFails() {
+		Picture pic = gradient();
+
+		// dark square on the right is brighter than background in the middle
+		for (int threshold = 0; threshold < 256; threshold++) {
+			BinaryImage image = pic.toBinary(threshold, true, null);
+			assertFalse(image.get(30, 50) && image.get(170, 50) && !image.get(100, 50));
+		}
+	}
+
+	@Test
+	public void testBradley() {
+		Picture pic = gradient();
+		BinaryImage image = new AdaptiveThreshold(AdaptiveThreshold.Method.BRADLEY, 15, 0.15)
+				.threshold(pic, true, null);
+
+		assertEquals(2, groups(image));
+		assertTrue(image.get(30, 50));
+		assertTrue(image.get(170, 50));
+		assertFalse(image.get(100, 50));
+	}
+
+	@Test
+	public void testSauvola() {
+		Picture pic = gradient();
+		BinaryImage image = new AdaptiveThreshold(AdaptiveThreshold.Method.SAUVOLA, 15, 0.2)
+				.threshold(pic, true, null);
+
+		assertTrue(image.get(30, 50));
+		assertTrue(image.get(170, 50));
+		assertFalse(image.get(100, 10));
+	}
+
+	@Test
+	public void testBright() {
+		// flipped picture, bright squares on the flipped gradient
+		Picture pic = gradient();
+		int[] raster = pic.getRaster();
+		for (int i = 0; i < raster.length; i++)
+			raster[i] = ~raster[i] & 0xFFFFFF;
+
+		BinaryImage image = new AdaptiveThreshold(AdaptiveThreshold.Method.BRADLEY, 15, 0.15)
+				.threshold(pic, false, null);
+		assertTrue(image.get(30, 50));
+		assertTrue(image.get(170, 50));
+		assertFalse(image.get(100, 50));
+	}
+
+	@Test
+	public void testFrame() {
+		Picture pic = gradient();
+		int[] raster = pic.getRaster();
+		ByteBuffer rgb = ByteBuffer.allocate(raster.length * 3);
+		for (int pixel : raster) {
+			rgb.put((byte) (pixel >> 16));
+			rgb.put((byte) (pixel >> 8));
+			rgb.put((byte) pixel);
+		}
+		rgb.flip();
+
+		AdaptiveThreshold adaptive = new AdaptiveThreshold(AdaptiveThreshold.Method.BRADLEY, 15, 0.15);
+		BinaryImage expected = adaptive.threshold(pic, true, null);
+
+		// target is reused
+		BinaryImage target = new BinaryImage(WIDTH, HEIGHT);
+		assertSame(target, adaptive.threshold(rgb, WIDTH, HEIGHT, true, target));
+		assertEquals(expected, target);
+		assertEquals(0, rgb.position());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRadius() {
+		new AdaptiveThreshold(AdaptiveThreshold.Method.BRADLEY, 0, 0.15);
+	}
+
+}
@@ -0,0 +1,111 @@
+package eu.antonkrug.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.antonkrug.BatchRunner;
+import eu.antonkrug.ConnectedComponentImage;
+
+/**
+ * Small temporary directory with one good image, one broken image and files
+ * which are not images at all.
+ *
+ * @author Anton Krug
+ */
+public class BatchRunnerTest {
+	File	directory;
+
+	@Before
+	public void init() throws IOException {
+		directory = Files.createTempDirectory("batch").toFile();
+		Files.copy(new File("images/shapes2.bmp").toPath(), new File(directory, "shapes2.bmp").toPath());
+
+		FileOutputStream broken = new FileOutputStream(new File(directory, "broken.png"));
+		broken.write(new byte[] { 1, 2, 3 });
+		broken.close();
+
+		new File(directory, "notes.txt").createNewFile();
+		new File(directory, ".hidden.bmp").createNewFile();
+	}
+
+	@After
+	public void cleanUp() {
+		for (File file : directory.listFiles())
+			file.delete();
+		directory.delete();
+	}
+
+	@Test
+	public void testRun() throws Exception {
+		StringWriter csv = new StringWriter();
+		StringWriter json = new StringWriter();
+		BatchRunner runner = new BatchRunner(2, false);
+		runner.run(directory, csv, json);
+
+		assertEquals(2, runner.getProcessed());
+		assertEquals(1, runner.getFailed());
+
+		String[] lines = csv.toString().split("\n");
+		assertEquals(3, lines.length);
+		assertEquals(BatchRunner.CSV_HEADER, lines[0]);
+
+		// the rows are in the order the workers finished them
+		Arrays.sort(lines, 1, 3);
+		String[] broken = lines[1].split(",", -1);
+		String[] good = lines[2].split(",", -1);
+
+		assertTrue(broken[0].endsWith("broken.png"));
+		assertEquals(8, broken.length);
+		assertEquals("", broken[3]);
+		assertFalse(broken[7].isEmpty());
+
+		assertTrue(good[0].endsWith("shapes2.bmp"));
+		assertEquals("", good[7]);
+		int components = new ConnectedComponentImage("images/shapes2.bmp").countComponents();
+		assertEquals(String.valueOf(components), good[3]);
+
+		String[] objects = json.toString().split("\n");
+		assertEquals(2, objects.length);
+		for (String object : objects)
+			assertEquals(object.contains("broken.png"), object.contains("\"error\""));
+	}
+
+	@Test
+	public void testWriteFailure() throws Exception {
+		StringWriter csv = new StringWriter();
+		Writer json = new Writer() {
+			public void write(char[] buffer, int offset, int length) throws IOException {
+				throw new IOException("disk full");
+			}
+
+			public void flush() {
+			}
+
+			public void close() {
+			}
+		};
+		BatchRunner runner = new BatchRunner(2, false);
+
+		// all images are still done before the failure is thrown
+		try {
+			runner.run(directory, csv, json);
+			fail("write failure has to be thrown from run");
+		} catch (IOException e) {
+			assertEquals("disk full", e.getMessage());
+		}
+		assertEquals(2, runner.getProcessed());
+		assertEquals(3, csv.toString().split("\n").length);
+	}
+
+}
@@ -0,0 +1,79 @@
+package eu.antonkrug.tests;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.antonkrug.Binarizer;
+import eu.antonkrug.Picture;
+
+/**
+ * This test has hardcoded values for a cloud-small.jpg image, the packed mask
+ * has to have the same pixels as the black and white picture.
+ *
+ * @author Anton Krug
+ */
+public class BinarizerTest {
+	Picture		img;
+	Binarizer	binarizer;
+
+	@Before
+	public void init() {
+		img = new Picture("images/cloud-small.jpg");
+		binarizer = new Binarizer();
+	}
+
+	@Test
+	public void testBinarize() {
+		for (boolean inverse : new boolean[] { false, true }) {
+			long[] mask = binarizer.binarize(img, 190, inverse, null);
+
+			Picture bw = new Picture(img);
+			bw.toBW(img, 190, inverse);
+			for (int y = 0; y < img.height(); y++)
+				for (int x = 0; x < img.width(); x++)
+					assertEquals(bw.getLum(x, y) > 0, Binarizer.isSet(mask, img.width(), x, y));
+		}
+	}
+
+	@Test
+	public void testBinarizeFromBuffer() {
+		ByteBuffer rgb = rgbBuffer(img);
+		long[] mask = binarizer.binarize(img, 190, false, null);
+		long[] frame = binarizer.binarize(rgb, img.width(), img.height(), 190, false, null);
+		assertArrayEquals(mask, frame);
+		assertEquals(0, rgb.position());
+	}
+
+	@Test
+	public void testBinarizeScalar() {
+		long[] mask = binarizer.binarize(img, 190, true, null);
+		assertArrayEquals(mask, Binarizer.binarizeScalar(img, 190, true, null));
+	}
+
+	@Test
+	public void testReuse() {
+		long[] mask = new long[Binarizer.words(img.width()) * img.height()];
+		assertSame(mask, binarizer.binarize(img, 190, false, mask));
+		assertNotSame(mask, binarizer.binarize(img, 190, false, new long[1]));
+	}
+
+	/**
+	 * Raw RGB bytes as the camera gives them
+	 */
+	private static ByteBuffer rgbBuffer(Picture pic) {
+		int[] pixels = pic.getRaster();
+		ByteBuffer rgb = ByteBuffer.allocate(pixels.length * 3);
+		for (int pixel : pixels) {
+			rgb.put((byte) (pixel >> 16));
+			rgb.put((byte) (pixel >> 8));
+			rgb.put((byte) pixel);
+		}
+		rgb.flip();
+		return rgb;
+	}
+
+}
@@ -0,0 +1,84 @@
+package eu.antonkrug.tests;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.antonkrug.BinaryImage;
+import eu.antonkrug.ConcurrentUnion;
+import eu.antonkrug.Picture;
+import eu.antonkrug.RunLengthUnion;
+import eu.antonkrug.WeightedQuickUnion;
+
+/**
+ * This test has hardcoded values for a cloud-small.jpg image, same as the
+ * WeightedQuickUnionTest, labeling of the binary image has to find the same
+ * groups as labeling of the picture.
+ *
+ * @author Anton Krug
+ */
+public class BinaryImageTest {
+	Picture			img;
+	BinaryImage	binary;
+
+	@Before
+	public void init() {
+		img = new Picture("images/cloud-small.jpg");
+		binary = img.toBinary(190, false, null);
+	}
+
+	@Test
+	public void testToBinary() {
+		Picture bw = new Picture(img);
+		bw.toBW(img, 190, false);
+
+		int count = 0;
+		for (int y = 0; y < img.height(); y++)
+			for (int x = 0; x < img.width(); x++) {
+				assertEquals(bw.getLum(x, y) > 0, binary.get(x, y));
+				if (binary.get(x, y)) count++;
+			}
+		assertEquals(count, binary.count());
+
+		// same size is reused
+		assertSame(binary, img.toBinary(128, true, binary));
+	}
+
+	@Test
+	public void testScan() {
+		BinaryImage image = new BinaryImage(130, 2);
+		image.set(3, 1, true);
+		image.set(64, 1, true);
+		image.set(65, 1, true);
+		image.set(129, 1, true);
+
+		assertEquals(130, image.nextSet(0, 0));
+		assertEquals(3, image.nextSet(1, 0));
+		assertEquals(4, image.nextClear(1, 3));
+		assertEquals(64, image.nextSet(1, 4));
+		assertEquals(66, image.nextClear(1, 64));
+		assertEquals(129, image.nextSet(1, 66));
+		assertEquals(130, image.nextClear(1, 129));
+	}
+
+	@Test
+	public void testPopulateTree() {
+		WeightedQuickUnion union = new WeightedQuickUnion(img);
+		union.populateTree(binary, false);
+		assertEquals(38, union.getKeyValueGroups().size());
+		assertEquals(true, union.connected(93866, 93875));
+		assertEquals(false, union.connected(28187, 93875));
+
+		RunLengthUnion runLength = new RunLengthUnion(img);
+		runLength.populateTree(binary, false);
+		assertEquals(38, runLength.getKeyValueGroups().size());
+		assertEquals(true, runLength.connected(93866, 93875));
+
+		ConcurrentUnion concurrent = new ConcurrentUnion(img);
+		concurrent.populateTree(binary, false);
+		assertEquals(38, concurrent.getKeyValueGroups().size());
+		assertEquals(true, concurrent.connected(93866, 93875));
+	}
+
+}
@@ -0,0 +1,59 @@
+package eu.antonkrug.tests;
+
+import static org.junit.Assert.*;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.awt.image.ConvolveOp;
+import java.awt.image.Kernel;
+
+import org.junit.Test;
+
+import eu.antonkrug.Picture;
+
+/**
+ * The blur has to give exactly the same pixels as the 3x3 ConvolveOp which was
+ * used by Picture.blur before, so the labeling of the fixtures doesn't change.
+ *
+ * @author Anton Krug
+ */
+public class BinomialBlurTest {
+
+	@Test
+	public void testSameAsConvolveOp() {
+		Picture img = new Picture("images/cloud-small.jpg");
+
+		float data[] = { 0.0625f, 0.125f, 0.0625f, 0.125f, 0.25f, 0.125f, 0.0625f, 0.125f, 0.0625f };
+		ConvolveOp convolve = new ConvolveOp(new Kernel(3, 3, data), ConvolveOp.EDGE_NO_OP, null);
+		BufferedImage expected = new BufferedImage(img.width(), img.height(),
+				BufferedImage.TYPE_INT_RGB);
+		convolve.filter(img.getImage(), expected);
+
+		// twice, second time with the reused scratch buffers
+		for (int i = 0; i < 2; i++) {
+			img.blur();
+			assertTrue(img.equals(new Picture(expected)));
+			convolve.filter(img.getImage(), expected);
+		}
+	}
+
+	@Test
+	public void testEdge() {
+		Picture img = new Picture(6, 6);
+		img.fill(0xFFFFFF);
+		img.set(2, 2, Color.BLACK);
+		img.blur(2);
+
+		// only the middle 2x2 is blurred, the rest is edge
+		assertEquals(0xFFFFFF, img.getRaster()[0] & 0xFFFFFF);
+		assertEquals(0xFFFFFF, img.getRaster()[1 * 6 + 2] & 0xFFFFFF);
+		assertTrue((img.getRaster()[2 * 6 + 2] & 0xFF) < 0xFF);
+		assertTrue((img.getRaster()[3 * 6 + 3] & 0xFF) < 0xFF);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRadius() {
+		new Picture(10, 10).blur(0);
+	}
+
+}
@@ -0,0 +1,82 @@
+package eu.antonkrug.tests;
+
+import static org.junit.Assert.*;
+
+import java.util.Map.Entry;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.antonkrug.ConcurrentUnion;
+import eu.antonkrug.Picture;
+import eu.antonkrug.UnionGroup;
+
+/**
+ * This test has hardcoded values for a cloud-small.jpg image, same as the
+ * WeightedQuickUnionTest, because both implementations have to find the same
+ * groups.
+ *
+ * @author Anton Krug
+ */
+public class ConcurrentUnionTest {
+	Picture					img;
+	ConcurrentUnion	union;
+
+	@Before
+	public void init() {
+		img = new Picture("images/cloud-small.jpg");
+		union = new ConcurrentUnion(img);
+		union.populateTree(img, 190, false);
+	}
+
+	@Test
+	public void testPopulateTree() {
+		assertEquals(38, union.getKeyValueGroups().size());
+		assertEquals(true, union.isFlat());
+	}
+
+	@Test
+	public void testConnected() {
+		// from different line and few pixels ahead
+		assertEquals(true, union.connected(93866, 93875));
+		assertEquals(false, union.connected(28187, 93875));
+	}
+
+	@Test
+	public void testUnion() {
+		union.union(28187, 93875);
+		assertEquals(false, union.isFlat());
+
+		// meta data are reduced by flatten
+		union.flatten(img);
+		assertEquals(37, union.getKeyValueGroups().size());
+		assertEquals(true, union.connected(28187, 93866));
+	}
+
+	@Test
+	public void testUnionFromThreads() throws InterruptedException {
+		// every thread joins all groups to the same one, from different ends
+		final int[] roots = new int[union.getKeyValueGroups().size()];
+		int i = 0;
+		for (Entry<Integer, UnionGroup> entry : union.getKeyValueGroups())
+			roots[i++] = entry.getKey();
+
+		Thread[] threads = new Thread[4];
+		for (int t = 0; t < threads.length; t++) {
+			final int offset = t;
+			threads[t] = new Thread() {
+				public void run() {
+					for (int j = 0; j < roots.length; j++)
+						union.union(roots[(j + offset) % roots.length], roots[(j + offset + 1) % roots.length]);
+				}
+			};
+			threads[t].start();
+		}
+		for (Thread thread : threads)
+			thread.join();
+
+		union.flatten(img);
+		assertEquals(1, union.getKeyValueGroups().size());
+	}
+
+}
@@ -0,0 +1,240 @@
+package eu.antonkrug.tests;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.antonkrug.BinaryImage;
+import eu.antonkrug.FramePipeline;
+import eu.antonkrug.FrameSource;
+import eu.antonkrug.MachineVision;
+import eu.antonkrug.Morphology;
+import eu.antonkrug.Picture;
+import eu.antonkrug.Union;
+import eu.antonkrug.UnionGroup;
+import eu.antonkrug.WeightedQuickUnion;
+import eu.antonkrug.metrics.Histogram;
+import eu.antonkrug.metrics.Metrics;
+
+/**
+ * The pipeline fed by fake source, which has only as many buffers as the
+ * pipeline needs, so frames which are not recycled would stop it.
+ *
+ * @author Anton Krug
+ */
+public class FramePipelineTest {
+	private final static int	RING_SIZE	= 2;
+
+	Picture										img;
+	Picture										changed;
+	MachineVision							app;
+
+	@Before
+	public void init() {
+		img = new Picture("images/cloud-small.jpg");
+
+		// top third of the picture is white
+		changed = new Picture(img);
+		int[] raster = changed.getRaster();
+		for (int i = 0; i < raster.length / 3; i++)
+			raster[i] = 0xFFFFFF;
+
+		app = new MachineVision();
+		app.loadImage(img.getImage(), false);
+		app.setThreshold(190);
+		app.setGroupMinThreshold(20);
+	}
+
+	@Test(timeout = 60000)
+	public void testIncremental() throws InterruptedException {
+		FakeSource source = new FakeSource(20, img);
+		FramePipeline pipeline = new FramePipeline(app, source, false, true, RING_SIZE, false);
+
+		// same frame all the time, only the first one is labeled, the rest is
+		// compared with the frame before it
+		Histogram rows = Metrics.get().histogram("updateTree.rows");
+		Histogram latency = Metrics.get().histogram("pipeline.latency.nanos");
+		long labeled = rows.getSum();
+		long shown = latency.getCount();
+		pipeline.run();
+
+		assertEquals(img.height(), rows.getSum() - labeled);
+		assertEquals(20, pipeline.getRendered());
+		assertEquals(20, latency.getCount() - shown);
+		assertNull(app.getUnion().getGroupPixels());
+		assertEquals(0, pipeline.getDropped());
+		source.assertRecycled(20);
+		assertStopped();
+	}
+
+	@Test(timeout = 60000)
+	public void testDropOldest() throws InterruptedException {
+		FakeSource source = new FakeSource(60, img, changed);
+		FramePipeline pipeline = new FramePipeline(app, source, false, true, RING_SIZE - 1, true);
+		pipeline.run();
+
+		// every frame is either rendered or dropped, the newest is never dropped
+		assertEquals(60, pipeline.getRendered() + pipeline.getDropped());
+		source.assertRecycled(60);
+		assertStopped();
+
+		WeightedQuickUnion expected = new WeightedQuickUnion(changed);
+		expected.populateTree(changed, 190, false);
+		expected.flatten(changed);
+		assertEquals(boxes(expected), boxes(app.getUnion()));
+	}
+
+	@Test(timeout = 60000)
+	public void testMorphology() throws InterruptedException {
+		FakeSource source = new FakeSource(31, img, changed);
+		FramePipeline pipeline = new FramePipeline(app, source, false, true, RING_SIZE, false);
+		pipeline.setGroupPixels(true);
+		Morphology open = new Morphology(Morphology.Operation.OPEN, Morphology.Shape.RECTANGLE, 1, 1);
+		pipeline.setMorphology(open);
+		pipeline.run();
+
+		assertEquals(31, pipeline.getRendered());
+		source.assertRecycled(31);
+		assertStopped();
+
+		// last frame is the first picture again
+		BinaryImage image = img.toBinary(190, false, null);
+		open.apply(image);
+		WeightedQuickUnion expected = new WeightedQuickUnion(img);
+		expected.populateTree(image, false);
+		expected.flatten(img);
+		assertEquals(boxes(expected), boxes(app.getUnion()));
+
+		// rendered from the packed pixels of the groups
+		assertNotNull(app.getUnion().getGroupPixels());
+	}
+
+	/**
+	 * The stage threads end by themselves after passing the last frame
+	 */
+	private static void assertStopped() throws InterruptedException {
+		for (Thread thread : Thread.getAllStackTraces().keySet()) {
+			if (!thread.getName().startsWith("pipeline-")) continue;
+			thread.join(5000);
+			assertFalse(thread.getName(), thread.isAlive());
+		}
+	}
+
+	/**
+	 * Sizes and bounding boxes of enabled groups, sorted so the roots don't
+	 * matter
+	 */
+	private static List<String> boxes(Union union) {
+		List<String> boxes = new ArrayList<String>();
+		for (UnionGroup group : union.getAllGroups())
+			if (group.getSize() >= 20)
+				boxes.add(group.getSize() + " " + group.getMinX() + "," + group.getMinY() + " "
+						+ group.getMaxX() + "," + group.getMaxY());
+		Collections.sort(boxes);
+		return boxes;
+	}
+
+	/**
+	 * Gives the pictures one after other, from RING_SIZE + 2 buffers as the
+	 * pipeline needs. When no buffer comes back in time it gives up and closes.
+	 */
+	private final static class FakeSource implements FrameSource {
+		private final ByteBuffer[]								frames;
+		private final BlockingQueue<ByteBuffer>	buffers;
+		private final int													width, height;
+		private final int													count;
+
+		// buffers are released by all the stages
+		private final AtomicInteger								released;
+		private volatile int											acquired;
+		private volatile int											calls;
+		private volatile boolean									starved;
+
+		private FakeSource(int count, Picture... pictures) {
+			this.width = pictures[0].width();
+			this.height = pictures[0].height();
+			this.count = count;
+			this.released = new AtomicInteger();
+
+			this.frames = new ByteBuffer[pictures.length];
+			for (int i = 0; i < pictures.length; i++)
+				this.frames[i] = rgbBuffer(pictures[i]);
+
+			this.buffers = new ArrayBlockingQueue<ByteBuffer>(RING_SIZE + 2);
+			for (int i = 0; i < RING_SIZE + 2; i++)
+				this.buffers.add(ByteBuffer.allocate(this.width * this.height * 3));
+		}
+
+		public ByteBuffer acquire() {
+			this.calls++;
+			if (this.acquired == this.count) return null;
+
+			ByteBuffer buffer;
+			try {
+				buffer = this.buffers.poll(10, TimeUnit.SECONDS);
+			} catch (InterruptedException e) {
+				buffer = null;
+			}
+			if (buffer == null) {
+				this.starved = true;
+				return null;
+			}
+
+			buffer.clear();
+			buffer.put(this.frames[this.acquired % this.frames.length].duplicate());
+			buffer.flip();
+			this.acquired++;
+			return buffer;
+		}
+
+		public void release(ByteBuffer frame) {
+			this.released.incrementAndGet();
+			this.buffers.add(frame);
+		}
+
+		public int width() {
+			return this.width;
+		}
+
+		public int height() {
+			return this.height;
+		}
+
+		/**
+		 * All frames were given out and returned, after the end nothing more was
+		 * asked for
+		 */
+		private void assertRecycled(int frames) {
+			assertFalse(this.starved);
+			assertEquals(frames, this.acquired);
+			assertEquals(frames, this.released.get());
+			assertEquals(frames + 1, this.calls);
+		}
+
+		/**
+		 * Raw RGB bytes as the camera gives them
+		 */
+		private static ByteBuffer rgbBuffer(Picture pic) {
+			int[] pixels = pic.getRaster();
+			ByteBuffer rgb = ByteBuffer.allocate(pixels.length * 3);
+			for (int pixel : pixels) {
+				rgb.put((byte) (pixel >> 16));
+				rgb.put((byte) (pixel >> 8));
+				rgb.put((byte) pixel);
+			}
+			rgb.flip();
+			return rgb;
+		}
+	}
+
+}
@@ -0,0 +1,125 @@
+package eu.antonkrug.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.antonkrug.LabelMap;
+import eu.antonkrug.Picture;
+import eu.antonkrug.UnionGroup;
+import eu.antonkrug.WeightedQuickUnion;
+
+/**
+ * This test has hardcoded values for a cloud-small.jpg image, same as the
+ * WeightedQuickUnionTest, the reloaded map has to answer the same as the union
+ * it was saved from.
+ *
+ * @author Anton Krug
+ */
+public class LabelMapTest {
+	Picture							img;
+	WeightedQuickUnion	union;
+	File								file;
+	LabelMap						map;
+
+	@Before
+	public void init() throws IOException {
+		img = new Picture("images/cloud-small.jpg");
+		union = new WeightedQuickUnion(img);
+		union.populateTree(img, 190, false);
+		union.flatten(img);
+
+		file = File.createTempFile("cloud-small", ".labels");
+		LabelMap.write(union, img.width(), img.height(), file);
+		map = LabelMap.open(file);
+	}
+
+	@After
+	public void cleanup() {
+		file.delete();
+	}
+
+	@Test
+	public void testOpen() {
+		assertEquals(img.width(), map.width());
+		assertEquals(img.height(), map.height());
+		assertEquals(38, map.getGroupCount());
+		assertEquals(38, map.getKeyValueGroups().size());
+	}
+
+	@Test
+	public void testFind() {
+		assertEquals(92967, map.find(93866));
+		assertEquals(92967, map.findFlat(93875));
+		assertEquals(true, map.connected(93866, 93875));
+		assertEquals(false, map.connected(28187, 93875));
+
+		for (int i = 0; i < img.width() * img.height(); i++)
+			assertEquals(union.tree(i), map.tree(i));
+	}
+
+	@Test
+	public void testGroupOf() {
+		int group = map.groupOf(93866);
+		assertEquals(92967, map.getGroupKey(group));
+		assertEquals(union.getKeyValueGroups().size(), map.getGroupCount());
+
+		for (int i = 0; i < img.width() * img.height(); i++) {
+			if (map.tree(i) < 0) assertEquals(-1, map.groupOf(i));
+		}
+	}
+
+	@Test
+	public void testGroups() {
+		// views are read from the group table, in order of the keys
+		int group = 0;
+		for (UnionGroup view : map.getAllGroups()) {
+			assertEquals(map.getGroupKey(group), view.getKey());
+			assertEquals(map.getGroupSize(group), view.getSize());
+			assertEquals(map.getGroupMaxY(group), view.getMaxY());
+			group++;
+		}
+		assertEquals(38, group);
+
+		UnionGroup view = map.getAllGroups().iterator().next();
+		view.setDisabled(true);
+		assertEquals(true, view.isDisabled());
+		assertEquals(false, map.isGroupDisabled(0));
+
+		int[] table = new int[img.width() * img.height() + 1];
+		map.generateColorsRandom();
+		map.fillColorTable(table);
+		assertEquals(0, table[view.getKey() + 1]);
+		assertTrue(table[map.getGroupKey(1) + 1] != 0);
+		assertEquals(map.getAllGroups().iterator().next().getColor(), view.getColor());
+	}
+
+	@Test
+	public void testDisabled() throws IOException {
+		for (UnionGroup group : union.getAllGroups())
+			group.setDisabled(group.getSize() < 20);
+		LabelMap.write(union, img.width(), img.height(), file);
+		map = LabelMap.open(file);
+
+		int disabled = 0;
+		for (int group = 0; group < map.getGroupCount(); group++) {
+			assertEquals(map.getGroupSize(group) < 20, map.isGroupDisabled(group));
+			if (map.isGroupDisabled(group)) disabled++;
+		}
+		assertTrue(disabled > 0);
+
+		for (UnionGroup group : map.getAllGroups())
+			assertEquals(group.getSize() < 20, group.isDisabled());
+	}
+
+	@Test(expected = UnsupportedOperationException.class)
+	public void testReadOnly() {
+		map.union(28187, 93875);
+	}
+
+}
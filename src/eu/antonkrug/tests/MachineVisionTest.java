@@ -0,0 +1,96 @@
+package eu.antonkrug.tests;
+
+import static org.junit.Assert.*;
+
+import java.util.Map;
+
+import org.junit.Test;
+
+import eu.antonkrug.ConcurrentUnion;
+import eu.antonkrug.MachineVision;
+import eu.antonkrug.Picture;
+import eu.antonkrug.RunLengthUnion;
+import eu.antonkrug.Union;
+import eu.antonkrug.UnionGroup;
+import eu.antonkrug.WeightedQuickUnion;
+
+/**
+ * colorizeLinear has to paint exactly the same pixels as colorizeGroups
+ * without boxes, for each union implementation, with the small groups of
+ * cloud-small.jpg disabled.
+ *
+ * @author Anton Krug
+ */
+public class MachineVisionTest {
+
+	/**
+	 * Label the picture by the union, disable small groups and color the rest
+	 */
+	private static MachineVision label(Picture img, Union union) {
+		MachineVision app = new MachineVision();
+		app.loadImage(img.getImage(), false);
+		app.setUnion(union);
+
+		union.populateTree(img, 190, false);
+		union.flatten(img);
+		app.setGroupMinThreshold(20);
+		app.disableSmallGroups();
+		union.generateColorsBySize(app.getGroupSmallest(), app.getGroupBiggest());
+		return app;
+	}
+
+	private static void assertSameAsGroups(Picture img, Union union) {
+		MachineVision app = label(img, union);
+
+		Picture groups = new Picture(img.width(), img.height());
+		Picture linear = new Picture(img.width(), img.height());
+		app.colorizeGroups(groups, false, false);
+		app.colorizeLinear(linear);
+
+		int[] expected = groups.getRaster();
+		int[] actual = linear.getRaster();
+		for (int i = 0; i < expected.length; i++)
+			assertEquals("pixel " + i, expected[i] & 0xFFFFFF, actual[i] & 0xFFFFFF);
+
+		// disabled groups are there and they are background
+		int disabled = 0;
+		for (Map.Entry<Integer, UnionGroup> entry : union.getKeyValueGroups()) {
+			UnionGroup group = entry.getValue();
+			if (!group.isDisabled()) continue;
+
+			disabled++;
+			for (int y = group.getMinY(); y <= group.getMaxY(); y++) {
+				for (int x = group.getMinX(); x <= group.getMaxX(); x++) {
+					int index = y * img.width() + x;
+					if (union.tree(index) == entry.getKey()) assertEquals(0, actual[index] & 0xFFFFFF);
+				}
+			}
+		}
+		assertTrue(disabled > 0);
+	}
+
+	@Test
+	public void testColorizeLinearWeighted() {
+		Picture img = new Picture("images/cloud-small.jpg");
+		WeightedQuickUnion union = new WeightedQuickUnion(img.width() * img.height());
+		assertSameAsGroups(img, union);
+
+		// and with the pixels of the groups packed
+		union = new WeightedQuickUnion(img.width() * img.height());
+		union.setGroupPixels(true);
+		assertSameAsGroups(img, union);
+	}
+
+	@Test
+	public void testColorizeLinearRunLength() {
+		Picture img = new Picture("images/cloud-small.jpg");
+		assertSameAsGroups(img, new RunLengthUnion(img));
+	}
+
+	@Test
+	public void testColorizeLinearConcurrent() {
+		Picture img = new Picture("images/cloud-small.jpg");
+		assertSameAsGroups(img, new ConcurrentUnion(img));
+	}
+
+}
@@ -0,0 +1,101 @@
+package eu.antonkrug.tests;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import eu.antonkrug.Picture;
+import eu.antonkrug.RunLengthUnion;
+import eu.antonkrug.WeightedQuickUnion;
+import eu.antonkrug.metrics.Histogram;
+import eu.antonkrug.metrics.Metrics;
+
+/**
+ * Metrics registry and the metrics recorded by the labeling
+ *
+ * @author Anton Krug
+ */
+public class MetricsTest {
+
+	@Test
+	public void testHistogram() {
+		Histogram histogram = new Metrics().histogram("test");
+		histogram.record(0);
+		histogram.record(5, 3);
+		histogram.record(1000);
+
+		assertEquals(5, histogram.getCount());
+		assertEquals(1015, histogram.getSum());
+		assertEquals(1000, histogram.getMax());
+		assertEquals(1000, histogram.getLast());
+		assertEquals(1, histogram.getBucket(0));
+		assertEquals(3, histogram.getBucket(Histogram.bucket(5)));
+		assertEquals(1, histogram.getBucket(Histogram.bucket(1000)));
+	}
+
+	@Test
+	public void testJson() {
+		Metrics metrics = new Metrics();
+		metrics.counter("a.calls").add(7);
+		metrics.histogram("b.nanos").record(3);
+
+		String json = metrics.toJson();
+		assertTrue(json.contains("\"a.calls\":7"));
+		assertTrue(json.contains("\"b.nanos\":{\"count\":1,\"sum\":3,\"max\":3,\"last\":3,\"buckets\":[0,0,1]}"));
+	}
+
+	@Test
+	public void testLabeling() {
+		Picture img = new Picture("images/cloud-small.jpg");
+		Metrics metrics = Metrics.get();
+		long populated = metrics.histogram("populateTree.nanos").getCount();
+		long finds = metrics.counter("find.none.calls").get();
+
+		WeightedQuickUnion union = new WeightedQuickUnion(img);
+		union.populateTree(img, 190, false);
+		union.flatten(img);
+
+		assertEquals(populated + 1, metrics.histogram("populateTree.nanos").getCount());
+		assertEquals(38, metrics.histogram("groups.final").getLast());
+		assertTrue(metrics.counter("find.none.calls").get() > finds);
+	}
+
+	@Test
+	public void testParallelLinks() {
+		Picture img = new Picture("images/cloud-small.jpg");
+		Metrics metrics = Metrics.get();
+
+		// each link joins two groups, so both make as many links as there are
+		// runs minus the final groups, no matter which strip made them
+		long links = metrics.counter("union.links").get();
+		WeightedQuickUnion union = new WeightedQuickUnion(img);
+		union.populateTree(img, 190, false);
+		union.flatten(img);
+		long serial = metrics.counter("union.links").get() - links;
+
+		links = metrics.counter("union.links").get();
+		long finds = metrics.counter("find.none.calls").get();
+		union.reset(img);
+		union.populateTreeParallel(img, 190, false);
+		union.flatten(img);
+
+		assertEquals(serial, metrics.counter("union.links").get() - links);
+		assertTrue(serial > 0);
+		assertTrue(metrics.counter("find.none.calls").get() - finds >= 2 * serial);
+	}
+
+	@Test
+	public void testRunLength() {
+		Picture img = new Picture("images/cloud-small.jpg");
+		Metrics metrics = Metrics.get();
+		long links = metrics.counter("runs.union.links").get();
+		long finds = metrics.counter("runs.find.calls").get();
+
+		RunLengthUnion union = new RunLengthUnion(img);
+		union.populateTree(img, 190, false);
+
+		assertEquals(union.getRuns() - 38, metrics.counter("runs.union.links").get() - links);
+		assertTrue(metrics.counter("runs.find.calls").get() - finds >= 2 * (union.getRuns() - 38));
+	}
+
+}
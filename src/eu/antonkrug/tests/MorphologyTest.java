@@ -0,0 +1,102 @@
+package eu.antonkrug.tests;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+import eu.antonkrug.BinaryImage;
+import eu.antonkrug.Morphology;
+import eu.antonkrug.WeightedQuickUnion;
+
+/**
+ * Small hand made images, so the result of each operation can be checked
+ * pixel by pixel.
+ *
+ * @author Anton Krug
+ */
+public class MorphologyTest {
+
+	/**
+	 * Square of size x size pixels with top left corner at x, y
+	 */
+	private static void square(BinaryImage image, int x, int y, int size) {
+		for (int j = y; j < y + size; j++)
+			for (int i = x; i < x + size; i++)
+				image.set(i, j, true);
+	}
+
+	@Test
+	public void testDilate() {
+		// pixel across the word boundary grows to 3x3 square
+		BinaryImage image = new BinaryImage(130, 5);
+		image.set(64, 2, true);
+		new Morphology(Morphology.Operation.DILATE, Morphology.Shape.RECTANGLE, 1, 1).apply(image);
+
+		BinaryImage expected = new BinaryImage(130, 5);
+		square(expected, 63, 1, 3);
+		assertEquals(expected, image);
+
+		// and to plus with the cross
+		image.clear();
+		image.set(64, 2, true);
+		new Morphology(Morphology.Operation.DILATE, Morphology.Shape.CROSS, 1, 1).apply(image);
+		assertEquals(5, image.count());
+		assertFalse(image.get(63, 1));
+		assertTrue(image.get(64, 1));
+	}
+
+	@Test
+	public void testErode() {
+		BinaryImage image = new BinaryImage(70, 10);
+		square(image, 10, 2, 5);
+		new Morphology(Morphology.Operation.ERODE, Morphology.Shape.RECTANGLE, 1, 1).apply(image);
+
+		BinaryImage expected = new BinaryImage(70, 10);
+		square(expected, 11, 3, 3);
+		assertEquals(expected, image);
+
+		// outside of the picture doesn't erode the edges
+		image.clear();
+		square(image, 0, 0, 3);
+		new Morphology(Morphology.Operation.ERODE, Morphology.Shape.RECTANGLE, 1, 1).apply(image);
+		assertEquals(4, image.count());
+		assertTrue(image.get(0, 0));
+	}
+
+	@Test
+	public void testOpen() {
+		// specks of noise are gone, the square stays as it was
+		BinaryImage image = new BinaryImage(100, 40);
+		square(image, 20, 10, 8);
+		image.set(2, 2, true);
+		image.set(50, 30, true);
+		image.set(51, 30, true);
+		image.set(99, 39, true);
+
+		new Morphology(Morphology.Operation.OPEN, Morphology.Shape.RECTANGLE, 1, 1).apply(image);
+
+		BinaryImage expected = new BinaryImage(100, 40);
+		square(expected, 20, 10, 8);
+		assertEquals(expected, image);
+
+		WeightedQuickUnion union = new WeightedQuickUnion(100 * 40);
+		union.populateTree(image, false);
+		assertEquals(1, union.getKeyValueGroups().size());
+	}
+
+	@Test
+	public void testClose() {
+		// one pixel gap between two squares is filled
+		BinaryImage image = new BinaryImage(40, 20);
+		square(image, 5, 5, 6);
+		square(image, 12, 5, 6);
+
+		new Morphology(Morphology.Operation.CLOSE, Morphology.Shape.RECTANGLE, 1, 1).apply(image);
+		assertTrue(image.get(11, 7));
+
+		WeightedQuickUnion union = new WeightedQuickUnion(40 * 20);
+		union.populateTree(image, false);
+		assertEquals(1, union.getKeyValueGroups().size());
+	}
+
+}
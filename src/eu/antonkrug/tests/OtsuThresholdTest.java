@@ -0,0 +1,143 @@
+package eu.antonkrug.tests;
+
+import static org.junit.Assert.*;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import eu.antonkrug.Binarizer;
+import eu.antonkrug.ConnectedComponentImage;
+import eu.antonkrug.OtsuThreshold;
+import eu.antonkrug.Picture;
+
+/**
+ * Threshold of hand made histograms and pictures, the histograms counted
+ * together with the luminance have to be the same as counted separately.
+ *
+ * @author Anton Krug
+ */
+public class OtsuThresholdTest {
+
+	/**
+	 * Two peaks of gray, dark one at the top and bright one at the bottom
+	 */
+	private static Picture twoPeaks(int dark, int bright) {
+		Picture pic = new Picture(64, 64);
+		int[] raster = pic.getRaster();
+		for (int i = 0; i < raster.length; i++) {
+			int gray = (i < raster.length / 2) ? dark : bright;
+			raster[i] = (gray << 16) | (gray << 8) | gray;
+		}
+		pic.invalidateLum();
+		return pic;
+	}
+
+	@Test
+	public void testLevel() {
+		int[] histogram = new int[OtsuThreshold.BINS];
+		histogram[50] = 100;
+		histogram[200] = 100;
+
+		// middle of the empty bins between the peaks
+		assertEquals(125, OtsuThreshold.level(histogram));
+
+		// spread peaks, the split is between them
+		histogram[40] = 50;
+		histogram[60] = 50;
+		histogram[190] = 50;
+		histogram[210] = 50;
+		int level = OtsuThreshold.level(histogram);
+		assertTrue(level > 60 && level <= 190);
+
+		// nothing to split
+		assertEquals(OtsuThreshold.DEFAULT_THRESHOLD, OtsuThreshold.level(new int[OtsuThreshold.BINS]));
+		histogram = new int[OtsuThreshold.BINS];
+		histogram[77] = 10;
+		assertEquals(OtsuThreshold.DEFAULT_THRESHOLD, OtsuThreshold.level(histogram));
+	}
+
+	@Test
+	public void testPicture() {
+		Picture pic = twoPeaks(30, 220);
+		int[] histogram = pic.getLumHistogram(OtsuThreshold.SAMPLE_STEP);
+
+		int total = 0;
+		for (int count : histogram)
+			total += count;
+		assertEquals(64 * 64 / OtsuThreshold.SAMPLE_STEP, total);
+		assertEquals(total / 2, histogram[30]);
+
+		// histogram is counted again when the picture is changed
+		pic.getRaster()[0] = 0;
+		pic.invalidateLum();
+		assertEquals(1, pic.getLumHistogram(OtsuThreshold.SAMPLE_STEP)[0]);
+
+		// counted from the cached plane when it's there already, all rows with step 1
+		pic.invalidateLum();
+		pic.getLumPlane();
+		assertEquals(64 * 64 / 2, pic.getLumHistogram(1)[220]);
+		assertEquals(64 * 64 / 2 - 1, pic.getLumHistogram(1)[30]);
+		assertEquals(1, pic.getLumHistogram(OtsuThreshold.SAMPLE_STEP)[0]);
+
+		// threshold separates the halves
+		double threshold = OtsuThreshold.level(pic.getLumHistogram(OtsuThreshold.SAMPLE_STEP));
+		assertTrue(threshold > 30 && threshold <= 220);
+	}
+
+	@Test
+	public void testFrame() {
+		Picture pic = twoPeaks(30, 220);
+		int[] raster = pic.getRaster();
+		ByteBuffer rgb = ByteBuffer.allocate(raster.length * 3);
+		for (int pixel : raster) {
+			rgb.put((byte) (pixel >> 16));
+			rgb.put((byte) (pixel >> 8));
+			rgb.put((byte) pixel);
+		}
+		rgb.flip();
+
+		// binarizer counts the same histogram as the picture and the sampling
+		Binarizer binarizer = new Binarizer();
+		binarizer.binarize(rgb, 64, 64, 128, false, null);
+		assertArrayEquals(pic.getLumHistogram(OtsuThreshold.SAMPLE_STEP), binarizer.getHistogram());
+		assertArrayEquals(pic.getLumHistogram(OtsuThreshold.SAMPLE_STEP), OtsuThreshold.histogram(rgb, 64, 64,
+				OtsuThreshold.SAMPLE_STEP, null));
+		assertEquals(0, rgb.position());
+	}
+
+	@Test
+	public void testSmoothing() {
+		int[] dark = new int[OtsuThreshold.BINS];
+		dark[0] = 10;
+		dark[100] = 10;
+		int[] bright = new int[OtsuThreshold.BINS];
+		bright[100] = 10;
+		bright[200] = 10;
+
+		OtsuThreshold auto = new OtsuThreshold(175, 0.5);
+		assertEquals(175, auto.getThreshold(), 0);
+
+		// first frame is taken as it is, then half of the way each frame
+		assertEquals(50, auto.update(dark), 0);
+		assertEquals(100, auto.update(bright), 0);
+		assertEquals(125, auto.update(bright), 0);
+
+		auto.reset();
+		assertEquals(50, auto.update(dark), 0);
+	}
+
+	@Test
+	public void testAutoComponents() {
+		// the same shapes have to be found as with the hand picked threshold
+		ConnectedComponentImage image = new ConnectedComponentImage("images/shapes2.bmp", false, true);
+		assertEquals(new ConnectedComponentImage("images/shapes2.bmp").countComponents(),
+				image.countComponents());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSmoothingRange() {
+		new OtsuThreshold(128, 0);
+	}
+
+}
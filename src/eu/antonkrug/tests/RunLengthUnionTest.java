@@ -0,0 +1,86 @@
+package eu.antonkrug.tests;
+
+import static org.junit.Assert.*;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.antonkrug.Picture;
+import eu.antonkrug.RunLengthUnion;
+
+/**
+ * This test has hardcoded values for a cloud-small.jpg image, same as the
+ * WeightedQuickUnionTest, because both implementations have to find the same
+ * groups.
+ *
+ * @author Anton Krug
+ */
+public class RunLengthUnionTest {
+	Picture					img;
+	RunLengthUnion	union;
+
+	@Before
+	public void init() {
+		img = new Picture("images/cloud-small.jpg");
+		union = new RunLengthUnion(img);
+		union.populateTree(img, 190, false);
+	}
+
+	@Test
+	public void testPopulateTree() {
+		assertEquals(38, union.getKeyValueGroups().size());
+	}
+
+	@Test
+	public void testConnected() {
+		// from different line and few pixels ahead
+		assertEquals(true, union.connected(93866, 93875));
+		assertEquals(false, union.connected(28187, 93875));
+	}
+
+	@Test
+	public void testFindFlat() {
+		union.flatten(img);
+		assertEquals(true, union.isFlat());
+		assertEquals(union.find(93866), union.findFlat(93866));
+		assertEquals(union.find(93866), union.tree(93875));
+	}
+
+	@Test
+	public void testUnion() {
+		union.union(28187, 93875);
+		assertEquals(37, union.getKeyValueGroups().size());
+		assertEquals(true, union.connected(28187, 93866));
+	}
+
+	@Test
+	public void testUnionAfterFlatten() {
+		union.flatten(img);
+		union.union(28187, 93875);
+
+		// the runs of one of the groups point to the old root
+		assertEquals(false, union.isFlat());
+		assertEquals(union.find(93866), union.find(28187));
+		assertEquals(37, union.getKeyValueGroups().size());
+
+		union.flatten(img);
+		assertEquals(union.find(28187), union.findFlat(93866));
+		assertEquals(union.find(28187), union.tree(28187));
+	}
+
+	@Test
+	public void testReset() {
+		// nothing is labeled after reset, every pixel is background
+		union.reset(img.width() * img.height());
+		assertEquals(-1, union.find(93866));
+		assertEquals(-1, union.tree(93866));
+		assertEquals(0, union.getKeyValueGroups().size());
+
+		union.reset(img);
+		assertEquals(-1, union.find(93866));
+
+		union.populateTree(img, 190, false);
+		assertEquals(38, union.getKeyValueGroups().size());
+	}
+
+}
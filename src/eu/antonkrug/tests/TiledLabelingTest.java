@@ -0,0 +1,66 @@
+package eu.antonkrug.tests;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import eu.antonkrug.Picture;
+import eu.antonkrug.TiledLabeling;
+import eu.antonkrug.UnionGroup;
+import eu.antonkrug.WeightedQuickUnion;
+
+/**
+ * This test has hardcoded values for a cloud-small.jpg image, same as the
+ * WeightedQuickUnionTest, groups found band by band have to be the same as
+ * when the whole image is labeled at once.
+ *
+ * @author Anton Krug
+ */
+public class TiledLabelingTest {
+	List<String>	expected;
+
+	@Before
+	public void init() {
+		Picture img = new Picture("images/cloud-small.jpg");
+		WeightedQuickUnion union = new WeightedQuickUnion(img);
+		union.populateTree(img, 190, false);
+		union.flatten(img);
+
+		expected = new ArrayList<String>();
+		for (UnionGroup group : union.getAllGroups())
+			expected.add(stats(group.getSize(), group.getMinX(), group.getMinY(), group.getMaxX(),
+					group.getMaxY()));
+		Collections.sort(expected);
+	}
+
+	@Test
+	public void testLabel() throws IOException {
+		// single row bands, small bands and one band over the whole image
+		for (int bandRows : new int[] { 1, 7, TiledLabeling.BAND_ROWS }) {
+			final List<String> found = new ArrayList<String>();
+
+			int count = new TiledLabeling(190, bandRows).label(new File("images/cloud-small.jpg"),
+					new TiledLabeling.Listener() {
+						public void component(int size, int minX, int minY, int maxX, int maxY) {
+							found.add(stats(size, minX, minY, maxX, maxY));
+						}
+					});
+
+			Collections.sort(found);
+			assertEquals(38, count);
+			assertEquals(expected, found);
+		}
+	}
+
+	private static String stats(int size, int minX, int minY, int maxX, int maxY) {
+		return size + " " + minX + " " + minY + " " + maxX + " " + maxY;
+	}
+
+}
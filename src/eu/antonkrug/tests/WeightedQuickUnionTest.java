@@ -2,10 +2,19 @@ package eu.antonkrug.tests;
 
 import static org.junit.Assert.*;
 
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import org.junit.Before;
 import org.junit.Test;
 
+import eu.antonkrug.BinaryImage;
+import eu.antonkrug.GroupPixels;
+import eu.antonkrug.OtsuThreshold;
 import eu.antonkrug.Picture;
+import eu.antonkrug.UnionGroup;
 import eu.antonkrug.WeightedQuickUnion;
 
 /**
@@ -72,6 +81,81 @@ public class WeightedQuickUnionTest {
 		}
 	}
 
+	@Test
+	public void testGroupPixels() {
+		assertNull(union.getGroupPixels());
+
+		WeightedQuickUnion packed = new WeightedQuickUnion(img);
+		packed.setGroupPixels(true);
+		packed.populateTree(img, 190, false);
+		packed.flatten(img);
+
+		// each group has exactly its own pixels
+		GroupPixels pixels = packed.getGroupPixels();
+		for (UnionGroup group : packed.getAllGroups()) {
+			int key = group.getKey();
+			assertEquals(group.getSize(), pixels.end(key) - pixels.start(key));
+			for (int i = pixels.start(key); i < pixels.end(key); i++)
+				assertEquals(key, packed.tree(pixels.pixels()[i]));
+		}
+
+		// joined groups have to be flattened again
+		packed.union(28187, 93875);
+		assertNull(packed.getGroupPixels());
+	}
+
+	@Test
+	public void testPopulateTreeParallel() {
+		WeightedQuickUnion parallel = new WeightedQuickUnion(img);
+		parallel.populateTreeParallel(img, 190, false);
+		assertEquals(38, parallel.getKeyValueGroups().size());
+		assertEquals(true, parallel.connected(93866, 93875));
+	}
+
+	@Test
+	public void testPopulateTreeFromBuffer() {
+		ByteBuffer rgb = rgbBuffer(img);
+
+		// has to find the same groups as binarization followed by labeling
+		Picture bw = new Picture(img);
+		bw.toBW(img, 190, false);
+		union.reset(bw);
+		union.populateTree(bw, 190, false);
+
+		WeightedQuickUnion fused = new WeightedQuickUnion(img);
+		fused.populateTree(rgb, img.width(), img.height(), 190, false, false);
+		assertEquals(union.getKeyValueGroups().size(), fused.getKeyValueGroups().size());
+	}
+
+	@Test
+	public void testStrategies() {
+		// all combinations have to find the same groups, just with different trees
+		for (WeightedQuickUnion.FindStrategy find : WeightedQuickUnion.FindStrategy.values()) {
+			for (WeightedQuickUnion.LinkStrategy link : WeightedQuickUnion.LinkStrategy.values()) {
+				WeightedQuickUnion strategy = new WeightedQuickUnion(img);
+				strategy.setFindStrategy(find);
+				strategy.setLinkStrategy(link);
+				strategy.populateTree(img, 190, false);
+
+				assertEquals(38, strategy.getKeyValueGroups().size());
+				assertEquals(true, strategy.connected(93866, 93875));
+				assertEquals(false, strategy.connected(28187, 93875));
+			}
+		}
+	}
+
+	@Test
+	public void testReset() {
+		union.flatten(img);
+		union.reset(img);
+		assertEquals(false, union.isFlat());
+		assertEquals(0, union.getKeyValueGroups().size());
+
+		// recycled structure has to give same results as the fresh one
+		union.populateTree(img, 190, false);
+		assertEquals(38, union.getKeyValueGroups().size());
+	}
+
 	@Test
 	public void testUnionWeighted() {
 		union.union(28187, 93875);
@@ -91,4 +175,123 @@ public class WeightedQuickUnionTest {
 		 */
 	}
 
+	@Test
+	public void testUpdateTree() {
+		ByteBuffer rgb = rgbBuffer(img);
+		WeightedQuickUnion incremental = new WeightedQuickUnion(img);
+
+		// first frame is labeled whole, same frame again doesn't need anything
+		assertEquals(img.height(), incremental.updateTree(rgb, img.width(), img.height(), 190, false, false));
+		assertEquals(38, incremental.getKeyValueGroups().size());
+		assertEquals(0, incremental.updateTree(rgb, img.width(), img.height(), 190, false, false));
+		assertEquals(38, incremental.getKeyValueGroups().size());
+		assertEquals(true, incremental.isFlat());
+
+		// white box over the middle of the picture has to give same groups as
+		// labeling the changed frame from scratch
+		for (int y = img.height() / 3; y < img.height() / 2; y++)
+			for (int x = img.width() / 3; x < img.width() / 2; x++)
+				for (int i = 0; i < 3; i++)
+					rgb.put((y * img.width() + x) * 3 + i, (byte) 0xFF);
+
+		assertTrue(incremental.updateTree(rgb, img.width(), img.height(), 190, false, false) < img.height());
+
+		WeightedQuickUnion full = new WeightedQuickUnion(img);
+		full.populateTree(rgb, img.width(), img.height(), 190, false, false);
+		assertEquals(full.getKeyValueGroups().size(), incremental.getKeyValueGroups().size());
+		assertEquals(true, incremental.connected(img.width() / 3 + img.height() / 3 * img.width(),
+				img.width() / 2 - 1 + (img.height() / 2 - 1) * img.width()));
+	}
+
+	@Test
+	public void testLumHistogram() {
+		ByteBuffer rgb = rgbBuffer(img);
+		WeightedQuickUnion incremental = new WeightedQuickUnion(img);
+		assertNull(incremental.getLumHistogram());
+		incremental.setLumHistogram(OtsuThreshold.SAMPLE_STEP);
+
+		// counted while labeling, same as sampling the frame on its own
+		int[] expected = OtsuThreshold.histogram(rgb, img.width(), img.height(),
+				OtsuThreshold.SAMPLE_STEP, null);
+		incremental.updateTree(rgb, img.width(), img.height(), 190, false, false);
+		assertArrayEquals(expected, incremental.getLumHistogram());
+
+		// unchanged frame is not labeled again, but still counted
+		assertEquals(0, incremental.updateTree(rgb, img.width(), img.height(), 190, false, false));
+		assertArrayEquals(expected, incremental.getLumHistogram());
+
+		// changed rows are counted once
+		for (int y = img.height() / 3; y < img.height() / 2; y++)
+			for (int x = img.width() / 3; x < img.width() / 2; x++)
+				for (int i = 0; i < 3; i++)
+					rgb.put((y * img.width() + x) * 3 + i, (byte) 0xFF);
+		expected = OtsuThreshold.histogram(rgb, img.width(), img.height(),
+				OtsuThreshold.SAMPLE_STEP, null);
+		assertTrue(incremental.updateTree(rgb, img.width(), img.height(), 190, false, false) > 0);
+		assertArrayEquals(expected, incremental.getLumHistogram());
+
+		incremental.setLumHistogram(0);
+		assertNull(incremental.getLumHistogram());
+	}
+
+	@Test
+	public void testUpdateTreeBinary() {
+		BinaryImage image = img.toBinary(190, false, null);
+		WeightedQuickUnion incremental = new WeightedQuickUnion(img);
+
+		assertEquals(img.height(), incremental.updateTree(image, false));
+		assertEquals(38, incremental.getKeyValueGroups().size());
+		assertEquals(0, incremental.updateTree(image, false));
+		assertEquals(true, incremental.isFlat());
+
+		// box over the middle of the picture
+		for (int y = img.height() / 3; y < img.height() / 2; y++)
+			for (int x = img.width() / 3; x < img.width() / 2; x++)
+				image.set(x, y, true);
+
+		assertTrue(incremental.updateTree(image, false) < img.height());
+
+		WeightedQuickUnion full = new WeightedQuickUnion(img);
+		full.populateTree(image, false);
+		full.flatten(img);
+		assertEquals(full.getKeyValueGroups().size(), incremental.getKeyValueGroups().size());
+		assertEquals(boxes(full), boxes(incremental));
+		for (int i = 0; i < img.width() * img.height(); i++)
+			assertEquals(full.tree(i) >= 0, incremental.tree(i) >= 0);
+
+		// and gone again, the groups of the first frame are back
+		image = img.toBinary(190, false, image);
+		assertTrue(incremental.updateTree(image, false) < img.height());
+		assertEquals(38, incremental.getKeyValueGroups().size());
+		assertEquals(true, incremental.connected(93866, 93875));
+		assertEquals(false, incremental.connected(28187, 93875));
+	}
+
+	/**
+	 * Sizes and bounding boxes of all groups, sorted so the roots don't matter
+	 */
+	private static List<String> boxes(WeightedQuickUnion union) {
+		List<String> boxes = new ArrayList<String>();
+		for (UnionGroup group : union.getAllGroups())
+			boxes.add(group.getSize() + " " + group.getMinX() + "," + group.getMinY() + " "
+					+ group.getMaxX() + "," + group.getMaxY());
+		Collections.sort(boxes);
+		return boxes;
+	}
+
+	/**
+	 * Raw RGB bytes as the camera gives them
+	 */
+	private static ByteBuffer rgbBuffer(Picture pic) {
+		int[] pixels = pic.getRaster();
+		ByteBuffer rgb = ByteBuffer.allocate(pixels.length * 3);
+		for (int pixel : pixels) {
+			rgb.put((byte) (pixel >> 16));
+			rgb.put((byte) (pixel >> 8));
+			rgb.put((byte) pixel);
+		}
+		rgb.flip();
+		return rgb;
+	}
+
 }